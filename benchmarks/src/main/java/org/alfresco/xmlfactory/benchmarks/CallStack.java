@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.util.function.Supplier;
+
+/**
+ * Makes a call from a deeper stack, to show the cost of code that looks at the caller's stack.
+ */
+public final class CallStack
+{
+    private CallStack()
+    {
+    }
+
+    /**
+     * @param depth number of frames to add before calling {@code supplier}.
+     * @param supplier the call to make.
+     * @return the value returned by {@code supplier}.
+     */
+    public static <T> T call(int depth, Supplier<T> supplier)
+    {
+        return depth <= 0 ? supplier.get() : call(depth - 1, supplier);
+    }
+}
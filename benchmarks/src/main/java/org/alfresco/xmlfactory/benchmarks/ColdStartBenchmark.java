@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.xmlfactory.XMLFactoryWarmUp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a new JVM to start and run {@link XMLFactoryWarmUp}, as a short lived transformation worker would before
+ * its first document. {@code sharing} is {@code off} (no class data sharing), {@code default} (the JDK's archive of
+ * its own classes) or {@code appcds} (an archive of everything the warm up loads, created in the setup with
+ * {@code -XX:ArchiveClassesAtExit}). The difference between {@code default} and {@code appcds} is the start up time
+ * saved by the {@code cds} Maven profile's archive.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColdStartBenchmark
+{
+    @Param({"off", "default", "appcds"})
+    public String sharing;
+
+    private Path archive;
+    private List<String> command;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> main = Arrays.asList("-cp", System.getProperty("java.class.path"),
+                XMLFactoryWarmUp.class.getName());
+        command = new ArrayList<>();
+        command.add(java);
+        switch (sharing)
+        {
+            case "off":
+                command.add("-Xshare:off");
+                break;
+            case "appcds":
+                archive = Files.createTempFile("xmlfactory", ".jsa");
+                Files.delete(archive);
+                List<String> dump = new ArrayList<>(Arrays.asList(java, "-XX:ArchiveClassesAtExit=" + archive));
+                dump.addAll(main);
+                run(dump);
+                command.add("-XX:SharedArchiveFile=" + archive);
+                command.add("-Xshare:on");
+                break;
+            default:
+                break;
+        }
+        command.addAll(main);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (archive != null)
+        {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    private static int run(List<String> command) throws IOException, InterruptedException
+    {
+        Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        int exitValue = process.waitFor();
+        if (exitValue != 0)
+        {
+            throw new IllegalStateException("Exit value " + exitValue + " from " + command);
+        }
+        return exitValue;
+    }
+
+    @Benchmark
+    public int startAndWarmUp() throws Exception
+    {
+        return run(command);
+    }
+}
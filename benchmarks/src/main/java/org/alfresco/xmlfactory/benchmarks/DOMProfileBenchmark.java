@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.XMLFactoryConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the deferred and eager DOM profiles on repository export shaped documents, for callers that read a few
+ * values, read every node, or change the document. Run with {@code -prof gc} to see the memory allocated per
+ * operation as well as the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DOMProfileBenchmark
+{
+    private static final String CM = "http://www.alfresco.org/model/content/1.0";
+
+    @Param({"deferred", "eager"})
+    public String profile;
+
+    @Param({"medium", "large"})
+    public String size;
+
+    private byte[] document;
+    private DocumentBuilderFactory factory;
+
+    @Setup
+    public void setUp()
+    {
+        document = SampleDocuments.generate(SampleDocuments.records(size));
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOM_PROFILE,
+                Collections.singletonList(profile));
+        factory = new DocumentBuilderFactoryXercesImpl();
+        factory.setNamespaceAware(true);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOM_PROFILE,
+                null);
+    }
+
+    private Document parse() throws Exception
+    {
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(document));
+    }
+
+    /**
+     * Parses and reads the first record's name, as a read-mostly caller looking up a few values would.
+     */
+    @Benchmark
+    public String readFew() throws Exception
+    {
+        Element first = (Element) parse().getElementsByTagNameNS(CM, "content").item(0);
+        return first.getElementsByTagNameNS(CM, "name").item(0).getTextContent();
+    }
+
+    /**
+     * Parses and visits every node.
+     */
+    @Benchmark
+    public int readAll() throws Exception
+    {
+        return count(parse().getDocumentElement());
+    }
+
+    /**
+     * Parses and changes every record, as a mutating caller would.
+     */
+    @Benchmark
+    public Document modify() throws Exception
+    {
+        Document dom = parse();
+        NodeList records = dom.getElementsByTagNameNS(CM, "content");
+        for (int i = 0; i < records.getLength(); i++)
+        {
+            Element record = (Element) records.item(i);
+            record.setAttribute("processed", "true");
+            record.appendChild(dom.createElementNS(CM, "cm:modified"));
+        }
+        return dom;
+    }
+
+    private static int count(Node node)
+    {
+        int count = 1;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            count += count(child);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.PrologScanner;
+import org.alfresco.xmlfactory.XMLFactoryConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Measures the {@code reject} DOCTYPE policy on a benign upload and on a hostile one, which has an internal subset
+ * of nested entities that the parser expands until it reaches the entity expansion limit. {@code parse} creates a
+ * DocumentBuilder and parses, so the prolog is scanned inside the builder when the policy is {@code reject}.
+ * {@code scanFirst} calls the {@link PrologScanner} itself and only creates a DocumentBuilder for documents without a
+ * DOCTYPE.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DoctypePrescanBenchmark
+{
+    @Param({"allow", "reject"})
+    public String policy;
+
+    @Param({"benign", "hostile"})
+    public String input;
+
+    private byte[] document;
+    private DocumentBuilderFactory factory;
+
+    @Setup
+    public void setUp()
+    {
+        document = "hostile".equals(input) ? hostile() : SampleDocuments.generate(SampleDocuments.SMALL);
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOCTYPE_POLICY,
+                Collections.singletonList(policy));
+        factory = new DocumentBuilderFactoryXercesImpl();
+        factory.setNamespaceAware(true);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOCTYPE_POLICY,
+                null);
+    }
+
+    private static byte[] hostile()
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<!DOCTYPE lolz [\n<!ENTITY lol0 \"lol\">\n");
+        for (int i = 1; i < 10; i++)
+        {
+            xml.append("<!ENTITY lol").append(i).append(" \"");
+            for (int j = 0; j < 10; j++)
+            {
+                xml.append("&lol").append(i - 1).append(';');
+            }
+            xml.append("\">\n");
+        }
+        xml.append("]>\n<lolz>&lol9;</lolz>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return {@code true} if the document was parsed, {@code false} if it was rejected or went over a limit.
+     */
+    @Benchmark
+    public boolean parse() throws Exception
+    {
+        try
+        {
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(document)) != null;
+        }
+        catch (SAXException e)
+        {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public boolean scanFirst() throws Exception
+    {
+        if (PrologScanner.scan(document, 0, Math.min(document.length, PrologScanner.DEFAULT_SCAN_SIZE))
+                != PrologScanner.Prolog.NO_DOCTYPE)
+        {
+            return false;
+        }
+        return parse();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.SAXParserFactoryXercesImpl;
+import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+import org.apache.xerces.jaxp.SAXParserFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of creating factories: through the service loader, directly, and as the plain Xerces factories that do no
+ * hardening. The {@code stackDepth} parameter adds frames above the call, as the white list check walks the stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FactoryCreationBenchmark
+{
+    @Param({"0", "50", "200"})
+    public int stackDepth;
+
+    @Benchmark
+    public Object documentBuilderFactoryNewInstance()
+    {
+        return CallStack.call(stackDepth, DocumentBuilderFactory::newInstance);
+    }
+
+    @Benchmark
+    public Object saxParserFactoryNewInstance()
+    {
+        return CallStack.call(stackDepth, SAXParserFactory::newInstance);
+    }
+
+    @Benchmark
+    public Object documentBuilderFactoryAlfresco()
+    {
+        return CallStack.call(stackDepth, DocumentBuilderFactoryXercesImpl::new);
+    }
+
+    @Benchmark
+    public Object saxParserFactoryAlfresco()
+    {
+        return CallStack.call(stackDepth, SAXParserFactoryXercesImpl::new);
+    }
+
+    @Benchmark
+    public Object documentBuilderFactoryXerces()
+    {
+        return CallStack.call(stackDepth, DocumentBuilderFactoryImpl::new);
+    }
+
+    @Benchmark
+    public Object saxParserFactoryXerces()
+    {
+        return CallStack.call(stackDepth, SAXParserFactoryImpl::new);
+    }
+}
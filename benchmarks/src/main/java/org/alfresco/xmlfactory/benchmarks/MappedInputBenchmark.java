@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.xmlfactory.MappedInputSources;
+import org.alfresco.xmlfactory.SecureSAXParsers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Compares SAX parsing of a local file through a buffered FileInputStream with parsing through
+ * {@link MappedInputSources}, for documents from 1MB to 2GB. The files are generated in {@code java.io.tmpdir} at
+ * the start of each trial and deleted at the end, so the 2GB run needs that much free disk space. The first
+ * iteration of each trial also measures reading the file from disk; later ones read it from the page cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MappedInputBenchmark
+{
+    private static final long MB = 1024L * 1024;
+
+    @Param({"1", "16", "256", "2048"})
+    public long sizeMB;
+
+    private Path file;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        file = Files.createTempFile("MappedInputBenchmark", ".xml");
+        SampleDocuments.write(file, sizeMB * MB);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long stream() throws Exception
+    {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file)))
+        {
+            InputSource source = new InputSource(in);
+            source.setSystemId(file.toUri().toString());
+            return parse(source);
+        }
+    }
+
+    @Benchmark
+    public long mapped() throws Exception
+    {
+        InputSource source = MappedInputSources.open(file);
+        try
+        {
+            return parse(source);
+        }
+        finally
+        {
+            source.getByteStream().close();
+        }
+    }
+
+    private long parse(InputSource source) throws Exception
+    {
+        ElementCounter counter = new ElementCounter();
+        SecureSAXParsers.getInstance().parse(source, counter);
+        return counter.count;
+    }
+
+    private static class ElementCounter extends DefaultHandler
+    {
+        long count;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            count++;
+        }
+    }
+}
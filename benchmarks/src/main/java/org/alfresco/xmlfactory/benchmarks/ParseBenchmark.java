@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.SAXParserFactoryXercesImpl;
+import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+import org.apache.xerces.jaxp.SAXParserFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * End to end parsing, including parser creation, of small, medium and large documents with the hardened factories
+ * and the plain Xerces factories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark
+{
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private byte[] document;
+    private DocumentBuilderFactory alfrescoDocumentBuilderFactory;
+    private DocumentBuilderFactory xercesDocumentBuilderFactory;
+    private SAXParserFactory alfrescoSAXParserFactory;
+    private SAXParserFactory xercesSAXParserFactory;
+
+    @Setup
+    public void setUp()
+    {
+        document = SampleDocuments.generate(SampleDocuments.records(size));
+        alfrescoDocumentBuilderFactory = namespaceAware(new DocumentBuilderFactoryXercesImpl());
+        xercesDocumentBuilderFactory = namespaceAware(new DocumentBuilderFactoryImpl());
+        alfrescoSAXParserFactory = new SAXParserFactoryXercesImpl();
+        alfrescoSAXParserFactory.setNamespaceAware(true);
+        xercesSAXParserFactory = new SAXParserFactoryImpl();
+        xercesSAXParserFactory.setNamespaceAware(true);
+    }
+
+    private static DocumentBuilderFactory namespaceAware(DocumentBuilderFactory factory)
+    {
+        factory.setNamespaceAware(true);
+        return factory;
+    }
+
+    @Benchmark
+    public Document domAlfresco() throws Exception
+    {
+        return alfrescoDocumentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(document));
+    }
+
+    @Benchmark
+    public Document domXerces() throws Exception
+    {
+        return xercesDocumentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(document));
+    }
+
+    @Benchmark
+    public void saxAlfresco(Blackhole blackhole) throws Exception
+    {
+        alfrescoSAXParserFactory.newSAXParser()
+                .parse(new ByteArrayInputStream(document), new CountingHandler(blackhole));
+    }
+
+    @Benchmark
+    public void saxXerces(Blackhole blackhole) throws Exception
+    {
+        xercesSAXParserFactory.newSAXParser()
+                .parse(new ByteArrayInputStream(document), new CountingHandler(blackhole));
+    }
+
+    private static class CountingHandler extends DefaultHandler
+    {
+        private final Blackhole blackhole;
+
+        CountingHandler(Blackhole blackhole)
+        {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            blackhole.consume(localName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            blackhole.consume(length);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.SAXParserFactoryXercesImpl;
+import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+import org.apache.xerces.jaxp.SAXParserFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of newDocumentBuilder() and newSAXParser() on an existing hardened factory, compared with the plain Xerces
+ * factories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserCreationBenchmark
+{
+    private DocumentBuilderFactory alfrescoDocumentBuilderFactory;
+    private DocumentBuilderFactory xercesDocumentBuilderFactory;
+    private SAXParserFactory alfrescoSAXParserFactory;
+    private SAXParserFactory xercesSAXParserFactory;
+
+    @Setup
+    public void setUp()
+    {
+        alfrescoDocumentBuilderFactory = new DocumentBuilderFactoryXercesImpl();
+        xercesDocumentBuilderFactory = new DocumentBuilderFactoryImpl();
+        alfrescoSAXParserFactory = new SAXParserFactoryXercesImpl();
+        xercesSAXParserFactory = new SAXParserFactoryImpl();
+    }
+
+    @Benchmark
+    public DocumentBuilder newDocumentBuilderAlfresco() throws Exception
+    {
+        return alfrescoDocumentBuilderFactory.newDocumentBuilder();
+    }
+
+    @Benchmark
+    public DocumentBuilder newDocumentBuilderXerces() throws Exception
+    {
+        return xercesDocumentBuilderFactory.newDocumentBuilder();
+    }
+
+    @Benchmark
+    public SAXParser newSAXParserAlfresco() throws Exception
+    {
+        return alfrescoSAXParserFactory.newSAXParser();
+    }
+
+    @Benchmark
+    public SAXParser newSAXParserXerces() throws Exception
+    {
+        return xercesSAXParserFactory.newSAXParser();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates the XML documents parsed by the benchmarks, so that no test data has to be checked in.
+ */
+public final class SampleDocuments
+{
+    /** Number of records in a small (~1KB), medium (~100KB) and large (~10MB) document. */
+    public static final int SMALL = 5;
+    public static final int MEDIUM = 500;
+    public static final int LARGE = 50000;
+
+    private SampleDocuments()
+    {
+    }
+
+    /**
+     * @param size one of "small", "medium" or "large".
+     * @return the number of records to generate.
+     */
+    public static int records(String size)
+    {
+        switch (size)
+        {
+            case "small":
+                return SMALL;
+            case "medium":
+                return MEDIUM;
+            case "large":
+                return LARGE;
+            default:
+                throw new IllegalArgumentException("Unknown document size: " + size);
+        }
+    }
+
+    /**
+     * @param records number of record elements.
+     * @return a UTF-8 encoded document similar in shape to repository metadata exports.
+     */
+    public static byte[] generate(int records)
+    {
+        StringBuilder xml = new StringBuilder(records * 200 + 100);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<view:view xmlns:view=\"http://www.alfresco.org/view/repository/1.0\"");
+        xml.append(" xmlns:cm=\"http://www.alfresco.org/model/content/1.0\">\n");
+        for (int i = 0; i < records; i++)
+        {
+            xml.append("  <cm:content view:childName=\"cm:doc").append(i).append("\">\n");
+            xml.append("    <view:properties>\n");
+            xml.append("      <cm:name>Document ").append(i).append(".txt</cm:name>\n");
+            xml.append("      <cm:title>Title &amp; description of document ").append(i).append("</cm:title>\n");
+            xml.append("      <cm:created>2016-01-01T00:00:00.000Z</cm:created>\n");
+            xml.append("    </view:properties>\n");
+            xml.append("  </cm:content>\n");
+        }
+        xml.append("</view:view>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a document of the same shape as {@link #generate(int)} to a file, record by record, so that documents
+     * larger than the heap can be created.
+     *
+     * @param file the file to write.
+     * @param bytes the approximate size of the document. It stops at the first record that takes it past this size.
+     */
+    public static void write(Path file, long bytes) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<view:view xmlns:view=\"http://www.alfresco.org/view/repository/1.0\""
+                    + " xmlns:cm=\"http://www.alfresco.org/model/content/1.0\">\n";
+            writer.write(header);
+            long written = header.length();
+            for (int i = 0; written < bytes; i++)
+            {
+                String record = "  <cm:content view:childName=\"cm:doc" + i + "\">\n"
+                        + "    <view:properties>\n"
+                        + "      <cm:name>Document " + i + ".txt</cm:name>\n"
+                        + "      <cm:title>Title &amp; description of document " + i + "</cm:title>\n"
+                        + "      <cm:created>2016-01-01T00:00:00.000Z</cm:created>\n"
+                        + "    </view:properties>\n"
+                        + "  </cm:content>\n";
+                writer.write(record);
+                written += record.length();
+            }
+            writer.write("</view:view>\n");
+        }
+    }
+}
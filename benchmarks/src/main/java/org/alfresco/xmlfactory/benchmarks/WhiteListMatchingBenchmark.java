@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.alfresco.xmlfactory.DocumentBuilderFactoryXercesImpl;
+import org.alfresco.xmlfactory.XMLFactoryConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creates DocumentBuilderFactories with white lists of 10, 100 and 1000 entries, split between class names, package
+ * prefixes and methods, to show that the time taken depends on the frames walked rather than the number of
+ * entries. With {@code match} false no entry matches, so the whole stack is walked.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WhiteListMatchingBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    @Param({"true", "false"})
+    public boolean match;
+
+    @Param({"50"})
+    public int stackDepth;
+
+    @Setup
+    public void setUp()
+    {
+        List<String> whiteList = new ArrayList<>();
+        for (int i = 0; whiteList.size() < entries - 1; i++)
+        {
+            whiteList.add("org.example.app" + i + ".Caller");
+            whiteList.add("org.example.lib" + i + ".*");
+            whiteList.add("org.example.app" + i + ".Service#handle");
+        }
+        whiteList = whiteList.subList(0, entries - 1);
+        whiteList.add(match ? getClass().getPackage().getName() + ".*" : "org.example.Last");
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                XMLFactoryConfiguration.WHITE_LIST_CALLERS, whiteList);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                XMLFactoryConfiguration.WHITE_LIST_CALLERS, null);
+    }
+
+    @Benchmark
+    public Object newFactory()
+    {
+        return CallStack.call(stackDepth, DocumentBuilderFactoryXercesImpl::new);
+    }
+}
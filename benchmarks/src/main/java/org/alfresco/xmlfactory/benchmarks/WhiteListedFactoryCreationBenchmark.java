@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Same as {@link FactoryCreationBenchmark#documentBuilderFactoryNewInstance()}, but with this class added to the
+ * white lists, so the factories are not hardened. The lambdas are the first frames above JAXP, so the white list
+ * check stops before reaching the extra frames added by {@code stackDepth}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Djavax.xml.parsers.DocumentBuilderFactory.white.list.callers=" +
+                "org.alfresco.xmlfactory.benchmarks.WhiteListedFactoryCreationBenchmark",
+        "-Djavax.xml.parsers.SAXParserFactory.white.list.callers=" +
+                "org.alfresco.xmlfactory.benchmarks.WhiteListedFactoryCreationBenchmark"})
+@State(Scope.Benchmark)
+public class WhiteListedFactoryCreationBenchmark
+{
+    @Param({"0", "50", "200"})
+    public int stackDepth;
+
+    @Benchmark
+    public Object documentBuilderFactoryNewInstance()
+    {
+        return CallStack.call(stackDepth, () -> DocumentBuilderFactory.newInstance());
+    }
+
+    @Benchmark
+    public Object saxParserFactoryNewInstance()
+    {
+        return CallStack.call(stackDepth, () -> SAXParserFactory.newInstance());
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses batches of independent documents in parallel with hardened, namespace aware DocumentBuilders, for bulk
+ * imports that would otherwise create a factory and builder on each worker thread.<p>
+ *
+ * Documents are parsed on the supplied Executor, which may use platform threads or, on Java 21 and later, virtual
+ * threads ({@code Executors.newVirtualThreadPerTaskExecutor()}). DocumentBuilders are reused through a
+ * {@link ParserPool} rather than kept per thread. Results are returned as a lazy Stream: inputs are only taken from
+ * the input Stream as results are consumed, so no more than {@code maxInFlight} documents are being parsed or
+ * waiting to be consumed at any one time. Results may be returned in input order, or as soon as each is ready.<p>
+ *
+ * A document that cannot be read or parsed, or whose mapper throws, results in a failed {@link Result}; the other
+ * documents in the batch are not affected. Streams opened for a document are closed once it has been parsed.
+ */
+public class BatchParser
+{
+    /**
+     * Opens an input for parsing.
+     *
+     * @param <I> the input type
+     */
+    public interface SourceOpener<I>
+    {
+        InputSource open(I input) throws IOException;
+    }
+
+    /**
+     * Turns a parsed document into the result for that document, on the thread that parsed it.
+     *
+     * @param <R> the result type
+     */
+    public interface DocumentMapper<R>
+    {
+        R map(Document document) throws Exception;
+    }
+
+    /**
+     * The outcome of parsing one input.
+     *
+     * @param <I> the input type
+     * @param <R> the result type
+     */
+    public static final class Result<I, R>
+    {
+        private final I input;
+        private final R value;
+        private final Exception error;
+
+        private Result(I input, R value, Exception error)
+        {
+            this.input = input;
+            this.value = value;
+            this.error = error;
+        }
+
+        public I getInput()
+        {
+            return input;
+        }
+
+        /**
+         * @return the mapped document, or {@code null} if parsing failed.
+         */
+        public R getValue()
+        {
+            return value;
+        }
+
+        /**
+         * @return why parsing failed, or {@code null} if it succeeded.
+         */
+        public Exception getError()
+        {
+            return error;
+        }
+
+        public boolean isSuccess()
+        {
+            return error == null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Result[" + input + (error == null ? "" : " failed: " + error) + "]";
+        }
+    }
+
+    // Failures are reported through each Result, rather than on stderr by the default handler.
+    private static final ErrorHandler ERROR_HANDLER = new DefaultHandler();
+
+    private final Executor executor;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final ParserPool<DocumentBuilder> pool;
+
+    /**
+     * @param executor runs the parsing. It is not shut down by this class.
+     * @param maxInFlight the maximum number of documents being parsed or waiting to be consumed.
+     * @param ordered {@code true} to return results in input order, {@code false} to return each when it is ready.
+     */
+    public BatchParser(Executor executor, int maxInFlight, boolean ordered)
+    {
+        if (executor == null)
+        {
+            throw new IllegalArgumentException("executor must be supplied");
+        }
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+
+        DocumentBuilderFactory factory = DocumentBuilderFactoryXercesImpl.newHardenedInstance();
+        factory.setNamespaceAware(true);
+        pool = ParserPool.newDocumentBuilderPool(factory, maxInFlight);
+    }
+
+    /**
+     * Parses files.
+     */
+    public Stream<Result<Path, Document>> parseFiles(Stream<Path> paths)
+    {
+        return parse(paths, path ->
+        {
+            InputSource source = new InputSource(Files.newInputStream(path));
+            source.setSystemId(path.toUri().toString());
+            return source;
+        }, document -> document);
+    }
+
+    /**
+     * Parses each input, mapping each document to a result on the thread that parsed it, so that a large DOM need
+     * not be kept once the wanted values have been taken from it.
+     *
+     * @param inputs the inputs, which are consumed lazily.
+     * @param opener opens each input.
+     * @param mapper maps each document.
+     * @return a lazy Stream of results, one per input.
+     */
+    public <I, R> Stream<Result<I, R>> parse(Stream<I> inputs, SourceOpener<I> opener, DocumentMapper<R> mapper)
+    {
+        ResultSpliterator<I, R> spliterator = new ResultSpliterator<>(inputs.iterator(), opener, mapper);
+        return StreamSupport.stream(spliterator, false).onClose(inputs::close);
+    }
+
+    /**
+     * @return the pool of DocumentBuilders, for its statistics.
+     */
+    public ParserPool<DocumentBuilder> getPool()
+    {
+        return pool;
+    }
+
+    private <I, R> Result<I, R> parseOne(I input, SourceOpener<I> opener, DocumentMapper<R> mapper)
+    {
+        InputSource source = null;
+        DocumentBuilder builder = null;
+        try
+        {
+            source = opener.open(input);
+            builder = pool.borrow();
+            builder.setErrorHandler(ERROR_HANDLER);
+            Document document = builder.parse(source);
+            return new Result<>(input, mapper.map(document), null);
+        }
+        catch (Exception e)
+        {
+            return new Result<>(input, null, e);
+        }
+        finally
+        {
+            pool.release(builder);
+            close(source);
+        }
+    }
+
+    private static void close(InputSource source)
+    {
+        if (source != null)
+        {
+            try (InputStream in = source.getByteStream(); Reader reader = source.getCharacterStream())
+            {
+                // Closed by try-with-resources
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Submits inputs as results are taken, keeping at most maxInFlight outstanding.
+     */
+    private class ResultSpliterator<I, R> extends Spliterators.AbstractSpliterator<Result<I, R>>
+    {
+        private final Iterator<I> inputs;
+        private final SourceOpener<I> opener;
+        private final DocumentMapper<R> mapper;
+
+        // Ordered: the outstanding results in input order. Unordered: results as they complete.
+        private final Deque<CompletableFuture<Result<I, R>>> outstanding = new ArrayDeque<>();
+        private final BlockingQueue<CompletableFuture<Result<I, R>>> completed = new LinkedBlockingQueue<>();
+        private int inFlight;
+
+        private ResultSpliterator(Iterator<I> inputs, SourceOpener<I> opener, DocumentMapper<R> mapper)
+        {
+            super(Long.MAX_VALUE, ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL);
+            this.inputs = inputs;
+            this.opener = opener;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Result<I, R>> action)
+        {
+            while (inFlight < maxInFlight && inputs.hasNext())
+            {
+                submit(inputs.next());
+            }
+            if (inFlight == 0)
+            {
+                return false;
+            }
+
+            Result<I, R> result;
+            try
+            {
+                // Exceptions are already results, so join only throws for an Error.
+                result = (ordered ? outstanding.removeFirst() : completed.take()).join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for a parsed document");
+            }
+            inFlight--;
+            action.accept(result);
+            return true;
+        }
+
+        private void submit(I input)
+        {
+            CompletableFuture<Result<I, R>> future;
+            try
+            {
+                future = CompletableFuture.supplyAsync(() -> parseOne(input, opener, mapper), executor);
+            }
+            catch (RejectedExecutionException e)
+            {
+                future = CompletableFuture.completedFuture(new Result<>(input, null, e));
+            }
+            inFlight++;
+            if (ordered)
+            {
+                outstanding.addLast(future);
+            }
+            else
+            {
+                CompletableFuture<Result<I, R>> submitted = future;
+                future.whenComplete((result, error) -> completed.add(submitted));
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe, least recently used cache that holds at most {@code maxSize} entries. Used to hold compiled objects
+ * that are expensive to create and safe to share between threads.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class BoundedCache<K, V>
+{
+    private final int maxSize;
+    private final Map<K, V> map;
+    // Not a monitor, so a virtual thread waiting for the cache parks instead of holding on to its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    BoundedCache(int maxSize)
+    {
+        this.maxSize = Math.max(maxSize, 0);
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > BoundedCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value or {@code null}.
+     */
+    V get(K key)
+    {
+        V value;
+        lock.lock();
+        try
+        {
+            value = map.get(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (value == null)
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return value;
+    }
+
+    void put(K key, V value)
+    {
+        if (maxSize > 0)
+        {
+            lock.lock();
+            try
+            {
+                map.put(key, value);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    void clear()
+    {
+        lock.lock();
+        try
+        {
+            map.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int size()
+    {
+        lock.lock();
+        try
+        {
+            return map.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    long getMisses()
+    {
+        return misses.sum();
+    }
+}
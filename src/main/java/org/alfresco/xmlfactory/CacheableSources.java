@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Stylesheet or schema sources that have been read into memory, so that they have a cache key made from their
+ * system ids and a hash of their content, and can still be compiled afterwards. Only {@link StreamSource}s with an
+ * InputStream or Reader can be read like this. Other sources, including those that only have a system id, are left
+ * for the compiling factory to load with its own access checks, and are not cached.<p>
+ *
+ * Files pulled in by {@code xsl:include}, {@code xsl:import}, {@code xs:include}, {@code xs:import} or
+ * {@code xs:redefine} are not part of the key, so a source that looks as if it has any of them is not cached either.
+ * Otherwise an edited included file would not be seen until the entry was evicted.
+ */
+class CacheableSources
+{
+    // Errs towards not caching: a match in a comment or text only costs a recompile.
+    private static final Pattern INCLUDES = Pattern.compile("<([\\w.-]+:)?(include|import|redefine)[\\s/>]");
+
+    private final String key;
+    private final Source[] sources;
+
+    private CacheableSources(String key, Source[] sources)
+    {
+        this.key = key;
+        this.sources = sources;
+    }
+
+    /**
+     * Reads the sources into memory.
+     *
+     * @param prefix added to the key, to separate entries compiled with different configurations.
+     * @param sources to be read. The streams or readers in them are consumed.
+     * @return the sources and their key, or {@code null} if any of them is not a stream that can be read, in which
+     * case none of them have been touched.
+     * @throws IOException if a source cannot be read.
+     */
+    static CacheableSources read(String prefix, Source... sources) throws IOException
+    {
+        for (Source source : sources)
+        {
+            if (!(source instanceof StreamSource) ||
+                    (((StreamSource) source).getReader() == null && ((StreamSource) source).getInputStream() == null))
+            {
+                return null;
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        StringBuilder key = new StringBuilder(prefix);
+        boolean includes = false;
+        Source[] replayable = new Source[sources.length];
+        for (int i = 0; i < sources.length; i++)
+        {
+            StreamSource source = (StreamSource) sources[i];
+            String systemId = source.getSystemId();
+            key.append('|').append(systemId);
+
+            StreamSource copy;
+            if (source.getReader() != null)
+            {
+                String content = readAll(source.getReader());
+                includes |= INCLUDES.matcher(content).find();
+                digest.update((byte) 'R');
+                digest.update(content.getBytes(StandardCharsets.UTF_8));
+                copy = new StreamSource(new StringReader(content), systemId);
+            }
+            else
+            {
+                byte[] content = readAll(source.getInputStream());
+                includes |= mayInclude(content);
+                digest.update((byte) 'B');
+                digest.update(content);
+                copy = new StreamSource(new ByteArrayInputStream(content), systemId);
+            }
+            copy.setPublicId(source.getPublicId());
+            replayable[i] = copy;
+        }
+        key.append('|').append(HexFormat.of().formatHex(digest.digest()));
+        return new CacheableSources(includes ? null : key.toString(), replayable);
+    }
+
+    /**
+     * @return the cache key, or {@code null} if the sources were read but must not be cached.
+     */
+    String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return in-memory copies of the sources that were read.
+     */
+    Source[] getSources()
+    {
+        return sources;
+    }
+
+    /**
+     * Looks for includes in the bytes as if they were ASCII. Content with 0x00 bytes is probably UTF-16 or UTF-32,
+     * which cannot be checked in this way, so is treated as if it had includes.
+     */
+    private static boolean mayInclude(byte[] content)
+    {
+        for (byte b : content)
+        {
+            if (b == 0)
+            {
+                return true;
+            }
+        }
+        return INCLUDES.matcher(new String(content, StandardCharsets.ISO_8859_1)).find();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is required by the Java platform", e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        return in.readAllBytes();
+    }
+
+    private static String readAll(Reader reader) throws IOException
+    {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[8192];
+        int length;
+        while ((length = reader.read(buffer)) != -1)
+        {
+            content.append(buffer, 0, length);
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathEvaluationResult;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.xml.sax.InputSource;
+
+/**
+ * An XPath from {@link XPathFactoryImpl} that looks its expressions up in the shared cache before compiling them,
+ * including those passed as strings to the {@code evaluate} methods. Like any XPath it must only be used by one
+ * thread at a time, but the expressions it returns may be shared.
+ */
+class CachingXPath implements XPath
+{
+    private final XPath delegate;
+    private final XPathFactoryImpl factory;
+    private final String cacheKeyPrefix;
+    private final BoundedCache<Key, SharedExpression> cache;
+
+    CachingXPath(XPath delegate, XPathFactoryImpl factory, String cacheKeyPrefix,
+            BoundedCache<Key, SharedExpression> cache)
+    {
+        this.delegate = delegate;
+        this.factory = factory;
+        this.cacheKeyPrefix = cacheKeyPrefix;
+        this.cache = cache;
+    }
+
+    @Override
+    public XPathExpression compile(String expression) throws XPathExpressionException
+    {
+        if (expression == null)
+        {
+            return delegate.compile(expression);
+        }
+
+        Key key = new Key(cacheKeyPrefix, expression, delegate.getNamespaceContext(),
+                delegate.getXPathVariableResolver(), delegate.getXPathFunctionResolver());
+        SharedExpression shared = cache.get(key);
+        if (shared == null)
+        {
+            SharedCompiler<XPathFactory> compiler = factory.getCompiler();
+            if (compiler == null)
+            {
+                return delegate.compile(expression);
+            }
+
+            // Compiled here rather than on first use, so that a bad expression fails now and is not cached.
+            shared = new SharedExpression(key, compiler);
+            cache.put(key, shared);
+        }
+        return shared;
+    }
+
+    @Override
+    public Object evaluate(String expression, Object item, QName returnType) throws XPathExpressionException
+    {
+        return compile(expression).evaluate(item, returnType);
+    }
+
+    @Override
+    public String evaluate(String expression, Object item) throws XPathExpressionException
+    {
+        return compile(expression).evaluate(item);
+    }
+
+    @Override
+    public Object evaluate(String expression, InputSource source, QName returnType) throws XPathExpressionException
+    {
+        return compile(expression).evaluate(source, returnType);
+    }
+
+    @Override
+    public String evaluate(String expression, InputSource source) throws XPathExpressionException
+    {
+        return compile(expression).evaluate(source);
+    }
+
+    @Override
+    public <T> T evaluateExpression(String expression, Object item, Class<T> type) throws XPathExpressionException
+    {
+        return compile(expression).evaluateExpression(item, type);
+    }
+
+    @Override
+    public XPathEvaluationResult<?> evaluateExpression(String expression, Object item) throws XPathExpressionException
+    {
+        return compile(expression).evaluateExpression(item);
+    }
+
+    @Override
+    public <T> T evaluateExpression(String expression, InputSource source, Class<T> type)
+            throws XPathExpressionException
+    {
+        return compile(expression).evaluateExpression(source, type);
+    }
+
+    @Override
+    public XPathEvaluationResult<?> evaluateExpression(String expression, InputSource source)
+            throws XPathExpressionException
+    {
+        return compile(expression).evaluateExpression(source);
+    }
+
+    @Override
+    public void reset()
+    {
+        delegate.reset();
+    }
+
+    @Override
+    public void setXPathVariableResolver(XPathVariableResolver resolver)
+    {
+        delegate.setXPathVariableResolver(resolver);
+    }
+
+    @Override
+    public XPathVariableResolver getXPathVariableResolver()
+    {
+        return delegate.getXPathVariableResolver();
+    }
+
+    @Override
+    public void setXPathFunctionResolver(XPathFunctionResolver resolver)
+    {
+        delegate.setXPathFunctionResolver(resolver);
+    }
+
+    @Override
+    public XPathFunctionResolver getXPathFunctionResolver()
+    {
+        return delegate.getXPathFunctionResolver();
+    }
+
+    @Override
+    public void setNamespaceContext(NamespaceContext namespaceContext)
+    {
+        delegate.setNamespaceContext(namespaceContext);
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext()
+    {
+        return delegate.getNamespaceContext();
+    }
+
+    /**
+     * Everything captured by the JDK when an expression is compiled.
+     */
+    static final class Key
+    {
+        private final String cacheKeyPrefix;
+        private final String expression;
+        private final NamespaceContext namespaceContext;
+        private final XPathVariableResolver variableResolver;
+        private final XPathFunctionResolver functionResolver;
+
+        Key(String cacheKeyPrefix, String expression, NamespaceContext namespaceContext,
+                XPathVariableResolver variableResolver, XPathFunctionResolver functionResolver)
+        {
+            this.cacheKeyPrefix = cacheKeyPrefix;
+            this.expression = expression;
+            this.namespaceContext = namespaceContext;
+            this.variableResolver = variableResolver;
+            this.functionResolver = functionResolver;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return expression.equals(other.expression) && cacheKeyPrefix.equals(other.cacheKeyPrefix)
+                    && Objects.equals(namespaceContext, other.namespaceContext)
+                    && Objects.equals(variableResolver, other.variableResolver)
+                    && Objects.equals(functionResolver, other.functionResolver);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(cacheKeyPrefix, expression, namespaceContext, variableResolver, functionResolver);
+        }
+    }
+
+    /**
+     * A compiled expression that may be evaluated by several threads at once. The JDK's compiled expressions keep
+     * state while they are evaluated, so each evaluation borrows one of a few compiled copies, compiling another
+     * when they are all in use.
+     */
+    static final class SharedExpression implements XPathExpression
+    {
+        static final int MAX_IDLE = 8;
+
+        private final Key key;
+        private final SharedCompiler<XPathFactory> compiler;
+        private final Deque<XPathExpression> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        SharedExpression(Key key, SharedCompiler<XPathFactory> compiler) throws XPathExpressionException
+        {
+            this.key = key;
+            this.compiler = compiler;
+            release(compile());
+        }
+
+        private XPathExpression compile() throws XPathExpressionException
+        {
+            return compiler.compile(factory ->
+            {
+                XPath xpath = factory.newXPath();
+                // The JDK refuses nulls, which are the defaults anyway.
+                if (key.namespaceContext != null)
+                {
+                    xpath.setNamespaceContext(key.namespaceContext);
+                }
+                if (key.variableResolver != null)
+                {
+                    xpath.setXPathVariableResolver(key.variableResolver);
+                }
+                if (key.functionResolver != null)
+                {
+                    xpath.setXPathFunctionResolver(key.functionResolver);
+                }
+                return xpath.compile(key.expression);
+            });
+        }
+
+        private interface Evaluation<R>
+        {
+            R apply(XPathExpression compiled) throws XPathExpressionException;
+        }
+
+        private <R> R evaluate(Evaluation<R> evaluation) throws XPathExpressionException
+        {
+            XPathExpression compiled = borrow();
+            try
+            {
+                return evaluation.apply(compiled);
+            }
+            finally
+            {
+                release(compiled);
+            }
+        }
+
+        private XPathExpression borrow() throws XPathExpressionException
+        {
+            XPathExpression compiled = idle.pollFirst();
+            if (compiled != null)
+            {
+                idleCount.decrementAndGet();
+                return compiled;
+            }
+            return compile();
+        }
+
+        private void release(XPathExpression compiled)
+        {
+            if (idleCount.incrementAndGet() > MAX_IDLE)
+            {
+                idleCount.decrementAndGet();
+                return;
+            }
+            idle.offerFirst(compiled);
+        }
+
+        int getIdleCount()
+        {
+            return idleCount.get();
+        }
+
+        @Override
+        public Object evaluate(Object item, QName returnType) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluate(item, returnType));
+        }
+
+        @Override
+        public String evaluate(Object item) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluate(item));
+        }
+
+        @Override
+        public Object evaluate(InputSource source, QName returnType) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluate(source, returnType));
+        }
+
+        @Override
+        public String evaluate(InputSource source) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluate(source));
+        }
+
+        @Override
+        public <T> T evaluateExpression(Object item, Class<T> type) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluateExpression(item, type));
+        }
+
+        @Override
+        public XPathEvaluationResult<?> evaluateExpression(Object item) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluateExpression(item));
+        }
+
+        @Override
+        public <T> T evaluateExpression(InputSource source, Class<T> type) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluateExpression(source, type));
+        }
+
+        @Override
+        public XPathEvaluationResult<?> evaluateExpression(InputSource source) throws XPathExpressionException
+        {
+            return evaluate(compiled -> compiled.evaluateExpression(source));
+        }
+
+        @Override
+        public String toString()
+        {
+            return key.expression;
+        }
+    }
+}
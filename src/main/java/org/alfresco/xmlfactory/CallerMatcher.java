@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches stack frames against caller patterns, as used by the white lists and the per caller settings. A pattern
+ * may be:
+ * <li>a class name, such as {@code org.example.Importer}, matching any method of that class.</li>
+ * <li>a package prefix, such as {@code org.example.*}, matching classes in that package and its sub packages, other
+ * than the JDK, Xerces and this library's factory classes.</li>
+ * <li>a method, such as {@code org.example.Importer#importModel}, matching only that method.</li>
+ * The patterns are compiled once, so each frame costs a hash lookup however many patterns there are. The result
+ * for each class is remembered, so package prefixes are only worked out once per class.
+ *
+ * @param <V> the value held for each pattern
+ */
+class CallerMatcher<V>
+{
+    static final String PACKAGE_SUFFIX = ".*";
+    static final char METHOD_SEPARATOR = '#';
+
+    // Limits the classes remembered, so an application that generates classes cannot use up memory.
+    static final int MAX_CLASSES = 10000;
+
+    private static final Object NO_MATCH = new Object();
+
+    private final Map<String, V> classes = new HashMap<>();
+    private final Map<String, V> packages = new HashMap<>();
+    private final Map<String, Map<String, V>> methods = new HashMap<>();
+    private final ConcurrentMap<String, Object> matchByClass = new ConcurrentHashMap<>();
+    private final boolean empty;
+
+    /**
+     * @param valuesByPattern values keyed on pattern. Blank patterns are ignored.
+     */
+    CallerMatcher(Map<String, V> valuesByPattern)
+    {
+        for (Map.Entry<String, V> entry : valuesByPattern.entrySet())
+        {
+            String pattern = entry.getKey().trim();
+            int hash = pattern.indexOf(METHOD_SEPARATOR);
+            if (pattern.isEmpty())
+            {
+                continue;
+            }
+            else if (hash != -1)
+            {
+                methods.computeIfAbsent(pattern.substring(0, hash), k -> new HashMap<>())
+                        .put(pattern.substring(hash+1), entry.getValue());
+            }
+            else if (pattern.endsWith(PACKAGE_SUFFIX))
+            {
+                packages.put(pattern.substring(0, pattern.length() - PACKAGE_SUFFIX.length()), entry.getValue());
+            }
+            else
+            {
+                classes.put(pattern, entry.getValue());
+            }
+        }
+        empty = classes.isEmpty() && packages.isEmpty() && methods.isEmpty();
+    }
+
+    /**
+     * Creates a matcher where the value of each pattern is the pattern itself, such as a white list.
+     */
+    static CallerMatcher<String> of(List<String> patterns)
+    {
+        Map<String, String> valuesByPattern = new HashMap<>();
+        for (String pattern : patterns)
+        {
+            valuesByPattern.put(pattern.trim(), pattern.trim());
+        }
+        return new CallerMatcher<>(valuesByPattern);
+    }
+
+    static <V> CallerMatcher<V> empty()
+    {
+        return new CallerMatcher<>(Collections.emptyMap());
+    }
+
+    boolean isEmpty()
+    {
+        return empty;
+    }
+
+    /**
+     * @return the value of the most specific pattern matching the frame: method, then class, then the longest
+     * package prefix. {@code null} if none match.
+     */
+    V match(StackWalker.StackFrame frame)
+    {
+        return match(frame.getClassName(), frame.getMethodName());
+    }
+
+    @SuppressWarnings("unchecked")
+    V match(String className, String methodName)
+    {
+        if (empty)
+        {
+            return null;
+        }
+        if (!methods.isEmpty())
+        {
+            Map<String, V> classMethods = methods.get(className);
+            if (classMethods != null)
+            {
+                V value = classMethods.get(methodName);
+                if (value != null)
+                {
+                    return value;
+                }
+            }
+        }
+        Object match = matchByClass.get(className);
+        if (match == null)
+        {
+            match = matchClass(className);
+            if (matchByClass.size() < MAX_CLASSES)
+            {
+                matchByClass.put(className, match);
+            }
+        }
+        return match == NO_MATCH ? null : (V) match;
+    }
+
+    /**
+     * @return the number of classes whose match is remembered
+     */
+    int getMatchedClassCount()
+    {
+        return matchByClass.size();
+    }
+
+    private Object matchClass(String className)
+    {
+        V value = classes.get(className);
+        if (value != null)
+        {
+            return value;
+        }
+
+        if (!packages.isEmpty() && !FactoryHelper.isInternalClass(className))
+        {
+            for (int dot = className.lastIndexOf('.'); dot > 0; dot = className.lastIndexOf('.', dot - 1))
+            {
+                value = packages.get(className.substring(0, dot));
+                if (value != null)
+                {
+                    return value;
+                }
+            }
+        }
+        return NO_MATCH;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * Resolves DTDs and other external entities from a local catalog, holding their content in memory, so parsers that
+ * load DTDs do no file or network I/O for each document. Anything not in the catalog is refused: the parser is given
+ * empty content, as if the entity had not been loaded. Set with these properties of
+ * {@code javax.xml.parsers.DocumentBuilderFactory} or {@code javax.xml.parsers.SAXParserFactory}:
+ * <li>{@code entity.catalog} ';' separated entries, each either {@code <publicId or systemId>=<location>}, or just a
+ * {@code <location>} that is a directory holding entities that are looked up by the file name of their system id.
+ * A location is a file path, a {@code file:} URL, or {@code classpath:} followed by a resource name. Empty (the
+ * default) means no catalog, so no resolver is installed.</li>
+ * <li>{@code entity.cache.size} the number of entities held in memory (default 100).</li>
+ * The resolver is installed on each new DocumentBuilder and SAXParser. A resolver set by the caller is asked first.
+ * Without a catalog a resolver would refuse every entity. Hardened parsers do not load external entities anyway, so
+ * it would only change white listed callers, which may rely on loading their DTDs from disk or the network.
+ */
+class CatalogEntityResolver implements EntityResolver2
+{
+    private static final Log logger = LogFactory.getLog(CatalogEntityResolver.class);
+
+    static final String ENTITY_CATALOG = "entity.catalog";
+    static final String ENTITY_CACHE_SIZE = "entity.cache.size";
+
+    static final String CLASSPATH_PREFIX = "classpath:";
+
+    private final Map<String, String> locationsById;
+    private final Map<String, String> locationsByFileName;
+    private final List<String> classpathDirectories;
+    private final BoundedCache<String, byte[]> cache;
+
+    CatalogEntityResolver(List<String> entries, int cacheSize)
+    {
+        Map<String, String> byId = new HashMap<>();
+        Map<String, String> byFileName = new HashMap<>();
+        List<String> classpath = new ArrayList<>();
+        for (String entry : entries)
+        {
+            int i = entry.indexOf('=');
+            if (i > 0)
+            {
+                byId.put(entry.substring(0, i).trim(), entry.substring(i+1).trim());
+            }
+            else if (entry.startsWith(CLASSPATH_PREFIX))
+            {
+                String directory = entry.substring(CLASSPATH_PREFIX.length());
+                classpath.add(directory.isEmpty() || directory.endsWith("/") ? directory : directory + '/');
+            }
+            else
+            {
+                indexDirectory(entry, byFileName);
+            }
+        }
+        locationsById = Collections.unmodifiableMap(byId);
+        locationsByFileName = Collections.unmodifiableMap(byFileName);
+        classpathDirectories = Collections.unmodifiableList(classpath);
+        cache = new BoundedCache<>(cacheSize);
+    }
+
+    /**
+     * Lists a directory once, so looking up an entity by file name does not touch the file system.
+     */
+    private static void indexDirectory(String location, Map<String, String> byFileName)
+    {
+        try
+        {
+            Path directory = toPath(location);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, Files::isRegularFile))
+            {
+                for (Path file : files)
+                {
+                    byFileName.putIfAbsent(file.getFileName().toString(), file.toString());
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            if (logger.isWarnEnabled())
+            {
+                logger.warn("Ignoring " + ENTITY_CATALOG + " directory " + location, e);
+            }
+        }
+    }
+
+    private static Path toPath(String location)
+    {
+        return location.startsWith("file:") ? Paths.get(URI.create(location)) : Paths.get(location);
+    }
+
+    /**
+     * Returns the resolver of the current configuration for the factory type.
+     *
+     * @return the resolver, or {@code null} if there is no catalog.
+     */
+    static CatalogEntityResolver get(Class<?> factoryType)
+    {
+        return ConfigurationSnapshot.getInstance().getDerived(Resolvers.class, Resolvers::new).get(factoryType);
+    }
+
+    /**
+     * Asks the caller's resolver first and then the catalog, in the same way for SAX and DOM.
+     *
+     * @param callerResolver set by the caller, or {@code null}.
+     * @param catalog the catalog, or {@code null} if there is none.
+     */
+    static InputSource resolveEntity(EntityResolver callerResolver, CatalogEntityResolver catalog, String name,
+            String publicId, String baseURI, String systemId) throws SAXException, IOException
+    {
+        InputSource source = null;
+        if (callerResolver instanceof EntityResolver2)
+        {
+            source = ((EntityResolver2) callerResolver).resolveEntity(name, publicId, baseURI, systemId);
+        }
+        else if (callerResolver != null)
+        {
+            source = callerResolver.resolveEntity(publicId, systemId);
+        }
+        if (source == null && catalog != null)
+        {
+            source = catalog.resolveEntity(name, publicId, baseURI, systemId);
+        }
+        return source;
+    }
+
+    /**
+     * Only the caller's resolver can supply an external subset. The catalog does not add one.
+     */
+    static InputSource getExternalSubset(EntityResolver callerResolver, String name, String baseURI)
+            throws SAXException, IOException
+    {
+        return callerResolver instanceof EntityResolver2
+                ? ((EntityResolver2) callerResolver).getExternalSubset(name, baseURI)
+                : null;
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException
+    {
+        return resolveEntity(null, publicId, null, systemId);
+    }
+
+    @Override
+    public InputSource getExternalSubset(String name, String baseURI)
+    {
+        return null;
+    }
+
+    @Override
+    public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId)
+            throws SAXException, IOException
+    {
+        String location = getLocation(publicId, baseURI, systemId);
+        InputSource source;
+        if (location == null)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Refused entity " + publicId + " " + systemId + " as it is not in the " + ENTITY_CATALOG);
+            }
+            source = new InputSource(new StringReader(""));
+        }
+        else
+        {
+            source = new InputSource(new ByteArrayInputStream(getContent(location)));
+        }
+        source.setPublicId(publicId);
+        source.setSystemId(systemId);
+        return source;
+    }
+
+    /**
+     * @return the location of the entity in the catalog, or {@code null} if it is not there.
+     */
+    String getLocation(String publicId, String baseURI, String systemId)
+    {
+        String location = publicId == null ? null : locationsById.get(publicId);
+        if (location == null && systemId != null)
+        {
+            location = locationsById.get(systemId);
+            if (location == null && baseURI != null)
+            {
+                try
+                {
+                    location = locationsById.get(URI.create(baseURI).resolve(systemId).toString());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // Not a URI, so only the file name can be matched
+                }
+            }
+            if (location == null)
+            {
+                location = getLocationByFileName(systemId);
+            }
+        }
+        return location;
+    }
+
+    private String getLocationByFileName(String systemId)
+    {
+        int slash = Math.max(systemId.lastIndexOf('/'), systemId.lastIndexOf('\\'));
+        String fileName = systemId.substring(slash + 1);
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals(".."))
+        {
+            return null;
+        }
+        String location = locationsByFileName.get(fileName);
+        for (int i = 0; location == null && i < classpathDirectories.size(); i++)
+        {
+            String resourceName = classpathDirectories.get(i) + fileName;
+            if (getClassLoader().getResource(resourceName) != null)
+            {
+                location = CLASSPATH_PREFIX + resourceName;
+            }
+        }
+        return location;
+    }
+
+    private byte[] getContent(String location) throws IOException
+    {
+        byte[] content = cache.get(location);
+        if (content == null)
+        {
+            content = load(location);
+            cache.put(location, content);
+        }
+        return content;
+    }
+
+    private static byte[] load(String location) throws IOException
+    {
+        if (location.startsWith(CLASSPATH_PREFIX))
+        {
+            URL url = getClassLoader().getResource(location.substring(CLASSPATH_PREFIX.length()));
+            if (url == null)
+            {
+                throw new IOException(ENTITY_CATALOG + " resource not found: " + location);
+            }
+            try (InputStream in = url.openStream())
+            {
+                return in.readAllBytes();
+            }
+        }
+        return Files.readAllBytes(toPath(location));
+    }
+
+    private static ClassLoader getClassLoader()
+    {
+        ClassLoader loader = CatalogEntityResolver.class.getClassLoader();
+        return loader == null ? ClassLoader.getSystemClassLoader() : loader;
+    }
+
+    BoundedCache<String, byte[]> getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * The resolvers of one version of the configuration.
+     */
+    static class Resolvers
+    {
+        private final CatalogEntityResolver documentBuilderResolver;
+        private final CatalogEntityResolver saxParserResolver;
+
+        Resolvers(ConfigurationSnapshot configuration)
+        {
+            documentBuilderResolver = create(configuration, DocumentBuilderFactory.class);
+            saxParserResolver = create(configuration, SAXParserFactory.class);
+        }
+
+        private static CatalogEntityResolver create(ConfigurationSnapshot configuration, Class<?> factoryType)
+        {
+            List<String> entries = configuration.getConfiguration(factoryType, ENTITY_CATALOG, Collections.emptyList());
+            return entries.isEmpty()
+                    ? null
+                    : new CatalogEntityResolver(entries,
+                            configuration.getIntConfiguration(factoryType, ENTITY_CACHE_SIZE, 100));
+        }
+
+        CatalogEntityResolver get(Class<?> factoryType)
+        {
+            return factoryType == DocumentBuilderFactory.class ? documentBuilderResolver : saxParserResolver;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One version of the configuration of all factory types, resolved in one pass the first time any factory needs it.
+ * Each system property, {@code $JAVA_HOME/lib/<factoryName>.properties} file and
+ * {@code META-INF/services/<factoryName>.properties} resource is looked up and read at most once, rather than once
+ * per property and factory class. Values set through {@link XMLFactoryConfiguration} take precedence, otherwise the
+ * lookup order is the same as {@link FactoryHelper#getConfiguration}.<p>
+ *
+ * A snapshot does not change once it is the current one. A reload builds a new snapshot with a higher version and
+ * swaps it in, so reading the current configuration while creating a factory takes no lock. Factories already
+ * created keep the configuration they were created with.
+ */
+class ConfigurationSnapshot
+{
+    private static final Log logger = LogFactory.getLog(ConfigurationSnapshot.class);
+
+    static final List<Class<?>> FACTORY_TYPES = Collections.unmodifiableList(Arrays.asList(
+            DocumentBuilderFactory.class, SAXParserFactory.class, XMLInputFactory.class,
+            TransformerFactory.class, SchemaFactory.class, XPathFactory.class));
+
+    static final List<String> PROPERTY_NAMES;
+    static
+    {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                FactoryHelper.FEATURES_TO_ENABLE, FactoryHelper.FEATURES_TO_DISABLE, FactoryHelper.WHITE_LIST_CALLERS,
+                SecureSAXParsers.POOL_SIZE, TransformerFactoryImpl.TEMPLATES_CACHE_SIZE,
+                SchemaFactoryXercesImpl.SCHEMA_CACHE_SIZE, XPathFactoryImpl.XPATH_CACHE_SIZE,
+                DOMProfile.DOM_PROFILE, DOMProfile.DOM_PROFILES,
+                ParserResources.SYMBOL_TABLE_SIZE, ParserResources.TRUSTED_GRAMMARS,
+                CatalogEntityResolver.ENTITY_CATALOG, CatalogEntityResolver.ENTITY_CACHE_SIZE,
+                DoctypePolicy.DOCTYPE_POLICY, DoctypePolicy.DOCTYPE_POLICIES, FactoryProfile.FACTORY_PROFILES));
+        names.addAll(ParserLimits.PROPERTY_NAMES);
+        PROPERTY_NAMES = Collections.unmodifiableList(names);
+    }
+
+    // Marks a property that has no value in any source, as the map cannot hold nulls.
+    private static final List<String> NOT_SET = Collections.emptyList();
+
+    private static final ReentrantLock RELOAD_LOCK = new ReentrantLock();
+
+    private static class Holder
+    {
+        private static final AtomicReference<ConfigurationSnapshot> CURRENT = new AtomicReference<>(
+                new ConfigurationSnapshot(new FactoryHelper(), 1, Collections.emptyMap()));
+
+        static
+        {
+            XMLFactoryConfiguration.watchIfConfigured();
+        }
+    }
+
+    private final FactoryHelper factoryHelper;
+    private final long version;
+    private final Map<String, List<String>> overrides;
+    private final OnceMap<String, List<String>> values = new OnceMap<>();
+    private final OnceMap<Class<?>, FactorySettings<?>> factorySettings = new OnceMap<>();
+    private final OnceMap<Class<?>, Object> derived = new OnceMap<>();
+
+    ConfigurationSnapshot(FactoryHelper factoryHelper)
+    {
+        this(factoryHelper, 0, Collections.emptyMap());
+    }
+
+    private ConfigurationSnapshot(FactoryHelper factoryHelper, long version, Map<String, List<String>> overrides)
+    {
+        this.factoryHelper = factoryHelper;
+        this.version = version;
+        this.overrides = overrides;
+        for (Class<?> factoryClass : FACTORY_TYPES)
+        {
+            for (String propertyName : PROPERTY_NAMES)
+            {
+                resolve(factoryClass, propertyName);
+            }
+        }
+    }
+
+    /**
+     * @return the current snapshot. The first is loaded on first use.
+     */
+    static ConfigurationSnapshot getInstance()
+    {
+        return Holder.CURRENT.get();
+    }
+
+    /**
+     * Re-reads every source and makes the result the current snapshot.
+     *
+     * @param factoryClass the factory type of a value to set programmatically, or {@code null} to just reload.
+     * @param propertyName the property to set.
+     * @param values the new values, or {@code null} to go back to the values from the other sources.
+     * @return the new current snapshot.
+     */
+    static ConfigurationSnapshot reload(Class<?> factoryClass, String propertyName, List<String> values)
+    {
+        RELOAD_LOCK.lock();
+        try
+        {
+            ConfigurationSnapshot current = getInstance();
+            Map<String, List<String>> overrides = current.overrides;
+            if (factoryClass != null)
+            {
+                overrides = new HashMap<>(overrides);
+                String key = factoryClass.getName()+'.'+propertyName;
+                if (values == null)
+                {
+                    overrides.remove(key);
+                }
+                else
+                {
+                    overrides.put(key, Collections.unmodifiableList(Arrays.asList(values.toArray(new String[0]))));
+                }
+                overrides = Collections.unmodifiableMap(overrides);
+            }
+
+            ConfigurationSnapshot snapshot = new ConfigurationSnapshot(new FactoryHelper(), current.version+1,
+                    overrides);
+            Holder.CURRENT.set(snapshot);
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Loaded XML factory configuration version "+snapshot.version);
+            }
+            return snapshot;
+        }
+        finally
+        {
+            RELOAD_LOCK.unlock();
+        }
+    }
+
+    private List<String> resolve(Class<?> factoryClass, String propertyName)
+    {
+        String key = factoryClass.getName()+'.'+propertyName;
+        return values.get(key, () ->
+        {
+            List<String> override = overrides.get(key);
+            if (override != null)
+            {
+                return override;
+            }
+            List<String> configured = factoryHelper.getConfiguration(factoryClass, propertyName, null);
+            return configured == null ? NOT_SET : Collections.unmodifiableList(configured);
+        });
+    }
+
+    /**
+     * @return the version of this snapshot. Each reload increases it by one.
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns a configured list in the same way as {@link FactoryHelper#getConfiguration}. Properties outside
+     * {@link #PROPERTY_NAMES} are resolved on first request and then remembered.
+     */
+    List<String> getConfiguration(Class<?> factoryClass, String propertyName, List<String> defaultValues)
+    {
+        List<String> value = resolve(factoryClass, propertyName);
+        return value == NOT_SET ? defaultValues : value;
+    }
+
+    int getIntConfiguration(Class<?> factoryClass, String propertyName, int defaultValue)
+    {
+        return FactoryHelper.toInt(factoryClass, propertyName, getConfiguration(factoryClass, propertyName, null),
+                defaultValue);
+    }
+
+    /**
+     * Returns the settings of a factory type in this snapshot, compiling its {@link FeaturePlan} the first time.
+     *
+     * @param compiler compiles a plan from the features to enable and disable.
+     */
+    @SuppressWarnings("unchecked")
+    <F> FactorySettings<F> getFactorySettings(Class<F> factoryType, List<String> defaultFeaturesToEnable,
+            List<String> defaultFeaturesToDisable, BiFunction<List<String>, List<String>, FeaturePlan<F>> compiler)
+    {
+        return (FactorySettings<F>) factorySettings.get(factoryType, () -> new FactorySettings<>(this, factoryType,
+                defaultFeaturesToEnable, defaultFeaturesToDisable, compiler));
+    }
+
+    /**
+     * Returns an object built from this snapshot, such as parsed property values, building it the first time.
+     *
+     * @param type the type of the object, which is also its key.
+     * @param builder builds the object from this snapshot.
+     */
+    <T> T getDerived(Class<T> type, Function<ConfigurationSnapshot, T> builder)
+    {
+        return type.cast(derived.get(type, () -> builder.apply(this)));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the code that creates the most factories and parsers, such as a library calling
+ * {@code DocumentBuilderFactory.newInstance()} in a loop. One in every N creations is sampled: the stack is walked
+ * to the first frame outside JAXP and this library, and the count for that class and method is increased. Only the
+ * top callers are kept, using the Space-Saving algorithm, so memory use is bounded however many callers there are.
+ * The estimated counts are available through JMX ({@link FactoryMetricsMXBean#getTopCreators()}) and are logged at
+ * INFO every so often while creations are being sampled. Controlled by system properties:
+ * <li>{@code org.alfresco.xmlfactory.profiler.sample} sample 1 in every N creations (default 100). Zero or less turns
+ * the profiler off.</li>
+ * <li>{@code org.alfresco.xmlfactory.profiler.top} the number of callers reported (default 20).</li>
+ * <li>{@code org.alfresco.xmlfactory.profiler.logIntervalSeconds} the minimum time between summary log lines
+ * (default 600). Zero or less turns the log line off.</li>
+ */
+class CreationProfiler
+{
+    private static final Log logger = LogFactory.getLog(CreationProfiler.class);
+
+    static final String SAMPLE_PROPERTY = "org.alfresco.xmlfactory.profiler.sample";
+    static final String TOP_PROPERTY = "org.alfresco.xmlfactory.profiler.top";
+    static final String LOG_INTERVAL_PROPERTY = "org.alfresco.xmlfactory.profiler.logIntervalSeconds";
+
+    // More callers are tracked than reported, so the reported counts are close to exact.
+    private static final int CAPACITY_FACTOR = 4;
+
+    private static final CreationProfiler INSTANCE = new CreationProfiler(
+            DebugStackSampler.getInteger(SAMPLE_PROPERTY, 100), DebugStackSampler.getInteger(TOP_PROPERTY, 20),
+            DebugStackSampler.getInteger(LOG_INTERVAL_PROPERTY, 600));
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+    private final int sample;
+    private final int top;
+    private final int capacity;
+    private final long logIntervalNanos;
+
+    // Space-Saving counters keyed on "<type> <class>#<method>". Guarded by lock.
+    private final Map<String, Counter> counters = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong nextLog;
+
+    CreationProfiler(int sample, int top, int logIntervalSeconds)
+    {
+        this.sample = sample;
+        this.top = Math.max(top, 1);
+        this.capacity = this.top * CAPACITY_FACTOR;
+        this.logIntervalNanos = logIntervalSeconds <= 0 ? 0 : TimeUnit.SECONDS.toNanos(logIntervalSeconds);
+        this.nextLog = new AtomicLong(System.nanoTime() + logIntervalNanos);
+    }
+
+    static CreationProfiler getInstance()
+    {
+        return INSTANCE;
+    }
+
+    boolean isEnabled()
+    {
+        return sample > 0;
+    }
+
+    /**
+     * Counts the creation against its caller, if it is sampled.
+     *
+     * @param type the type of factory or parser created.
+     */
+    void created(String type)
+    {
+        if (sample <= 0 || (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0))
+        {
+            return;
+        }
+        String caller = STACK_WALKER.walk(frames -> frames
+                .filter(frame -> !FactoryHelper.isInternalClass(frame.getClassName()))
+                .findFirst()
+                .map(frame -> frame.getClassName() + CallerMatcher.METHOD_SEPARATOR + frame.getMethodName())
+                .orElse("unknown"));
+        record(type + ' ' + caller);
+
+        if (logIntervalNanos > 0)
+        {
+            long now = System.nanoTime();
+            long next = nextLog.get();
+            if (now - next >= 0 && nextLog.compareAndSet(next, now + logIntervalNanos) && logger.isInfoEnabled())
+            {
+                logger.info(getSummary());
+            }
+        }
+    }
+
+    void record(String key)
+    {
+        lock.lock();
+        try
+        {
+            Counter counter = counters.get(key);
+            if (counter == null)
+            {
+                if (counters.size() < capacity)
+                {
+                    counter = new Counter();
+                }
+                else
+                {
+                    // Replace the smallest counter. The new caller keeps its count, as it may have been one of the
+                    // callers counted by it, so estimates are an upper bound.
+                    String smallestKey = null;
+                    Counter smallest = null;
+                    for (Map.Entry<String, Counter> entry : counters.entrySet())
+                    {
+                        if (smallest == null || entry.getValue().count < smallest.count)
+                        {
+                            smallestKey = entry.getKey();
+                            smallest = entry.getValue();
+                        }
+                    }
+                    counters.remove(smallestKey);
+                    counter = smallest;
+                }
+                counters.put(key, counter);
+            }
+            counter.count++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the estimated number of creations of the top callers, largest first, keyed on
+     * {@code <type> <class>#<method>}. Estimates are the sampled counts multiplied by the sample rate.
+     */
+    Map<String, Long> getTopCreators()
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            for (Map.Entry<String, Counter> entry : counters.entrySet())
+            {
+                entries.add(Map.entry(entry.getKey(), entry.getValue().count * Math.max(sample, 1)));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        Map<String, Long> topCreators = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(top, entries.size())))
+        {
+            topCreators.put(entry.getKey(), entry.getValue());
+        }
+        return topCreators;
+    }
+
+    String getSummary()
+    {
+        StringJoiner summary = new StringJoiner(", ",
+                "Top XML factory and parser creators (estimated from 1 in " + sample + " creations): ", "");
+        for (Map.Entry<String, Long> entry : getTopCreators().entrySet())
+        {
+            summary.add(entry.getValue() + " " + entry.getKey());
+        }
+        return summary.toString();
+    }
+
+    void reset()
+    {
+        lock.lock();
+        try
+        {
+            counters.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static class Counter
+    {
+        long count;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * How the DOM of a parsed document is built. A profile may be set for all DocumentBuilderFactories with the
+ * {@code dom.profile} property, and for the factories created by particular classes with the {@code dom.profiles}
+ * property, for example:
+ * <pre>
+ * javax.xml.parsers.DocumentBuilderFactory.dom.profile=eager
+ * javax.xml.parsers.DocumentBuilderFactory.dom.profiles=org.example.ReportReader=deferred;org.example.Editor=eager
+ * </pre>
+ * Callers are matched in the same way as the white list, so may be classes, package prefixes or methods. If no
+ * profile is set the Xerces default, which is deferred, is left alone.
+ */
+enum DOMProfile
+{
+    /**
+     * Nodes are only created when they are first visited. Parsing is quicker and uses less memory when only part of
+     * a document is read, but each node costs more when it is visited and when the document is changed.
+     */
+    DEFERRED(true),
+
+    /**
+     * Every node is created while parsing. Best for documents that are changed or visited in full.
+     */
+    EAGER(false);
+
+    static final String FEATURE_DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+    static final String DOM_PROFILE = "dom.profile";
+    static final String DOM_PROFILES = "dom.profiles";
+
+    private static final Log logger = LogFactory.getLog(DOMProfile.class);
+
+    private final boolean deferNodeExpansion;
+
+    DOMProfile(boolean deferNodeExpansion)
+    {
+        this.deferNodeExpansion = deferNodeExpansion;
+    }
+
+    void apply(DocumentBuilderFactory factory)
+    {
+        try
+        {
+            factory.setFeature(FEATURE_DEFER_NODE_EXPANSION, deferNodeExpansion);
+        }
+        catch (ParserConfigurationException e)
+        {
+            if (logger.isWarnEnabled())
+            {
+                logger.warn("Failed to apply the " + this + " DOM profile to " + factory.getClass().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the profile with the name, ignoring case, or {@code null} if there is none.
+     */
+    static DOMProfile forName(String name)
+    {
+        try
+        {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The profiles of one version of the configuration.
+     */
+    static class Selection
+    {
+        private final DOMProfile defaultProfile;
+        private final Map<String, DOMProfile> callerProfiles;
+        private final CallerMatcher<DOMProfile> callerMatcher;
+
+        Selection(ConfigurationSnapshot configuration)
+        {
+            List<String> value = configuration.getConfiguration(DocumentBuilderFactory.class, DOM_PROFILE,
+                    Collections.emptyList());
+            defaultProfile = value.isEmpty() ? null : parse(DOM_PROFILE, value.get(0));
+
+            Map<String, DOMProfile> profiles = new HashMap<>();
+            for (String entry : configuration.getConfiguration(DocumentBuilderFactory.class, DOM_PROFILES,
+                    Collections.emptyList()))
+            {
+                int i = entry.indexOf('=');
+                DOMProfile profile = i <= 0 ? null : parse(DOM_PROFILES, entry.substring(i+1));
+                if (profile != null)
+                {
+                    profiles.put(entry.substring(0, i).trim(), profile);
+                }
+                else if (i <= 0 && logger.isWarnEnabled())
+                {
+                    logger.warn("Ignoring " + DOM_PROFILES + " entry, as it is not <className>=<profile>: " + entry);
+                }
+            }
+            callerProfiles = Collections.unmodifiableMap(profiles);
+            callerMatcher = new CallerMatcher<>(callerProfiles);
+        }
+
+        private static DOMProfile parse(String propertyName, String name)
+        {
+            DOMProfile profile = forName(name);
+            if (profile == null && logger.isWarnEnabled())
+            {
+                logger.warn("Ignoring unknown " + propertyName + " " + name);
+            }
+            return profile;
+        }
+
+        /**
+         * Returns the profile for the class that asked for a factory, or the default profile.
+         *
+         * @param useCaller {@code false} if the factory is shared, so only the default profile applies.
+         * @return the profile, or {@code null} if the Xerces default should be left alone.
+         */
+        DOMProfile select(FactoryHelper factoryHelper, boolean useCaller)
+        {
+            if (useCaller && !callerMatcher.isEmpty())
+            {
+                DOMProfile profile = factoryHelper.getCallerValue(callerMatcher);
+                if (profile != null)
+                {
+                    return profile;
+                }
+            }
+            return defaultProfile;
+        }
+
+        Map<String, DOMProfile> getCallerProfiles()
+        {
+            return callerProfiles;
+        }
+
+        DOMProfile getDefaultProfile()
+        {
+            return defaultProfile;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which factory and parser creations have their call stack captured when DEBUG logging is on, so that
+ * turning DEBUG on in production does not log a stack trace for every parser created. Controlled by system
+ * properties:
+ * <li>{@code org.alfresco.xmlfactory.debug.stack.depth} the number of frames captured (default 30).</li>
+ * <li>{@code org.alfresco.xmlfactory.debug.stack.sample} capture 1 in every N creations (default 1).</li>
+ * <li>{@code org.alfresco.xmlfactory.debug.stack.maxPerSecond} the maximum number of stacks captured each second
+ * (default 20). Zero or less removes the limit.</li>
+ */
+class DebugStackSampler
+{
+    static final String DEPTH_PROPERTY = "org.alfresco.xmlfactory.debug.stack.depth";
+    static final String SAMPLE_PROPERTY = "org.alfresco.xmlfactory.debug.stack.sample";
+    static final String MAX_PER_SECOND_PROPERTY = "org.alfresco.xmlfactory.debug.stack.maxPerSecond";
+
+    private static final long ONE_SECOND = 1_000_000_000L;
+
+    private final int depth;
+    private final int sample;
+    private final int maxPerSecond;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger capturedInWindow = new AtomicInteger();
+
+    DebugStackSampler()
+    {
+        this(getInteger(DEPTH_PROPERTY, 30), getInteger(SAMPLE_PROPERTY, 1), getInteger(MAX_PER_SECOND_PROPERTY, 20));
+    }
+
+    DebugStackSampler(int depth, int sample, int maxPerSecond)
+    {
+        this.depth = Math.max(depth, 0);
+        this.sample = Math.max(sample, 1);
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * @return {@code true} if the stack of this call should be captured.
+     */
+    boolean shouldCapture()
+    {
+        if (depth == 0 || calls.incrementAndGet() % sample != 0)
+        {
+            return false;
+        }
+        if (maxPerSecond <= 0)
+        {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= ONE_SECOND && windowStart.compareAndSet(start, now))
+        {
+            capturedInWindow.set(0);
+        }
+        return capturedInWindow.incrementAndGet() <= maxPerSecond;
+    }
+
+    /**
+     * Captures at most {@code depth} frames, skipping the first {@code skip}. Frames above that are not
+     * materialised.
+     */
+    List<String> capture(int skip)
+    {
+        return StackWalker.getInstance().walk(frames -> frames
+                .skip(skip)
+                .limit(depth)
+                .map(Object::toString)
+                .collect(Collectors.toList()));
+    }
+
+    static int getInteger(String propertyName, int defaultValue)
+    {
+        try
+        {
+            String value = System.getProperty(propertyName);
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        }
+        catch (SecurityException | NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+}
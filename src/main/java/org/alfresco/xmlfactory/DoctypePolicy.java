@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+
+/**
+ * What to do with documents that have a DOCTYPE. Disallowing DOCTYPEs with a feature breaks transformations, so
+ * instead the prolog of each document may be scanned by the {@link PrologScanner} before it reaches the parser. A
+ * policy may be set for all DocumentBuilderFactories or SAXParserFactories with the {@code doctype.policy} property,
+ * and for the factories created by particular classes with the {@code doctype.policies} property, for example:
+ * <pre>
+ * javax.xml.parsers.SAXParserFactory.doctype.policies=org.example.upload.*=reject
+ * </pre>
+ * Callers are matched in the same way as the white list. If no policy is set, documents are not scanned.
+ */
+enum DoctypePolicy
+{
+    /**
+     * Documents are passed to the parser without being scanned.
+     */
+    ALLOW,
+
+    /**
+     * Documents are scanned and rejected if they have a DOCTYPE, or if the scan cannot tell, for example because the
+     * prolog is padded out with comments.
+     */
+    REJECT;
+
+    static final String DOCTYPE_POLICY = "doctype.policy";
+    static final String DOCTYPE_POLICIES = "doctype.policies";
+
+    private static final Log logger = LogFactory.getLog(DoctypePolicy.class);
+
+    /**
+     * Returns the policy of the current configuration for the class that asked for a factory.
+     *
+     * @param useCaller {@code false} if the factory is shared, so only the default policy applies.
+     */
+    static DoctypePolicy get(Class<?> factoryType, FactoryHelper factoryHelper, boolean useCaller)
+    {
+        return ConfigurationSnapshot.getInstance().getDerived(Selection.class, Selection::new)
+                .select(factoryType, factoryHelper, useCaller);
+    }
+
+    /**
+     * Scans the prolog of a document if this policy requires it. If the source only has a system id, the document is
+     * opened here so that it can be scanned, and must be closed by the caller with
+     * {@link ParserLimits#closeOpened(InputSource, InputSource)}.
+     *
+     * @return a source that reads the whole document, or the original source if it was not scanned.
+     * @throws SAXParseException if the document is rejected.
+     */
+    InputSource check(InputSource source) throws SAXParseException, IOException
+    {
+        if (this == ALLOW)
+        {
+            return source;
+        }
+
+        InputSource checked = new InputSource();
+        checked.setSystemId(source.getSystemId());
+        checked.setPublicId(source.getPublicId());
+        checked.setEncoding(source.getEncoding());
+        PrologScanner.Prolog prolog;
+        if (source.getCharacterStream() != null)
+        {
+            Reader reader = source.getCharacterStream();
+            reader = reader.markSupported() ? reader : new BufferedReader(reader, PrologScanner.DEFAULT_SCAN_SIZE);
+            checked.setCharacterStream(reader);
+            prolog = PrologScanner.scan(reader);
+        }
+        else
+        {
+            InputStream in = source.getByteStream();
+            boolean opened = in == null;
+            if (opened)
+            {
+                if (source.getSystemId() == null)
+                {
+                    return source;
+                }
+                in = ParserLimits.toURL(source.getSystemId()).openStream();
+            }
+            in = in.markSupported() ? in : new BufferedInputStream(in, PrologScanner.DEFAULT_SCAN_SIZE);
+            checked.setByteStream(in);
+            try
+            {
+                prolog = PrologScanner.scan(in, source.getEncoding());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if (opened)
+                {
+                    in.close();
+                }
+                throw e;
+            }
+            if (opened && prolog != PrologScanner.Prolog.NO_DOCTYPE)
+            {
+                in.close();
+            }
+        }
+
+        FactoryMetrics.getInstance().prologScanned(prolog);
+        if (prolog != PrologScanner.Prolog.NO_DOCTYPE)
+        {
+            FactoryMetrics.getInstance().doctypeRejected();
+            String reason = prolog == PrologScanner.Prolog.DOCTYPE
+                    ? "has a DOCTYPE"
+                    : "has a prolog that could not be scanned";
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Rejected " + (source.getSystemId() == null ? "document" : source.getSystemId())
+                        + " as it " + reason);
+            }
+            throw new SAXParseException("The document " + reason + ", which is not allowed by the "
+                    + DOCTYPE_POLICY, source.getPublicId(), source.getSystemId(), -1, -1);
+        }
+        return checked;
+    }
+
+    /**
+     * @return the policy with the name, ignoring case, or {@code null} if there is none.
+     */
+    static DoctypePolicy forName(String name)
+    {
+        try
+        {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The policies of one version of the configuration.
+     */
+    static class Selection
+    {
+        private final Map<Class<?>, DoctypePolicy> defaultPolicies = new HashMap<>();
+        private final Map<Class<?>, CallerMatcher<DoctypePolicy>> callerPolicies = new HashMap<>();
+
+        Selection(ConfigurationSnapshot configuration)
+        {
+            for (Class<?> factoryType : Arrays.asList(DocumentBuilderFactory.class, SAXParserFactory.class))
+            {
+                List<String> value = configuration.getConfiguration(factoryType, DOCTYPE_POLICY,
+                        Collections.emptyList());
+                DoctypePolicy defaultPolicy = value.isEmpty() ? null : parse(DOCTYPE_POLICY, value.get(0));
+                defaultPolicies.put(factoryType, defaultPolicy == null ? ALLOW : defaultPolicy);
+
+                Map<String, DoctypePolicy> policies = new HashMap<>();
+                for (String entry : configuration.getConfiguration(factoryType, DOCTYPE_POLICIES,
+                        Collections.emptyList()))
+                {
+                    int i = entry.indexOf('=');
+                    DoctypePolicy policy = i <= 0 ? null : parse(DOCTYPE_POLICIES, entry.substring(i+1));
+                    if (policy != null)
+                    {
+                        policies.put(entry.substring(0, i).trim(), policy);
+                    }
+                    else if (i <= 0 && logger.isWarnEnabled())
+                    {
+                        logger.warn("Ignoring " + DOCTYPE_POLICIES + " entry, as it is not <className>=<policy>: "
+                                + entry);
+                    }
+                }
+                callerPolicies.put(factoryType, new CallerMatcher<>(policies));
+            }
+        }
+
+        private static DoctypePolicy parse(String propertyName, String name)
+        {
+            DoctypePolicy policy = forName(name);
+            if (policy == null && logger.isWarnEnabled())
+            {
+                logger.warn("Ignoring unknown " + propertyName + " " + name);
+            }
+            return policy;
+        }
+
+        DoctypePolicy select(Class<?> factoryType, FactoryHelper factoryHelper, boolean useCaller)
+        {
+            CallerMatcher<DoctypePolicy> callers = callerPolicies.get(factoryType);
+            if (useCaller && callers != null && !callers.isEmpty())
+            {
+                DoctypePolicy policy = factoryHelper.getCallerValue(callers);
+                if (policy != null)
+                {
+                    return policy;
+                }
+            }
+            DoctypePolicy policy = defaultPolicies.get(factoryType);
+            return policy == null ? ALLOW : policy;
+        }
+    }
+}
@@ -18,9 +18,11 @@
  */
 package org.alfresco.xmlfactory;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+import org.apache.xerces.util.SecurityManager;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -28,24 +30,95 @@ import javax.xml.parsers.ParserConfigurationException;
 
 public class DocumentBuilderFactoryXercesImpl extends DocumentBuilderFactoryImpl
 {
-    // Static so we only do this configuration lookup once
     private static FactoryHelper factoryHelper = new FactoryHelper();
-    private static List<String> FEATURES_TO_ENABLE = factoryHelper.getConfiguration(DocumentBuilderFactory.class,
-                  FactoryHelper.FEATURES_TO_ENABLE,  FactoryHelper.DEFAULT_FEATURES_TO_ENABLE);
-    private static List<String> FEATURES_TO_DISABLE = factoryHelper.getConfiguration(DocumentBuilderFactory.class,
-                  FactoryHelper.FEATURES_TO_DISABLE, FactoryHelper.DEFAULT_FEATURES_TO_DISABLE);
-    private static List<String> WHITE_LIST_CALLERS = factoryHelper.getConfiguration(DocumentBuilderFactory.class,
-                  FactoryHelper.WHITE_LIST_CALLERS,  FactoryHelper.DEFAULT_WHITE_LIST_CALLERS);
+
+    private final ParserLimits limits;
+    private final DoctypePolicy doctypePolicy;
+    private final CatalogEntityResolver entityResolver;
 
     public DocumentBuilderFactoryXercesImpl()
     {
-        factoryHelper.configureFactory(this, FEATURES_TO_ENABLE, FEATURES_TO_DISABLE, WHITE_LIST_CALLERS);
+        this(false);
+    }
+
+    private DocumentBuilderFactoryXercesImpl(boolean hardened)
+    {
+        FactorySettings<DocumentBuilderFactory> settings = getSettings();
+        FactoryProfile factoryProfile = hardened
+                ? null
+                : FactoryProfile.get(DocumentBuilderFactory.class, factoryHelper);
+        if (factoryProfile != null)
+        {
+            factoryHelper.configureFactory(this, factoryProfile.getFeaturePlan(settings,
+                    DocumentBuilderFactoryXercesImpl::compileFeaturePlan), factoryProfile);
+        }
+        else
+        {
+            factoryHelper.configureFactory(this, settings.getFeaturePlan(),
+                    hardened ? Collections.emptyList() : settings.getWhiteListCallers());
+        }
+
+        DOMProfile profile = ConfigurationSnapshot.getInstance()
+                .getDerived(DOMProfile.Selection.class, DOMProfile.Selection::new)
+                .select(factoryHelper, !hardened);
+        if (profile != null)
+        {
+            profile.apply(this);
+        }
+
+        ParserResources.Shared resources = factoryProfile != null && factoryProfile.getResources() != null
+                ? factoryProfile.getResources()
+                : ParserResources.get(DocumentBuilderFactory.class);
+        if (resources.isEnabled())
+        {
+            resources.apply(this);
+        }
+
+        limits = factoryProfile != null && factoryProfile.getLimits() != null
+                ? factoryProfile.getLimits()
+                : ParserLimits.get(DocumentBuilderFactory.class, factoryHelper, !hardened);
+        SecurityManager securityManager = limits.newSecurityManager();
+        if (securityManager != null)
+        {
+            setAttribute(ParserLimits.SECURITY_MANAGER_PROPERTY, securityManager);
+        }
+
+        doctypePolicy = DoctypePolicy.get(DocumentBuilderFactory.class, factoryHelper, !hardened);
+        entityResolver = CatalogEntityResolver.get(DocumentBuilderFactory.class);
+    }
+
+    /**
+     * Returns the settings of the current configuration. Features are tried once on a plain Xerces factory, so new
+     * factories just have them stamped on.
+     */
+    private static FactorySettings<DocumentBuilderFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(DocumentBuilderFactory.class,
+                FactoryHelper.DEFAULT_FEATURES_TO_ENABLE, FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                DocumentBuilderFactoryXercesImpl::compileFeaturePlan);
+    }
+
+    private static FeaturePlan<DocumentBuilderFactory> compileFeaturePlan(List<String> featuresToEnable,
+            List<String> featuresToDisable)
+    {
+        return factoryHelper.compileFeaturePlan(new DocumentBuilderFactoryImpl(), featuresToEnable, featuresToDisable);
+    }
+
+    /**
+     * Creates a factory that is hardened even if the caller is in the white list. Used where the factory is shared,
+     * so the first caller must not decide the configuration for everyone else.
+     */
+    static DocumentBuilderFactoryXercesImpl newHardenedInstance()
+    {
+        return new DocumentBuilderFactoryXercesImpl(true);
     }
 
     @Override
     public DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
         DocumentBuilder documentBuilder = super.newDocumentBuilder();
-        factoryHelper.debugNewParser(documentBuilder);
-        return documentBuilder;
+        factoryHelper.parserCreated(documentBuilder);
+        return limits.isEnabled() || doctypePolicy != DoctypePolicy.ALLOW || entityResolver != null
+                ? new LimitedDocumentBuilder(documentBuilder, limits, doctypePolicy, entityResolver)
+                : documentBuilder;
     }
 }
\ No newline at end of file
@@ -22,20 +22,23 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.function.Function;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
-
 /**
  * The configuration is taken from https://www.owasp.org/index.php/XML_External_Entity_(XXE)_Prevention_Cheat_Sheet#Java
  */
@@ -49,8 +52,8 @@ class FactoryHelper
     final static String FEATURE_LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
 
     // There is no standards for these values. Note they don't start with http:
-    private final static String ADDITIONAL_FEATURE_X_INCLUDE_AWARE = "xIncludeAware";
-    private final static String ADDITIONAL_FEATURE_EXPAND_ENTITY_REFERENCES = "expandEntityReferences";
+    final static String ADDITIONAL_FEATURE_X_INCLUDE_AWARE = "xIncludeAware";
+    final static String ADDITIONAL_FEATURE_EXPAND_ENTITY_REFERENCES = "expandEntityReferences";
 
     final static String FEATURE_DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
     
@@ -72,7 +75,66 @@ class FactoryHelper
                     // , FEATURE_DISALLOW_DOCTYPE
                     )));
 
-    /* white list of classes that can use the parsers with no security restrictions */
+    // StAX has no features, so these are boolean properties set on the XMLInputFactory
+    final static String STAX_PROPERTY_IGNORE_EXTERNAL_DTD =
+            "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+
+    final static List<String> DEFAULT_STAX_FEATURES_TO_DISABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES
+                    )));
+
+    final static List<String> DEFAULT_STAX_FEATURES_TO_ENABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    STAX_PROPERTY_IGNORE_EXTERNAL_DTD
+                    // Not supporting DTDs fails documents that use internal entities, as with disallow-doctype-decl
+                    // , XMLInputFactory.SUPPORT_DTD
+                    )));
+
+    final static List<String> DEFAULT_TRANSFORMER_FEATURES_TO_ENABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    // Also stops extension functions and external stylesheet and DTD access
+                    XMLConstants.FEATURE_SECURE_PROCESSING
+                    )));
+
+    final static List<String> DEFAULT_TRANSFORMER_FEATURES_TO_DISABLE = Collections.emptyList();
+
+    final static List<String> DEFAULT_SCHEMA_FEATURES_TO_ENABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    XMLConstants.FEATURE_SECURE_PROCESSING
+                    )));
+
+    final static List<String> DEFAULT_SCHEMA_FEATURES_TO_DISABLE = Collections.emptyList();
+
+    // Set on each Validator and ValidatorHandler of a hardened Schema, which reads the documents it validates
+    final static List<String> DEFAULT_VALIDATOR_FEATURES_TO_DISABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    FEATURE_EXTERNAL_GENERAL_ENTITIES,
+                    FEATURE_EXTERNAL_PARAMETER_ENTITIES,
+                    FEATURE_LOAD_EXTERNAL_DTD
+                    )));
+
+    final static List<String> DEFAULT_XPATH_FEATURES_TO_ENABLE = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    // The JDK then refuses to call functions from an XPathFunctionResolver
+                    XMLConstants.FEATURE_SECURE_PROCESSING
+                    )));
+
+    final static List<String> DEFAULT_XPATH_FEATURES_TO_DISABLE = Collections.emptyList();
+
+    /* features checked on pooled parsers to make sure they have not been changed by a previous borrower */
+    final static List<String> SECURITY_FEATURES = Collections.unmodifiableList(new ArrayList<>(
+            Arrays.asList(
+                    XMLConstants.FEATURE_SECURE_PROCESSING,
+                    FEATURE_DISALLOW_DOCTYPE,
+                    FEATURE_EXTERNAL_GENERAL_ENTITIES,
+                    FEATURE_EXTERNAL_PARAMETER_ENTITIES,
+                    FEATURE_USE_ENTITY_RESOLVER2,
+                    FEATURE_LOAD_EXTERNAL_DTD
+                    )));
+
+    /* white list of callers that can use the parsers with no security restrictions. See CallerMatcher for the
+       patterns. */
     final static List<String> DEFAULT_WHITE_LIST_CALLERS = Collections.unmodifiableList(new ArrayList<>(
            Arrays.asList(
                     "com.sun.xml.ws.transport.http.servlet.WSServletContextListener",
@@ -93,144 +155,468 @@ class FactoryHelper
     private static volatile int counter = 1;
     private int debugCounter = counter++;
 
-    private final int STACK_DEPTH = 30;
+    // Property files already read by this helper, keyed on URL.
+    private final OnceMap<String, Properties> loadedProperties = new OnceMap<>();
+
+    // META-INF/services property files already looked up on the classpath, keyed on resource name. Empty if missing.
+    private final OnceMap<String, Optional<URL>> servicesResources = new OnceMap<>();
+
+    // Shared so the DEBUG stack trace rate limit applies across all factories
+    private static final DebugStackSampler debugStackSampler = new DebugStackSampler();
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+    private static final String PACKAGE_PREFIX = FactoryHelper.class.getPackage().getName()+'.';
+
+    /* classes in this package that create or configure factories and parsers on behalf of a caller */
+    private static final Set<String> INTERNAL_CLASSES = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList(
+                    FactoryHelper.class.getName(),
+                    DocumentBuilderFactoryXercesImpl.class.getName(),
+                    SAXParserFactoryXercesImpl.class.getName(),
+                    XMLInputFactoryImpl.class.getName(),
+                    TransformerFactoryImpl.class.getName(),
+                    SchemaFactoryXercesImpl.class.getName(),
+                    XPathFactoryImpl.class.getName(),
+                    ParserPool.class.getName(),
+                    SecureSAXParsers.class.getName(),
+                    FragmentParser.class.getName(),
+                    BatchParser.class.getName(),
+                    CreationProfiler.class.getName(),
+                    FactoryProfile.class.getName()
+                    )));
+
+    private static final FactoryMetrics metrics = FactoryMetrics.getInstance();
+
+    private static final CreationProfiler profiler = CreationProfiler.getInstance();
+
+    private volatile WhiteList lastWhiteList;
 
     void configureFactory(DocumentBuilderFactory factory, List<String> featuresToEnable,
                                  List<String> featuresToDisable, List<String> whiteListCallers)
     {
-        debugStack("DocumentBuilderFactory newInstance", 3, STACK_DEPTH);
+        debugStack("DocumentBuilderFactory newInstance", 3);
         if (!isCallInWhiteList(whiteListCallers))
         {
-            if (featuresToEnable != null)
-            {
-                for (String featureToEnable : featuresToEnable)
-                {
-                    setFeature(factory, featureToEnable, true);
-                }
-            }
-            if (featuresToDisable != null)
-            {
-                for (String featureToDisable : featuresToDisable)
-                {
-                    setFeature(factory, featureToDisable, false);
-                }
-            }
+            // Compiling a plan against the factory itself tries, and so applies, each feature.
+            compileFeaturePlan(factory, featuresToEnable, featuresToDisable);
         }
     }
 
     void configureFactory(SAXParserFactory factory, List<String> featuresToEnable,
                                  List<String> featuresToDisable, List<String> whiteListCallers)
     {
-        debugStack("SAXParserFactory newInstance", 3, STACK_DEPTH);
+        debugStack("SAXParserFactory newInstance", 3);
         if (!isCallInWhiteList(whiteListCallers))
         {
-            if (featuresToEnable != null)
-            {
-                for (String featureToEnable : featuresToEnable)
-                {
-                    setFeature(factory, featureToEnable, true);
-                }
-            }
-            if (featuresToDisable != null)
-            {
-                for (String featureToDisable : featuresToDisable)
-                {
-                    setFeature(factory, featureToDisable, false);
-                }
-            }
+            compileFeaturePlan(factory, featuresToEnable, featuresToDisable);
         }
     }
 
-    private boolean isCallInWhiteList(List<String> whiteListCallers)
+    /**
+     * Applies the feature plan to the factory, unless the caller is in the white list.
+     *
+     * @return {@code true} if the plan was applied.
+     */
+    boolean configureFactory(DocumentBuilderFactory factory, FeaturePlan<DocumentBuilderFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "DocumentBuilderFactory", featurePlan, whiteListCallers);
+    }
+
+    boolean configureFactory(SAXParserFactory factory, FeaturePlan<SAXParserFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "SAXParserFactory", featurePlan, whiteListCallers);
+    }
+
+    /**
+     * Applies the feature plan of a {@link FactoryProfile} to the factory. The white list is not checked.
+     */
+    void configureFactory(DocumentBuilderFactory factory, FeaturePlan<DocumentBuilderFactory> featurePlan,
+                                 FactoryProfile profile)
+    {
+        configureFactory(factory, "DocumentBuilderFactory", featurePlan, profile);
+    }
+
+    void configureFactory(SAXParserFactory factory, FeaturePlan<SAXParserFactory> featurePlan,
+                                 FactoryProfile profile)
+    {
+        configureFactory(factory, "SAXParserFactory", featurePlan, profile);
+    }
+
+    boolean configureFactory(XMLInputFactory factory, FeaturePlan<XMLInputFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "XMLInputFactory", featurePlan, whiteListCallers);
+    }
+
+    boolean configureFactory(TransformerFactory factory, FeaturePlan<TransformerFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "TransformerFactory", featurePlan, whiteListCallers);
+    }
+
+    boolean configureFactory(SchemaFactory factory, FeaturePlan<SchemaFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "SchemaFactory", featurePlan, whiteListCallers);
+    }
+
+    boolean configureFactory(XPathFactory factory, FeaturePlan<XPathFactory> featurePlan,
+                                 List<String> whiteListCallers)
+    {
+        return configureFactory(factory, "XPathFactory", featurePlan, whiteListCallers);
+    }
+
+    private <F> boolean configureFactory(F factory, String factoryType, FeaturePlan<F> featurePlan,
+                                 List<String> whiteListCallers)
     {
-        StackTraceElement[] currentStackTrace = (new Exception()).getStackTrace();
-        for (StackTraceElement clazz: currentStackTrace)
+        long start = metrics.startTiming();
+        debugStack(factoryType, " newInstance", 4);
+        boolean whiteListed = isCallInWhiteList(whiteListCallers);
+        if (!whiteListed)
         {
-            String currentClassName = clazz.getClassName();
-            for (String className : whiteListCallers)
-            {
-                if (currentClassName.equals(className))
-                {
-                    debug(debugCounter+" Found " + className + " in white list.");
-                    return true;
-                }
-            }
+            applyFeaturePlan(factory, featurePlan);
         }
-        return false;
+        metrics.factoryConfigured(factoryType, whiteListed, start);
+        profiler.created(factoryType);
+        return !whiteListed;
     }
 
-    private void debugStack(String message, int fromStackDepth, int maxStackDepth) {
+    private <F> void configureFactory(F factory, String factoryType, FeaturePlan<F> featurePlan,
+                                 FactoryProfile profile)
+    {
+        long start = metrics.startTiming();
+        debugStack(factoryType, " newInstance", 4);
         if (logger.isDebugEnabled())
         {
-            debug(debugCounter+" "+message);
+            debug(debugCounter+" Using the " + profile.getName() + " profile.");
+        }
+        applyFeaturePlan(factory, featurePlan);
+        metrics.profileSelected(profile.getName());
+        metrics.factoryConfigured(factoryType, false, start);
+        profiler.created(factoryType);
+    }
 
-            StackTraceElement[] currentStackTrace = (new Exception()).getStackTrace();
-            StringJoiner stackDebug = new StringJoiner("\n");
-            for (int i=fromStackDepth; i<currentStackTrace.length && i<maxStackDepth+fromStackDepth; i++)
+    /**
+     * Resolves the features to be enabled and disabled into a plan that can be applied to each new factory. Each
+     * feature is tried on the {@code probe} factory, so unsupported features are only logged once.
+     */
+    FeaturePlan<DocumentBuilderFactory> compileFeaturePlan(DocumentBuilderFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable, feature ->
+        {
+            if (ADDITIONAL_FEATURE_X_INCLUDE_AWARE.equals(feature))
             {
-                StackTraceElement frame = currentStackTrace[i];
-                stackDebug.add(debugCounter+"   "+frame);
+                return (factory, name, enable) -> factory.setXIncludeAware(enable);
             }
-            debug(stackDebug.toString());
-        }
+            else if (ADDITIONAL_FEATURE_EXPAND_ENTITY_REFERENCES.equals(feature))
+            {
+                return (factory, name, enable) -> factory.setExpandEntityReferences(enable);
+            }
+            return DocumentBuilderFactory::setFeature;
+        });
     }
 
-    private void setFeature(DocumentBuilderFactory factory, String feature, boolean enable)
+    FeaturePlan<SAXParserFactory> compileFeaturePlan(SAXParserFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
     {
-        try
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable, feature ->
         {
             if (ADDITIONAL_FEATURE_X_INCLUDE_AWARE.equals(feature))
             {
-                factory.setXIncludeAware(enable);
+                return (factory, name, enable) -> factory.setXIncludeAware(enable);
             }
             else if (ADDITIONAL_FEATURE_EXPAND_ENTITY_REFERENCES.equals(feature))
             {
-                factory.setExpandEntityReferences(enable);
+                return null; // Does not exist on SAXParserFactory
             }
-            else
+            return SAXParserFactory::setFeature;
+        });
+    }
+
+    FeaturePlan<XMLInputFactory> compileFeaturePlan(XMLInputFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable,
+                feature -> (factory, name, enable) -> factory.setProperty(name, enable));
+    }
+
+    FeaturePlan<TransformerFactory> compileFeaturePlan(TransformerFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable,
+                feature -> TransformerFactory::setFeature);
+    }
+
+    FeaturePlan<SchemaFactory> compileFeaturePlan(SchemaFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable, feature -> SchemaFactory::setFeature);
+    }
+
+    FeaturePlan<Validator> compileFeaturePlan(Validator probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable, feature -> Validator::setFeature);
+    }
+
+    FeaturePlan<ValidatorHandler> compileFeaturePlan(ValidatorHandler probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable,
+                feature -> ValidatorHandler::setFeature);
+    }
+
+    FeaturePlan<XPathFactory> compileFeaturePlan(XPathFactory probe,
+                                 List<String> featuresToEnable, List<String> featuresToDisable)
+    {
+        return compileFeaturePlan(probe, featuresToEnable, featuresToDisable, feature -> XPathFactory::setFeature);
+    }
+
+    private <F> FeaturePlan<F> compileFeaturePlan(F probe, List<String> featuresToEnable,
+                                 List<String> featuresToDisable, Function<String, FeaturePlan.Setter<F>> setters)
+    {
+        List<FeaturePlan.Step<F>> steps = new ArrayList<>();
+        List<String> unsupportedFeatures = new ArrayList<>();
+        addSteps(probe, featuresToEnable, true, setters, steps, unsupportedFeatures);
+        addSteps(probe, featuresToDisable, false, setters, steps, unsupportedFeatures);
+        return new FeaturePlan<>(steps, unsupportedFeatures);
+    }
+
+    private <F> void addSteps(F probe, List<String> features, boolean enable,
+                                 Function<String, FeaturePlan.Setter<F>> setters, List<FeaturePlan.Step<F>> steps,
+                                 List<String> unsupportedFeatures)
+    {
+        if (features != null)
+        {
+            for (String feature : features)
             {
-                factory.setFeature(feature, enable);
+                FeaturePlan.Setter<F> setter = setters.apply(feature);
+                if (setter != null)
+                {
+                    try
+                    {
+                        setter.set(probe, feature, enable);
+                        steps.add(new FeaturePlan.Step<>(feature, enable, setter));
+                        if (logger.isDebugEnabled())
+                        {
+                            debug(debugCounter+" "+probe.getClass().getName()+" "+feature+" "+enable);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        unsupportedFeatures.add(feature);
+                        logConfigurationFailure(probe.getClass().getName(), feature, e);
+                    }
+                }
             }
-            debug(debugCounter+" DocumentBuilderFactory "+feature+" "+enable);
         }
-        catch (ParserConfigurationException pce)
+    }
+
+    /**
+     * Applies a plan without checking the white list or counting the factory, for factories used internally.
+     */
+    <F> void applyFeaturePlan(F factory, FeaturePlan<F> featurePlan)
+    {
+        for (FeaturePlan.Step<F> step : featurePlan.getSteps())
         {
-            logConfigurationFailure(factory.getClass().getName(), feature, pce);
+            try
+            {
+                step.setter.set(factory, step.feature, step.enable);
+            }
+            catch (Exception e)
+            {
+                // Not expected, as the same feature was accepted by the probe factory
+                logConfigurationFailure(factory.getClass().getName(), step.feature, e);
+            }
         }
     }
 
-    private void setFeature(SAXParserFactory factory, String feature, boolean enable)
+    private boolean isCallInWhiteList(List<String> whiteListCallers)
     {
-        try
+        CallerMatcher<String> whiteList = getWhiteList(whiteListCallers);
+        if (whiteList.isEmpty() && !metrics.isEnabled())
         {
-            if (ADDITIONAL_FEATURE_X_INCLUDE_AWARE.equals(feature))
+            return false;
+        }
+
+        // The walk is lazy, so frames above the first white listed caller are never materialised. The first frame
+        // outside JAXP and this library is remembered, so misses can be counted against it.
+        String[] callerAndMatch = STACK_WALKER.walk(frames ->
+        {
+            String caller = null;
+            Iterator<StackWalker.StackFrame> iterator = frames.iterator();
+            while (iterator.hasNext())
             {
-                factory.setXIncludeAware(enable);
+                StackWalker.StackFrame frame = iterator.next();
+                String match = whiteList.match(frame);
+                if (match != null)
+                {
+                    return new String[] {caller, match};
+                }
+                if (caller == null && !isInternalClass(frame.getClassName()))
+                {
+                    caller = frame.getClassName();
+                    if (whiteList.isEmpty())
+                    {
+                        break;
+                    }
+                }
             }
-            else if (!ADDITIONAL_FEATURE_EXPAND_ENTITY_REFERENCES.equals(feature)) // Does not exist on SAXParserFactory
+            return new String[] {caller, null};
+        });
+
+        String match = callerAndMatch[1];
+        if (match != null)
+        {
+            if (logger.isDebugEnabled())
             {
-                factory.setFeature(feature, enable);
+                debug(debugCounter+" Found " + match + " in white list.");
             }
-            debug(debugCounter+" SAXParserFactory "+feature+" "+enable);
+            metrics.whiteListHit(match);
+            return true;
+        }
+        metrics.whiteListMiss(callerAndMatch[0]);
+        return false;
+    }
+
+    /**
+     * Returns the value of the first frame on the call stack that has one.
+     *
+     * @param valuesByCaller values keyed on caller pattern, matched in the same way as the white list.
+     * @return the value, or {@code null} if no frame on the stack has one.
+     */
+    <V> V getCallerValue(CallerMatcher<V> valuesByCaller)
+    {
+        if (valuesByCaller.isEmpty())
+        {
+            return null;
+        }
+        return STACK_WALKER.walk(frames ->
+        {
+            Iterator<StackWalker.StackFrame> iterator = frames.iterator();
+            while (iterator.hasNext())
+            {
+                V value = valuesByCaller.match(iterator.next());
+                if (value != null)
+                {
+                    return value;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the first frame outside JAXP and this library, which is the call site that asked for a factory, or
+     * {@code null} if there is none.
+     */
+    StackWalker.StackFrame getCallSite()
+    {
+        return STACK_WALKER.walk(frames -> frames
+                .filter(frame -> !isInternalClass(frame.getClassName()))
+                .findFirst()
+                .orElse(null));
+    }
+
+    /**
+     * @return {@code true} if the class is part of the JDK, Xerces or this library's factory code, rather than the
+     * code that asked for a factory or parser.
+     */
+    static boolean isInternalClass(String className)
+    {
+        if (className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("jdk.") ||
+            className.startsWith("sun.") || className.startsWith("com.sun.") ||
+            className.startsWith("org.apache.xerces."))
+        {
+            return true;
+        }
+        if (className.startsWith(PACKAGE_PREFIX))
+        {
+            int end = className.indexOf('$', PACKAGE_PREFIX.length());
+            String outerClassName = end == -1 ? className : className.substring(0, end);
+            return INTERNAL_CLASSES.contains(outerClassName);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the white list compiled into a {@link CallerMatcher}. The factories pass the same List on every call,
+     * so the last one compiled is kept and reused while the List instance is unchanged.
+     */
+    private CallerMatcher<String> getWhiteList(List<String> whiteListCallers)
+    {
+        if (whiteListCallers == null)
+        {
+            return CallerMatcher.empty();
+        }
+        WhiteList whiteList = lastWhiteList;
+        if (whiteList == null || whiteList.source != whiteListCallers)
+        {
+            whiteList = new WhiteList(whiteListCallers);
+            lastWhiteList = whiteList;
         }
-        catch (ParserConfigurationException | SAXNotSupportedException | SAXNotRecognizedException e)
+        return whiteList.matcher;
+    }
+
+    private static class WhiteList
+    {
+        private final List<String> source;
+        private final CallerMatcher<String> matcher;
+
+        private WhiteList(List<String> source)
         {
-            logConfigurationFailure(factory.getClass().getName(), feature, e);
+            this.source = source;
+            this.matcher = CallerMatcher.of(source);
         }
     }
 
-    public void debugNewParser(DocumentBuilder parser)
+    private void debugStack(String message, int fromStackDepth)
     {
-        debugStack("New DocumentBuilder", 3, STACK_DEPTH);
+        debugStack(message, "", fromStackDepth + 1);
     }
 
-    public void debugNewParser(SAXParser parser)
+    /**
+     * Takes the message in two parts, so that callers do not build it when DEBUG is off.
+     */
+    private void debugStack(String message, String messageSuffix, int fromStackDepth)
     {
-        debugStack("New SAXParser", 3, STACK_DEPTH);
+        if (logger.isDebugEnabled())
+        {
+            debug(debugCounter+" "+message+messageSuffix);
+
+            if (debugStackSampler.shouldCapture())
+            {
+                StringJoiner stackDebug = new StringJoiner("\n");
+                for (String frame : debugStackSampler.capture(fromStackDepth + 1))
+                {
+                    stackDebug.add(debugCounter+"   "+frame);
+                }
+                debug(stackDebug.toString());
+            }
+        }
+    }
+
+    public void parserCreated(DocumentBuilder parser)
+    {
+        metrics.parserCreated("DocumentBuilder");
+        profiler.created("DocumentBuilder");
+        debugStack("New DocumentBuilder", 3);
+    }
+
+    public void parserCreated(SAXParser parser)
+    {
+        metrics.parserCreated("SAXParser");
+        profiler.created("SAXParser");
+        debugStack("New SAXParser", 3);
     }
 
     private void logConfigurationFailure(String factoryName, String feature, Exception e)
     {
+        metrics.featureFailure(feature);
         if (logger.isWarnEnabled())
         {
             logger.warn("Failed to configure " + factoryName + " with feature: " + feature, e);
@@ -296,7 +682,8 @@ class FactoryHelper
         if (value == null)
         {
             String resourceName = "META-INF/services/" + factoryName+".properties";
-            URL url = getResource(null, resourceName);
+            URL url = servicesResources.get(resourceName,
+                    () -> Optional.ofNullable(getResource(null, resourceName))).orElse(null);
             value = getProperty(url, propertyName);
             debugPropertyFrom(propertyName, value, resourceName);
         }
@@ -318,6 +705,40 @@ class FactoryHelper
         return features;
     }
 
+    /**
+     * Returns a single integer configuration value, looked up in the same way as {@link #getConfiguration}.
+     *
+     * @param factoryClass used to look up the &lt;factoryName>.
+     * @param propertyName used as the property name in files or as the suffix in a system property.
+     * @param defaultValue returned if no value is found, or it is not an integer.
+     * @return the configured value.
+     */
+    int getIntConfiguration(Class<?> factoryClass, String propertyName, int defaultValue)
+    {
+        return toInt(factoryClass, propertyName, getConfiguration(factoryClass, propertyName, Collections.emptyList()),
+                defaultValue);
+    }
+
+    static int toInt(Class<?> factoryClass, String propertyName, List<String> values, int defaultValue)
+    {
+        if (values != null && !values.isEmpty())
+        {
+            try
+            {
+                return Integer.parseInt(values.get(0));
+            }
+            catch (NumberFormatException e)
+            {
+                if (logger.isWarnEnabled())
+                {
+                    logger.warn("Ignoring "+factoryClass.getName()+'.'+propertyName+" as it is not an integer: "+
+                            values.get(0));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
     private void debugPropertyFrom(String propertyName, String value, Object source) {
         if (logger.isDebugEnabled())
         {
@@ -356,7 +777,16 @@ class FactoryHelper
         return value;
     }
 
+    /**
+     * Returns the properties at the URL, which are only read the first time they are needed by this helper. A missing
+     * or unreadable file is remembered as being empty.
+     */
     private Properties getProperties(URL url)
+    {
+        return loadedProperties.get(url.toExternalForm(), () -> loadProperties(url));
+    }
+
+    Properties loadProperties(URL url)
     {
         Properties properties = new Properties();
         InputStream in = null;
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counts factory and parser creation, white list hits and misses, feature failures, documents rejected by
+ * {@link ParserLimits} or the {@link DoctypePolicy} and the time taken to configure factories. Counting uses
+ * {@link LongAdder}s, so it costs little when nothing reads the values. The values are exposed through JMX and may
+ * also be bound to a Micrometer registry with {@link FactoryMetricsBinder}.<p>
+ *
+ * System properties:
+ * <li>{@code org.alfresco.xmlfactory.metrics.enabled} set to false to stop counting (default true).</li>
+ * <li>{@code org.alfresco.xmlfactory.metrics.jmx} set to false to not register the MBean (default true).</li>
+ */
+public final class FactoryMetrics implements FactoryMetricsMXBean
+{
+    private static final Log logger = LogFactory.getLog(FactoryMetrics.class);
+
+    static final String ENABLED_PROPERTY = "org.alfresco.xmlfactory.metrics.enabled";
+    static final String JMX_PROPERTY = "org.alfresco.xmlfactory.metrics.jmx";
+    static final String OBJECT_NAME = "org.alfresco.xmlfactory:type=FactoryMetrics";
+
+    /* Per caller counts are limited, so an unusual application cannot use up memory. Others are counted together. */
+    static final int MAX_CALLERS = 500;
+    static final String OTHER_CALLERS = "other";
+
+    private static final int LATENCY_BUCKETS = 24;
+
+    private static final FactoryMetrics INSTANCE = new FactoryMetrics(getBoolean(ENABLED_PROPERTY, true));
+
+    static
+    {
+        if (getBoolean(JMX_PROPERTY, true))
+        {
+            INSTANCE.registerMBean();
+        }
+    }
+
+    private final boolean enabled;
+
+    private final ConcurrentMap<String, LongAdder> factoriesCreated = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> factoriesWhiteListed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> parsersCreated = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> whiteListHits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> whiteListMisses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> featureFailures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> limitsExceeded = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> prologScans = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> profilesSelected = new ConcurrentHashMap<>();
+    private final LongAdder doctypesRejected = new LongAdder();
+
+    private final LongAdder configurationCount = new LongAdder();
+    private final LongAdder configurationNanos = new LongAdder();
+    private final LongAdder[] configurationLatency = new LongAdder[LATENCY_BUCKETS];
+
+    FactoryMetrics(boolean enabled)
+    {
+        this.enabled = enabled;
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+        {
+            configurationLatency[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the metrics shared by all the Alfresco factories.
+     */
+    public static FactoryMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return {@code false} if counting has been turned off.
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    private void registerMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+            {
+                server.registerMBean(this, name);
+            }
+        }
+        catch (JMException | SecurityException e)
+        {
+            // Possible if another copy of this library in a different class loader got there first.
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Unable to register " + OBJECT_NAME, e);
+            }
+        }
+    }
+
+    /**
+     * @return the time to pass to {@link #factoryConfigured}, or 0 if counting is off.
+     */
+    long startTiming()
+    {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void factoryConfigured(String factoryType, boolean whiteListed, long startNanos)
+    {
+        if (enabled)
+        {
+            long nanos = System.nanoTime() - startNanos;
+            increment(factoriesCreated, factoryType);
+            if (whiteListed)
+            {
+                increment(factoriesWhiteListed, factoryType);
+            }
+            configurationCount.increment();
+            configurationNanos.add(nanos);
+            configurationLatency[latencyBucket(nanos)].increment();
+        }
+    }
+
+    void parserCreated(String parserType)
+    {
+        if (enabled)
+        {
+            increment(parsersCreated, parserType);
+        }
+    }
+
+    void whiteListHit(String whiteListedClass)
+    {
+        if (enabled)
+        {
+            incrementCaller(whiteListHits, whiteListedClass);
+        }
+    }
+
+    void whiteListMiss(String caller)
+    {
+        if (enabled)
+        {
+            incrementCaller(whiteListMisses, caller);
+        }
+    }
+
+    void featureFailure(String feature)
+    {
+        if (enabled)
+        {
+            incrementCaller(featureFailures, feature);
+        }
+    }
+
+    void limitExceeded(String limit)
+    {
+        if (enabled)
+        {
+            increment(limitsExceeded, limit);
+        }
+    }
+
+    void profileSelected(String profile)
+    {
+        if (enabled)
+        {
+            incrementCaller(profilesSelected, profile);
+        }
+    }
+
+    void prologScanned(PrologScanner.Prolog prolog)
+    {
+        if (enabled)
+        {
+            increment(prologScans, prolog.name());
+        }
+    }
+
+    void doctypeRejected()
+    {
+        if (enabled)
+        {
+            doctypesRejected.increment();
+        }
+    }
+
+    private static void increment(ConcurrentMap<String, LongAdder> counts, String key)
+    {
+        LongAdder count = counts.get(key);
+        if (count == null)
+        {
+            count = counts.computeIfAbsent(key, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    private static void incrementCaller(ConcurrentMap<String, LongAdder> counts, String caller)
+    {
+        String key = caller == null ? OTHER_CALLERS : caller;
+        if (counts.size() >= MAX_CALLERS && !counts.containsKey(key))
+        {
+            key = OTHER_CALLERS;
+        }
+        increment(counts, key);
+    }
+
+    /**
+     * Bucket i holds times below 2^i microseconds, with the last bucket holding everything longer.
+     */
+    static int latencyBucket(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    long getFactoriesCreated(String factoryType)
+    {
+        return sum(factoriesCreated, factoryType);
+    }
+
+    long getFactoriesWhiteListed(String factoryType)
+    {
+        return sum(factoriesWhiteListed, factoryType);
+    }
+
+    long getParsersCreated(String parserType)
+    {
+        return sum(parsersCreated, parserType);
+    }
+
+    long getConfigurationNanos()
+    {
+        return configurationNanos.sum();
+    }
+
+    long getFeatureFailureCount()
+    {
+        long total = 0;
+        for (LongAdder count : featureFailures.values())
+        {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    long getLimitExceededCount(String limit)
+    {
+        return sum(limitsExceeded, limit);
+    }
+
+    long getPrologScanCount(String prolog)
+    {
+        return sum(prologScans, prolog);
+    }
+
+    private static long sum(ConcurrentMap<String, LongAdder> counts, String key)
+    {
+        LongAdder count = counts.get(key);
+        return count == null ? 0 : count.sum();
+    }
+
+    private static Map<String, Long> toMap(ConcurrentMap<String, LongAdder> counts)
+    {
+        Map<String, Long> map = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet())
+        {
+            map.put(entry.getKey(), entry.getValue().sum());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getFactoriesCreated()
+    {
+        return toMap(factoriesCreated);
+    }
+
+    @Override
+    public Map<String, Long> getFactoriesWhiteListed()
+    {
+        return toMap(factoriesWhiteListed);
+    }
+
+    @Override
+    public Map<String, Long> getParsersCreated()
+    {
+        return toMap(parsersCreated);
+    }
+
+    @Override
+    public Map<String, Long> getWhiteListHits()
+    {
+        return toMap(whiteListHits);
+    }
+
+    @Override
+    public Map<String, Long> getWhiteListMisses()
+    {
+        return toMap(whiteListMisses);
+    }
+
+    @Override
+    public Map<String, Long> getFeatureFailures()
+    {
+        return toMap(featureFailures);
+    }
+
+    @Override
+    public Map<String, Long> getLimitsExceeded()
+    {
+        return toMap(limitsExceeded);
+    }
+
+    @Override
+    public Map<String, Long> getProfilesSelected()
+    {
+        return toMap(profilesSelected);
+    }
+
+    @Override
+    public Map<String, Long> getPrologScans()
+    {
+        return toMap(prologScans);
+    }
+
+    @Override
+    public long getDoctypesRejected()
+    {
+        return doctypesRejected.sum();
+    }
+
+    @Override
+    public long getConfigurationCount()
+    {
+        return configurationCount.sum();
+    }
+
+    @Override
+    public double getConfigurationMeanMicros()
+    {
+        long count = configurationCount.sum();
+        return count == 0 ? 0 : configurationNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public Map<String, Long> getConfigurationLatencyHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+        {
+            String bound = i == LATENCY_BUCKETS - 1 ? "more" : "<" + (1L << i) + "us";
+            histogram.put(bound, configurationLatency[i].sum());
+        }
+        return histogram;
+    }
+
+    @Override
+    public Map<String, Long> getTopCreators()
+    {
+        return CreationProfiler.getInstance().getTopCreators();
+    }
+
+    @Override
+    public long getConfigurationVersion()
+    {
+        return XMLFactoryConfiguration.getVersion();
+    }
+
+    @Override
+    public void reset()
+    {
+        factoriesCreated.clear();
+        factoriesWhiteListed.clear();
+        parsersCreated.clear();
+        whiteListHits.clear();
+        whiteListMisses.clear();
+        featureFailures.clear();
+        limitsExceeded.clear();
+        prologScans.clear();
+        profilesSelected.clear();
+        doctypesRejected.reset();
+        CreationProfiler.getInstance().reset();
+        configurationCount.reset();
+        configurationNanos.reset();
+        for (LongAdder bucket : configurationLatency)
+        {
+            bucket.reset();
+        }
+    }
+
+    private static boolean getBoolean(String propertyName, boolean defaultValue)
+    {
+        try
+        {
+            String value = System.getProperty(propertyName);
+            return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+        }
+        catch (SecurityException e)
+        {
+            return defaultValue;
+        }
+    }
+}
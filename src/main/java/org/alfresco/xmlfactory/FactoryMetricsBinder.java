@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Binds {@link FactoryMetrics} to a Micrometer {@link MeterRegistry}. Micrometer is an optional dependency, so this
+ * class may only be used if it is on the classpath. Per caller counts are only available through JMX, to keep the
+ * number of meters small.
+ */
+public class FactoryMetricsBinder implements MeterBinder
+{
+    static final List<String> FACTORY_TYPES = Arrays.asList(
+            "DocumentBuilderFactory", "SAXParserFactory", "XMLInputFactory", "TransformerFactory", "SchemaFactory",
+            "XPathFactory");
+    static final List<String> PARSER_TYPES = Arrays.asList("DocumentBuilder", "SAXParser");
+
+    private final FactoryMetrics metrics;
+
+    public FactoryMetricsBinder()
+    {
+        this(FactoryMetrics.getInstance());
+    }
+
+    FactoryMetricsBinder(FactoryMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry)
+    {
+        for (String factoryType : FACTORY_TYPES)
+        {
+            FunctionCounter.builder("alfresco.xmlfactory.factories.created", metrics,
+                            m -> m.getFactoriesCreated(factoryType))
+                    .description("Factories created")
+                    .tag("type", factoryType)
+                    .register(registry);
+            FunctionCounter.builder("alfresco.xmlfactory.factories.whitelisted", metrics,
+                            m -> m.getFactoriesWhiteListed(factoryType))
+                    .description("Factories left unhardened because the caller was in the white list")
+                    .tag("type", factoryType)
+                    .register(registry);
+        }
+        for (String parserType : PARSER_TYPES)
+        {
+            FunctionCounter.builder("alfresco.xmlfactory.parsers.created", metrics,
+                            m -> m.getParsersCreated(parserType))
+                    .description("Parsers created")
+                    .tag("type", parserType)
+                    .register(registry);
+        }
+        FunctionCounter.builder("alfresco.xmlfactory.feature.failures", metrics, FactoryMetrics::getFeatureFailureCount)
+                .description("Features that could not be applied to a factory")
+                .register(registry);
+        for (ParserLimits.Limit limit : ParserLimits.Limit.values())
+        {
+            FunctionCounter.builder("alfresco.xmlfactory.limits.exceeded", metrics,
+                            m -> m.getLimitExceededCount(limit.propertyName))
+                    .description("Documents rejected for going over a parser limit")
+                    .tag("limit", limit.propertyName)
+                    .register(registry);
+        }
+        for (PrologScanner.Prolog prolog : PrologScanner.Prolog.values())
+        {
+            FunctionCounter.builder("alfresco.xmlfactory.prolog.scans", metrics,
+                            m -> m.getPrologScanCount(prolog.name()))
+                    .description("Documents scanned for a DOCTYPE before parsing")
+                    .tag("prolog", prolog.name())
+                    .register(registry);
+        }
+        FunctionCounter.builder("alfresco.xmlfactory.doctypes.rejected", metrics, FactoryMetrics::getDoctypesRejected)
+                .description("Documents rejected by the DOCTYPE policy")
+                .register(registry);
+        FunctionTimer.builder("alfresco.xmlfactory.configuration", metrics, FactoryMetrics::getConfigurationCount,
+                        FactoryMetrics::getConfigurationNanos, TimeUnit.NANOSECONDS)
+                .description("Time taken to configure new factories")
+                .register(registry);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link FactoryMetrics}, registered as {@code org.alfresco.xmlfactory:type=FactoryMetrics}.
+ */
+public interface FactoryMetricsMXBean
+{
+    /**
+     * @return the number of factories created, keyed on factory type.
+     */
+    Map<String, Long> getFactoriesCreated();
+
+    /**
+     * @return the number of factories left unhardened because the caller was in the white list, keyed on factory type.
+     */
+    Map<String, Long> getFactoriesWhiteListed();
+
+    /**
+     * @return the number of parsers created, keyed on parser type.
+     */
+    Map<String, Long> getParsersCreated();
+
+    /**
+     * @return the number of white list matches, keyed on the white listed class that was found.
+     */
+    Map<String, Long> getWhiteListHits();
+
+    /**
+     * @return the number of factories created without a white list match, keyed on the class that asked for them.
+     */
+    Map<String, Long> getWhiteListMisses();
+
+    /**
+     * @return the number of features that could not be applied, keyed on feature.
+     */
+    Map<String, Long> getFeatureFailures();
+
+    /**
+     * @return the number of documents rejected for going over a parser limit, keyed on the limit's property name.
+     */
+    Map<String, Long> getLimitsExceeded();
+
+    /**
+     * @return the number of factories configured with a profile set by {@code factory.profiles}, keyed on profile name.
+     */
+    Map<String, Long> getProfilesSelected();
+
+    /**
+     * @return the number of documents scanned for a DOCTYPE, keyed on what was found.
+     */
+    Map<String, Long> getPrologScans();
+
+    /**
+     * @return the number of documents rejected by the DOCTYPE policy.
+     */
+    long getDoctypesRejected();
+
+    /**
+     * @return the number of factory configurations timed.
+     */
+    long getConfigurationCount();
+
+    /**
+     * @return the mean time to configure a factory, in microseconds.
+     */
+    double getConfigurationMeanMicros();
+
+    /**
+     * @return the number of factory configurations in each latency bucket, keyed on the bucket's upper bound.
+     */
+    Map<String, Long> getConfigurationLatencyHistogram();
+
+    /**
+     * @return the estimated number of factories and parsers created by the callers that create the most, keyed on
+     * {@code <type> <class>#<method>}. Estimated from 1 in every {@code org.alfresco.xmlfactory.profiler.sample}
+     * creations (default 100).
+     */
+    Map<String, Long> getTopCreators();
+
+    /**
+     * @return the version of the configuration used by new factories. See {@link XMLFactoryConfiguration}.
+     */
+    long getConfigurationVersion();
+
+    /**
+     * Sets all counts back to zero.
+     */
+    void reset();
+}
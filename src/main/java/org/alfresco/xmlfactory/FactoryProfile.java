@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A named hardened configuration for the DocumentBuilderFactories or SAXParserFactories created at particular call
+ * sites, between the full hardening every other caller gets and the none that white listed callers get. Profiles are
+ * mapped to call sites with the {@code factory.profiles} property and set with properties that start
+ * {@code profile.<name>.}, for example:
+ * <pre>
+ * javax.xml.parsers.SAXParserFactory.factory.profiles=org.example.config.*=trusted;org.example.Upload#parse=strict
+ * javax.xml.parsers.SAXParserFactory.profile.trusted.grammar.pool.trusted=file:/opt/example/config.xsd
+ * javax.xml.parsers.SAXParserFactory.profile.strict.limit.document.size=1048576
+ * javax.xml.parsers.SAXParserFactory.profile.strict.features.to.enable=\
+ *     http://apache.org/xml/features/disallow-doctype-decl
+ * </pre>
+ * A profile may set:
+ * <li>{@code features.to.enable} and {@code features.to.disable} on top of the factory type's, so the strict
+ * profile above keeps secure processing and the type's other features. A feature the profile enables is taken out
+ * of the type's features to disable, and the other way round, so a profile only loosens what it names.</li>
+ * <li>{@code limit.*} in place of the factory type's and callers' limits. Limits it does not set are the type's
+ * defaults.</li>
+ * <li>{@code symbol.table.size} and {@code grammar.pool.trusted}, for a symbol table and grammar pool shared only by
+ * the parsers of the profile's factories.</li>
+ * Anything a profile does not set is the same as for other callers. The call site is the first frame outside JAXP
+ * and this library, and is matched in the same way as the white list, by class, package prefix or method. Unlike
+ * the white list, frames further up the stack are not looked at, and the match for each calling class is remembered
+ * once per configuration version. A call site with a profile is not checked against the white list.
+ */
+class FactoryProfile
+{
+    static final String FACTORY_PROFILES = "factory.profiles";
+    static final String PROFILE_PREFIX = "profile.";
+
+    private static final Log logger = LogFactory.getLog(FactoryProfile.class);
+
+    private final String name;
+    private final List<String> featuresToEnable;
+    private final List<String> featuresToDisable;
+    private final ParserLimits limits;
+    private final ParserResources.Shared resources;
+    private final OnceMap<Long, FeaturePlan<?>> featurePlans = new OnceMap<>();
+
+    FactoryProfile(ConfigurationSnapshot configuration, Class<?> factoryType, String name)
+    {
+        this.name = name;
+        String prefix = PROFILE_PREFIX + name + '.';
+        featuresToEnable = configuration.getConfiguration(factoryType, prefix + FactoryHelper.FEATURES_TO_ENABLE, null);
+        featuresToDisable = configuration.getConfiguration(factoryType, prefix + FactoryHelper.FEATURES_TO_DISABLE,
+                null);
+        limits = ParserLimits.get(configuration, factoryType, prefix);
+        ParserResources.Shared shared = new ParserResources.Shared(configuration, factoryType, prefix);
+        resources = shared.isEnabled() ? shared : null;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the plan for this profile's features, compiling it the first time. The profile's features are added to
+     * the factory type's.
+     */
+    @SuppressWarnings("unchecked")
+    <F> FeaturePlan<F> getFeaturePlan(FactorySettings<F> settings,
+            BiFunction<List<String>, List<String>, FeaturePlan<F>> compiler)
+    {
+        if (featuresToEnable == null && featuresToDisable == null)
+        {
+            return settings.getFeaturePlan();
+        }
+        return (FeaturePlan<F>) featurePlans.get(settings.getVersion(), () -> compiler.apply(
+                merge(settings.getFeaturesToEnable(), featuresToEnable, featuresToDisable),
+                merge(settings.getFeaturesToDisable(), featuresToDisable, featuresToEnable)));
+    }
+
+    /**
+     * @return the type's features, without those the profile puts in the opposite list, followed by the profile's.
+     */
+    private static List<String> merge(List<String> typeFeatures, List<String> added, List<String> opposite)
+    {
+        List<String> merged = new ArrayList<>(typeFeatures);
+        if (opposite != null)
+        {
+            merged.removeAll(opposite);
+        }
+        if (added != null)
+        {
+            for (String feature : added)
+            {
+                if (!merged.contains(feature))
+                {
+                    merged.add(feature);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the profile's limits, or {@code null} if it does not set any.
+     */
+    ParserLimits getLimits()
+    {
+        return limits;
+    }
+
+    /**
+     * @return the profile's shared resources, or {@code null} if it does not have its own.
+     */
+    ParserResources.Shared getResources()
+    {
+        return resources;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FactoryProfile[" + name + "]";
+    }
+
+    /**
+     * Returns the profile of the current configuration for the call site that asked for a factory.
+     *
+     * @return the profile, or {@code null} if the call site does not have one.
+     */
+    static FactoryProfile get(Class<?> factoryType, FactoryHelper factoryHelper)
+    {
+        return ConfigurationSnapshot.getInstance().getDerived(Selection.class, Selection::new)
+                .select(factoryType, factoryHelper);
+    }
+
+    /**
+     * The profiles of one version of the configuration, and the matcher that finds the profile of each call site.
+     */
+    static class Selection
+    {
+        private final Map<Class<?>, Map<String, FactoryProfile>> profiles = new HashMap<>();
+        private final Map<Class<?>, CallerMatcher<FactoryProfile>> callerProfiles = new HashMap<>();
+
+        Selection(ConfigurationSnapshot configuration)
+        {
+            for (Class<?> factoryType : Arrays.asList(DocumentBuilderFactory.class, SAXParserFactory.class))
+            {
+                Map<String, FactoryProfile> named = new LinkedHashMap<>();
+                Map<String, FactoryProfile> byCaller = new HashMap<>();
+                for (String entry : configuration.getConfiguration(factoryType, FACTORY_PROFILES,
+                        Collections.emptyList()))
+                {
+                    int i = entry.indexOf('=');
+                    String name = i <= 0 ? "" : entry.substring(i+1).trim();
+                    if (name.isEmpty())
+                    {
+                        if (logger.isWarnEnabled())
+                        {
+                            logger.warn("Ignoring " + FACTORY_PROFILES + " entry, as it is not <className>=<profile>: "
+                                    + entry);
+                        }
+                        continue;
+                    }
+                    FactoryProfile profile = named.computeIfAbsent(name,
+                            n -> new FactoryProfile(configuration, factoryType, n));
+                    byCaller.put(entry.substring(0, i).trim(), profile);
+                }
+                profiles.put(factoryType, Collections.unmodifiableMap(named));
+                callerProfiles.put(factoryType, new CallerMatcher<>(byCaller));
+            }
+        }
+
+        FactoryProfile select(Class<?> factoryType, FactoryHelper factoryHelper)
+        {
+            CallerMatcher<FactoryProfile> matcher = callerProfiles.get(factoryType);
+            if (matcher == null || matcher.isEmpty())
+            {
+                return null;
+            }
+            StackWalker.StackFrame callSite = factoryHelper.getCallSite();
+            return callSite == null ? null : matcher.match(callSite);
+        }
+
+        Map<String, FactoryProfile> getProfiles(Class<?> factoryType)
+        {
+            return profiles.get(factoryType);
+        }
+
+        int getMatchedClassCount(Class<?> factoryType)
+        {
+            return callerProfiles.get(factoryType).getMatchedClassCount();
+        }
+    }
+}
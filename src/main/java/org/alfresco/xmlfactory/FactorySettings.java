@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * The features, white list and compiled {@link FeaturePlan} of one factory type in one version of the
+ * configuration. Created the first time a factory of that type is created after the configuration is (re)loaded,
+ * and then shared by every factory of that type until the next reload.
+ *
+ * @param <F> the factory type
+ */
+class FactorySettings<F>
+{
+    private final long version;
+    private final List<String> featuresToEnable;
+    private final List<String> featuresToDisable;
+    private final List<String> whiteListCallers;
+    private final FeaturePlan<F> featurePlan;
+
+    FactorySettings(ConfigurationSnapshot configuration, Class<F> factoryType, List<String> defaultFeaturesToEnable,
+            List<String> defaultFeaturesToDisable, BiFunction<List<String>, List<String>, FeaturePlan<F>> compiler)
+    {
+        version = configuration.getVersion();
+        featuresToEnable = configuration.getConfiguration(factoryType, FactoryHelper.FEATURES_TO_ENABLE,
+                defaultFeaturesToEnable);
+        featuresToDisable = configuration.getConfiguration(factoryType, FactoryHelper.FEATURES_TO_DISABLE,
+                defaultFeaturesToDisable);
+        whiteListCallers = configuration.getConfiguration(factoryType, FactoryHelper.WHITE_LIST_CALLERS,
+                FactoryHelper.DEFAULT_WHITE_LIST_CALLERS);
+        featurePlan = compiler.apply(featuresToEnable, featuresToDisable);
+    }
+
+    /**
+     * @return the version of the configuration these settings were taken from.
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    List<String> getFeaturesToEnable()
+    {
+        return featuresToEnable;
+    }
+
+    List<String> getFeaturesToDisable()
+    {
+        return featuresToDisable;
+    }
+
+    List<String> getWhiteListCallers()
+    {
+        return whiteListCallers;
+    }
+
+    FeaturePlan<F> getFeaturePlan()
+    {
+        return featurePlan;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The features to enable and disable on a type of factory, resolved once so that they can be stamped onto each new
+ * factory. Each feature has already been mapped to the method that sets it and tried on a probe factory, so features
+ * that are not supported have been dropped and are not retried (or logged) for every new factory.
+ *
+ * @param <F> the factory type
+ */
+class FeaturePlan<F>
+{
+    /**
+     * Applies one feature to a factory.
+     */
+    interface Setter<F>
+    {
+        void set(F factory, String feature, boolean enable) throws Exception;
+    }
+
+    static class Step<F>
+    {
+        final String feature;
+        final boolean enable;
+        final Setter<F> setter;
+
+        Step(String feature, boolean enable, Setter<F> setter)
+        {
+            this.feature = feature;
+            this.enable = enable;
+            this.setter = setter;
+        }
+
+        @Override
+        public String toString()
+        {
+            return feature+"="+enable;
+        }
+    }
+
+    private final List<Step<F>> steps;
+    private final List<String> unsupportedFeatures;
+
+    FeaturePlan(List<Step<F>> steps, List<String> unsupportedFeatures)
+    {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+        this.unsupportedFeatures = Collections.unmodifiableList(new ArrayList<>(unsupportedFeatures));
+    }
+
+    List<Step<F>> getSteps()
+    {
+        return steps;
+    }
+
+    /**
+     * @return features that failed on the probe factory and are not applied.
+     */
+    List<String> getUnsupportedFeatures()
+    {
+        return unsupportedFeatures;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FeaturePlan"+steps+(unsupportedFeatures.isEmpty() ? "" : " unsupported "+unsupportedFeatures);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.validation.Schema;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.Parser;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.EntityResolver2;
+import org.xml.sax.helpers.XMLFilterImpl;
+import org.xml.sax.helpers.XMLReaderAdapter;
+
+/**
+ * A SAXParser that enforces {@link ParserLimits} and the {@link DoctypePolicy} on the documents it parses and resolves
+ * entities from the
+ * {@link CatalogEntityResolver catalog}. The element depth and attribute limits are checked on each start element
+ * event, as the Xerces parser produces them, and the document size as it is read. Entities are offered to the
+ * caller's resolver first, which {@link SAXParser#parse(InputSource, org.xml.sax.helpers.DefaultHandler)} sets to
+ * the handler, and then to the catalog. The deprecated SAX1 {@link #getParser() Parser}, which is used to parse with
+ * a {@link org.xml.sax.HandlerBase}, is the filtered XMLReader adapted back to SAX1, so the same checks apply.
+ */
+class FilteredSAXParser extends SAXParser
+{
+    private final SAXParser parser;
+    private final ParserLimits limits;
+    private final DoctypePolicy doctypePolicy;
+    private final CatalogEntityResolver entityResolver;
+    private FilteringXMLReader reader;
+
+    FilteredSAXParser(SAXParser parser, ParserLimits limits, DoctypePolicy doctypePolicy,
+            CatalogEntityResolver entityResolver)
+    {
+        this.parser = parser;
+        this.limits = limits;
+        this.doctypePolicy = doctypePolicy;
+        this.entityResolver = entityResolver;
+    }
+
+    @Override
+    public XMLReader getXMLReader() throws SAXException
+    {
+        if (reader == null)
+        {
+            reader = new FilteringXMLReader(parser.getXMLReader(), limits, doctypePolicy, entityResolver);
+        }
+        return reader;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Parser getParser() throws SAXException
+    {
+        return new SAX1Adapter(getXMLReader());
+    }
+
+    @Override
+    public void reset()
+    {
+        parser.reset();
+        // The filter still holds the last caller's handlers and resolver, so a new one is created on next use.
+        reader = null;
+    }
+
+    @Override
+    public boolean isNamespaceAware()
+    {
+        return parser.isNamespaceAware();
+    }
+
+    @Override
+    public boolean isValidating()
+    {
+        return parser.isValidating();
+    }
+
+    @Override
+    public boolean isXIncludeAware()
+    {
+        return parser.isXIncludeAware();
+    }
+
+    @Override
+    public Schema getSchema()
+    {
+        return parser.getSchema();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        parser.setProperty(name, value);
+    }
+
+    @Override
+    public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        return parser.getProperty(name);
+    }
+
+    /**
+     * Turns namespace processing off for SAX1 while it parses, as XMLReaderAdapter requires, and back afterwards so
+     * that later SAX2 parses with the same XMLReader are not affected.
+     */
+    @SuppressWarnings("deprecation")
+    private static class SAX1Adapter extends XMLReaderAdapter
+    {
+        private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+        private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+        private final XMLReader reader;
+
+        SAX1Adapter(XMLReader reader)
+        {
+            super(reader);
+            this.reader = reader;
+        }
+
+        @Override
+        public void parse(InputSource input) throws IOException, SAXException
+        {
+            boolean namespaces = reader.getFeature(NAMESPACES);
+            boolean namespacePrefixes = reader.getFeature(NAMESPACE_PREFIXES);
+            try
+            {
+                super.parse(input);
+            }
+            finally
+            {
+                reader.setFeature(NAMESPACES, namespaces);
+                reader.setFeature(NAMESPACE_PREFIXES, namespacePrefixes);
+            }
+        }
+    }
+
+    /**
+     * Sits between the Xerces XMLReader and the caller's handlers.
+     */
+    private static class FilteringXMLReader extends XMLFilterImpl implements EntityResolver2
+    {
+        private final ParserLimits limits;
+        private final DoctypePolicy doctypePolicy;
+        private final CatalogEntityResolver catalog;
+        private final long maxDepth;
+        private final long maxAttributes;
+        private Locator locator;
+        private long depth;
+
+        FilteringXMLReader(XMLReader parent, ParserLimits limits, DoctypePolicy doctypePolicy,
+                CatalogEntityResolver catalog)
+        {
+            super(parent);
+            this.limits = limits;
+            this.doctypePolicy = doctypePolicy;
+            this.catalog = catalog;
+            this.maxDepth = limits.get(ParserLimits.Limit.ELEMENT_DEPTH);
+            this.maxAttributes = limits.get(ParserLimits.Limit.ELEMENT_ATTRIBUTES);
+        }
+
+        @Override
+        public void parse(String systemId) throws SAXException, IOException
+        {
+            parse(new InputSource(systemId));
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException, IOException
+        {
+            depth = 0;
+            InputSource checked = doctypePolicy.check(input);
+            InputSource counted = limits.isSizeLimited() ? limits.countSize(checked) : checked;
+            try
+            {
+                super.parse(counted);
+            }
+            catch (IOException e)
+            {
+                SAXException exceeded = ParserLimits.getExceeded(e);
+                if (exceeded != null)
+                {
+                    throw exceeded;
+                }
+                throw e;
+            }
+            catch (SAXException e)
+            {
+                limits.parseFailed(e);
+                throw e;
+            }
+            finally
+            {
+                if (counted != input)
+                {
+                    ParserLimits.closeOpened(input, counted);
+                }
+                locator = null;
+            }
+        }
+
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException
+        {
+            InputSource source = super.resolveEntity(publicId, systemId);
+            if (source == null && catalog != null)
+            {
+                source = catalog.resolveEntity(publicId, systemId);
+            }
+            return source;
+        }
+
+        @Override
+        public InputSource getExternalSubset(String name, String baseURI) throws SAXException, IOException
+        {
+            return CatalogEntityResolver.getExternalSubset(getEntityResolver(), name, baseURI);
+        }
+
+        @Override
+        public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId)
+                throws SAXException, IOException
+        {
+            return CatalogEntityResolver.resolveEntity(getEntityResolver(), catalog, name, publicId, baseURI,
+                    systemId);
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator)
+        {
+            this.locator = locator;
+            super.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException
+        {
+            if (maxDepth > 0 && ++depth > maxDepth)
+            {
+                throw limits.exceeded(ParserLimits.Limit.ELEMENT_DEPTH, "element depth", locator);
+            }
+            if (maxAttributes > 0 && atts.getLength() > maxAttributes)
+            {
+                throw limits.exceeded(ParserLimits.Limit.ELEMENT_ATTRIBUTES, "number of attributes on " + qName,
+                        locator);
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException
+        {
+            if (maxDepth > 0)
+            {
+                depth--;
+            }
+            super.endElement(uri, localName, qName);
+        }
+    }
+}
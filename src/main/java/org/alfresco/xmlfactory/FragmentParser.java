@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streams a document through a hardened SAX parser and builds a small DOM only for the elements that match one of
+ * a set of selectors. Everything outside the matching elements is read and thrown away, so memory is bounded by the
+ * largest matching element rather than by the whole document.<p>
+ *
+ * Selectors are a subset of XPath: {@code /a/b} matches a {@code b} element that is a child of the root element
+ * {@code a}, and {@code //a/b} matches a {@code b} child of an {@code a} element anywhere in the document. {@code *}
+ * matches any element. Names are compared with the element's local name, or with its qualified name if the step has
+ * a prefix. A match nested inside another match is part of the outer fragment and is not reported on its own.<p>
+ *
+ * Each fragment is the document element of its own {@link Document}, and is passed to the
+ * {@link FragmentHandler} as soon as its end tag has been read. The parser is thread safe.
+ */
+public class FragmentParser
+{
+    /**
+     * Receives each matching element.
+     */
+    public interface FragmentHandler
+    {
+        /**
+         * @param selector the selector that matched, as it was supplied.
+         * @param fragment the matching element, which is the document element of its own Document.
+         * @throws SAXException to stop parsing.
+         */
+        void fragment(String selector, Element fragment) throws SAXException;
+    }
+
+    private static final DOMImplementation DOM_IMPLEMENTATION = newDOMImplementation();
+
+    private final List<Selector> selectors;
+
+    /**
+     * @param selectors the elements to build fragments for.
+     * @throws IllegalArgumentException if a selector is not of a supported form.
+     */
+    public FragmentParser(String... selectors)
+    {
+        if (selectors.length == 0)
+        {
+            throw new IllegalArgumentException("At least one selector is required");
+        }
+        List<Selector> compiled = new ArrayList<>();
+        for (String selector : selectors)
+        {
+            compiled.add(new Selector(selector));
+        }
+        this.selectors = Collections.unmodifiableList(compiled);
+    }
+
+    private static DOMImplementation newDOMImplementation()
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactoryXercesImpl.newHardenedInstance();
+        factory.setNamespaceAware(true);
+        try
+        {
+            return factory.newDocumentBuilder().getDOMImplementation();
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses the input, passing each matching element to the handler.
+     *
+     * @throws SAXException if the input is not well formed, is rejected by the hardened parser, or the handler
+     * throws it.
+     * @throws IOException if the input cannot be read.
+     */
+    public void parse(InputSource source, FragmentHandler handler) throws SAXException, IOException
+    {
+        SecureSAXParsers.getNamespaceAwareInstance().parse(source, new FragmentBuilder(handler));
+    }
+
+    /**
+     * A compiled selector.
+     */
+    static class Selector
+    {
+        private final String selector;
+        private final String[] steps;
+        private final boolean anywhere;
+
+        Selector(String selector)
+        {
+            this.selector = selector;
+            String path;
+            if (selector.startsWith("//"))
+            {
+                anywhere = true;
+                path = selector.substring(2);
+            }
+            else if (selector.startsWith("/"))
+            {
+                anywhere = false;
+                path = selector.substring(1);
+            }
+            else
+            {
+                throw new IllegalArgumentException("Selector must start with / or //: "+selector);
+            }
+            steps = path.split("/", -1);
+            for (String step : steps)
+            {
+                if (step.isEmpty() || !isName(step))
+                {
+                    throw new IllegalArgumentException("Unsupported selector: "+selector);
+                }
+            }
+        }
+
+        private static boolean isName(String step)
+        {
+            if ("*".equals(step))
+            {
+                return true;
+            }
+            for (int i = 0; i < step.length(); i++)
+            {
+                char c = step.charAt(i);
+                if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':'))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param localNames the local names of the open elements, root first.
+         * @param qNames the qualified names of the open elements.
+         * @param depth the number of open elements.
+         */
+        boolean matches(String[] localNames, String[] qNames, int depth)
+        {
+            if (anywhere ? depth < steps.length : depth != steps.length)
+            {
+                return false;
+            }
+            int offset = depth - steps.length;
+            for (int i = 0; i < steps.length; i++)
+            {
+                String step = steps[i];
+                if (!"*".equals(step)
+                        && !step.equals(step.indexOf(':') < 0 ? localNames[offset+i] : qNames[offset+i]))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return selector;
+        }
+    }
+
+    /**
+     * Tracks the open elements and builds the DOM of the current fragment.
+     */
+    private class FragmentBuilder extends DefaultHandler
+    {
+        private final FragmentHandler handler;
+        private final StringBuilder text = new StringBuilder();
+
+        private String[] localNames = new String[16];
+        private String[] qNames = new String[16];
+        private int depth;
+
+        private Selector matched;
+        private int fragmentDepth;
+        private Node current;
+
+        private FragmentBuilder(FragmentHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException
+        {
+            if (depth == localNames.length)
+            {
+                localNames = Arrays.copyOf(localNames, depth * 2);
+                qNames = Arrays.copyOf(qNames, depth * 2);
+            }
+            localNames[depth] = localName;
+            qNames[depth] = qName;
+            depth++;
+
+            if (current == null)
+            {
+                for (Selector selector : selectors)
+                {
+                    if (selector.matches(localNames, qNames, depth))
+                    {
+                        matched = selector;
+                        fragmentDepth = depth;
+                        current = DOM_IMPLEMENTATION.createDocument(null, null, null);
+                        break;
+                    }
+                }
+            }
+
+            if (current != null)
+            {
+                flushText();
+                Document document = current.getNodeType() == Node.DOCUMENT_NODE
+                        ? (Document) current : current.getOwnerDocument();
+                Element element = document.createElementNS(uri.isEmpty() ? null : uri, qName);
+                for (int i = 0; i < attributes.getLength(); i++)
+                {
+                    String attributeUri = attributes.getURI(i);
+                    element.setAttributeNS(attributeUri.isEmpty() ? null : attributeUri, attributes.getQName(i),
+                            attributes.getValue(i));
+                }
+                current.appendChild(element);
+                current = element;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException
+        {
+            if (current != null)
+            {
+                flushText();
+                if (depth == fragmentDepth)
+                {
+                    Element fragment = (Element) current;
+                    Selector selector = matched;
+                    current = null;
+                    matched = null;
+                    handler.fragment(selector.toString(), fragment);
+                }
+                else
+                {
+                    current = current.getParentNode();
+                }
+            }
+            depth--;
+            localNames[depth] = null;
+            qNames[depth] = null;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            if (current != null)
+            {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length)
+        {
+            characters(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data)
+        {
+            if (current != null)
+            {
+                flushText();
+                current.appendChild(current.getOwnerDocument().createProcessingInstruction(target, data));
+            }
+        }
+
+        private void flushText()
+        {
+            if (text.length() > 0)
+            {
+                current.appendChild(current.getOwnerDocument().createTextNode(text.toString()));
+                text.setLength(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+/**
+ * A Schema from a hardened {@link SchemaFactoryXercesImpl}. Xerces only limits entity expansion when secure
+ * processing is on, so a Schema would otherwise still read the external DTDs and entities of the documents it
+ * validates. Each new Validator and ValidatorHandler is given {@link #REFUSE_EXTERNAL_RESOURCES} as its resolver
+ * and has the {@link FactoryHelper#DEFAULT_VALIDATOR_FEATURES_TO_DISABLE} turned off. A caller may still set its
+ * own resolver on a validator.
+ */
+class HardenedSchema extends Schema
+{
+    /**
+     * Refuses every external resource: schemas named by {@code xs:import}, {@code xs:include} and
+     * {@code xs:redefine}, and external DTDs and entities. The parser is handed a stream that fails when read, so
+     * the resource is reported as unreadable rather than fetched.
+     */
+    static final LSResourceResolver REFUSE_EXTERNAL_RESOURCES = (type, namespaceURI, publicId, systemId, baseURI) ->
+            new RefusedInput(publicId, systemId, baseURI);
+
+    private static FactoryHelper factoryHelper = new FactoryHelper();
+
+    private final Schema schema;
+
+    HardenedSchema(Schema schema)
+    {
+        this.schema = schema;
+    }
+
+    @Override
+    public Validator newValidator()
+    {
+        Validator validator = schema.newValidator();
+        validator.setResourceResolver(REFUSE_EXTERNAL_RESOURCES);
+        factoryHelper.applyFeaturePlan(validator, Plans.VALIDATOR);
+        return validator;
+    }
+
+    @Override
+    public ValidatorHandler newValidatorHandler()
+    {
+        ValidatorHandler handler = schema.newValidatorHandler();
+        handler.setResourceResolver(REFUSE_EXTERNAL_RESOURCES);
+        factoryHelper.applyFeaturePlan(handler, Plans.VALIDATOR_HANDLER);
+        return handler;
+    }
+
+    /**
+     * The features are tried once, on the validators of an empty schema, the first time a hardened Schema is used.
+     */
+    private static class Plans
+    {
+        static final FeaturePlan<Validator> VALIDATOR;
+        static final FeaturePlan<ValidatorHandler> VALIDATOR_HANDLER;
+
+        static
+        {
+            Schema probe;
+            try
+            {
+                probe = new XMLSchemaFactory().newSchema();
+            }
+            catch (SAXException e)
+            {
+                throw new IllegalStateException("Unable to create an empty schema", e);
+            }
+            VALIDATOR = factoryHelper.compileFeaturePlan(probe.newValidator(), null,
+                    FactoryHelper.DEFAULT_VALIDATOR_FEATURES_TO_DISABLE);
+            VALIDATOR_HANDLER = factoryHelper.compileFeaturePlan(probe.newValidatorHandler(), null,
+                    FactoryHelper.DEFAULT_VALIDATOR_FEATURES_TO_DISABLE);
+        }
+    }
+
+    /**
+     * Stands in for a refused resource. It names the resource, so the error the parser reports says what was
+     * refused.
+     */
+    private static class RefusedInput implements LSInput
+    {
+        private String publicId;
+        private String systemId;
+        private String baseURI;
+
+        RefusedInput(String publicId, String systemId, String baseURI)
+        {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public InputStream getByteStream()
+        {
+            return new InputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    throw new IOException("External resource refused by a hardened schema: " + systemId);
+                }
+            };
+        }
+
+        @Override
+        public void setByteStream(InputStream byteStream)
+        {
+        }
+
+        @Override
+        public Reader getCharacterStream()
+        {
+            return null;
+        }
+
+        @Override
+        public void setCharacterStream(Reader characterStream)
+        {
+        }
+
+        @Override
+        public String getStringData()
+        {
+            return null;
+        }
+
+        @Override
+        public void setStringData(String stringData)
+        {
+        }
+
+        @Override
+        public String getSystemId()
+        {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(String systemId)
+        {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId()
+        {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(String publicId)
+        {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI()
+        {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(String baseURI)
+        {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding()
+        {
+            return null;
+        }
+
+        @Override
+        public void setEncoding(String encoding)
+        {
+        }
+
+        @Override
+        public boolean getCertifiedText()
+        {
+            return false;
+        }
+
+        @Override
+        public void setCertifiedText(boolean certifiedText)
+        {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.validation.Schema;
+
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * A DocumentBuilder that enforces the {@link ParserLimits} that apply to DOM parsing: the document size, counted as
+ * it is read, and the entity expansion limit, which the Xerces scanner enforces and which is counted here. Documents
+ * are first checked against the {@link DoctypePolicy}. If there is a {@link CatalogEntityResolver catalog}, entities
+ * are offered to the caller's resolver first and then to the catalog, as {@link FilteredSAXParser} does.
+ */
+class LimitedDocumentBuilder extends DocumentBuilder
+{
+    private final DocumentBuilder builder;
+    private final ParserLimits limits;
+    private final DoctypePolicy doctypePolicy;
+    private final CatalogEntityResolver catalog;
+    private volatile EntityResolver callerResolver;
+
+    LimitedDocumentBuilder(DocumentBuilder builder, ParserLimits limits, DoctypePolicy doctypePolicy,
+            CatalogEntityResolver catalog)
+    {
+        this.builder = builder;
+        this.limits = limits;
+        this.doctypePolicy = doctypePolicy;
+        this.catalog = catalog;
+        installResolver();
+    }
+
+    /**
+     * Gives the wrapped builder a resolver that asks the caller's resolver and then the catalog.
+     */
+    private void installResolver()
+    {
+        if (catalog != null)
+        {
+            builder.setEntityResolver(new EntityResolver2()
+            {
+                @Override
+                public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException
+                {
+                    return resolveEntity(null, publicId, null, systemId);
+                }
+
+                @Override
+                public InputSource getExternalSubset(String name, String baseURI) throws SAXException, IOException
+                {
+                    return CatalogEntityResolver.getExternalSubset(callerResolver, name, baseURI);
+                }
+
+                @Override
+                public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId)
+                        throws SAXException, IOException
+                {
+                    return CatalogEntityResolver.resolveEntity(callerResolver, catalog, name, publicId, baseURI,
+                            systemId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public Document parse(InputSource input) throws SAXException, IOException
+    {
+        if (input == null)
+        {
+            throw new IllegalArgumentException("InputSource cannot be null");
+        }
+        InputSource checked = doctypePolicy.check(input);
+        InputSource counted = limits.isSizeLimited() ? limits.countSize(checked) : checked;
+        try
+        {
+            return builder.parse(counted);
+        }
+        catch (IOException e)
+        {
+            SAXException exceeded = ParserLimits.getExceeded(e);
+            if (exceeded != null)
+            {
+                throw exceeded;
+            }
+            throw e;
+        }
+        catch (SAXException e)
+        {
+            limits.parseFailed(e);
+            throw e;
+        }
+        finally
+        {
+            if (counted != input)
+            {
+                ParserLimits.closeOpened(input, counted);
+            }
+        }
+    }
+
+    @Override
+    public boolean isNamespaceAware()
+    {
+        return builder.isNamespaceAware();
+    }
+
+    @Override
+    public boolean isValidating()
+    {
+        return builder.isValidating();
+    }
+
+    @Override
+    public boolean isXIncludeAware()
+    {
+        return builder.isXIncludeAware();
+    }
+
+    @Override
+    public Schema getSchema()
+    {
+        return builder.getSchema();
+    }
+
+    @Override
+    public void setEntityResolver(EntityResolver resolver)
+    {
+        if (catalog == null)
+        {
+            builder.setEntityResolver(resolver);
+        }
+        else
+        {
+            callerResolver = resolver;
+        }
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler handler)
+    {
+        builder.setErrorHandler(handler);
+    }
+
+    @Override
+    public Document newDocument()
+    {
+        return builder.newDocument();
+    }
+
+    @Override
+    public DOMImplementation getDOMImplementation()
+    {
+        return builder.getDOMImplementation();
+    }
+
+    @Override
+    public void reset()
+    {
+        builder.reset();
+        // reset() puts back the resolver the builder was created with, which is not the chained one.
+        callerResolver = null;
+        installResolver();
+    }
+}
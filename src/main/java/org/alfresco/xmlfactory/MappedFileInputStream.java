@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through memory mapped windows rather than read() calls, so the data is copied once, from the
+ * mapped pages into the caller's buffer. Files larger than a single mapping (2GB) are read one window at a time.
+ * Windows are unmapped by the garbage collector once they have been read.
+ */
+class MappedFileInputStream extends InputStream
+{
+    static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+
+    private long nextWindowStart;
+    private MappedByteBuffer window;
+
+    MappedFileInputStream(Path path, long position) throws IOException
+    {
+        this(path, position, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFileInputStream(Path path, long position, long windowSize) throws IOException
+    {
+        if (windowSize < 1 || windowSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("windowSize must be between 1 and " + Integer.MAX_VALUE + ": " +
+                    windowSize);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.nextWindowStart = Math.min(position, size);
+    }
+
+    /**
+     * @return {@code true} if there is at least one byte left in the current window, mapping the next one if needed.
+     */
+    private boolean ensureWindow() throws IOException
+    {
+        if (window != null && window.hasRemaining())
+        {
+            return true;
+        }
+        if (nextWindowStart >= size)
+        {
+            window = null;
+            return false;
+        }
+        if (!channel.isOpen())
+        {
+            throw new IOException("Stream closed");
+        }
+        long length = Math.min(windowSize, size - nextWindowStart);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, length);
+        nextWindowStart += length;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return ensureWindow() ? window.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+        if (!ensureWindow())
+        {
+            return -1;
+        }
+        int count = Math.min(length, window.remaining());
+        window.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n && ensureWindow())
+        {
+            int count = (int) Math.min(n - skipped, window.remaining());
+            window.position(window.position() + count);
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        long remaining = (window == null ? 0 : window.remaining()) + size - nextWindowStart;
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        window = null;
+        channel.close();
+    }
+}
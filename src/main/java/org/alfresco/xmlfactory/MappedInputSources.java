@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Creates InputSources for local files that are read through memory mapping rather than a FileInputStream, for
+ * large documents passed to the hardened DocumentBuilders and SAXParsers.<p>
+ *
+ * The start of the file is checked for a byte order mark and an XML declaration. If the document is UTF-8 or
+ * US-ASCII, the encoding is set on the InputSource, so the parser goes straight to its UTF-8 or ASCII reader rather
+ * than detecting the encoding itself. Any other encoding is left to the parser.<p>
+ *
+ * The caller should close the InputSource's byte stream once the document has been parsed.
+ */
+public final class MappedInputSources
+{
+    static final String UTF_8 = "UTF-8";
+    static final String US_ASCII = "US-ASCII";
+
+    // Enough to hold a BOM and an XML declaration.
+    private static final int PROLOG_SIZE = 256;
+
+    private MappedInputSources()
+    {
+    }
+
+    /**
+     * @param file a local XML file.
+     * @return an InputSource reading the file, with its system id set to the file's URI.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputSource open(Path file) throws IOException
+    {
+        ByteBuffer prolog = ByteBuffer.allocate(PROLOG_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (prolog.hasRemaining() && channel.read(prolog) > 0)
+            {
+                // Read up to PROLOG_SIZE bytes
+            }
+        }
+        prolog.flip();
+
+        long start = 0;
+        if (hasUTF8ByteOrderMark(prolog))
+        {
+            // The BOM is skipped, as the parser does not look for one when it is told the encoding.
+            start = 3;
+            prolog.position(3);
+        }
+        String encoding = getEncoding(prolog);
+
+        InputSource source = new InputSource(new MappedFileInputStream(file, start));
+        source.setSystemId(file.toUri().toString());
+        source.setEncoding(encoding);
+        return source;
+    }
+
+    private static boolean hasUTF8ByteOrderMark(ByteBuffer prolog)
+    {
+        return prolog.remaining() >= 3 && (prolog.get(0) & 0xFF) == 0xEF && (prolog.get(1) & 0xFF) == 0xBB
+                && (prolog.get(2) & 0xFF) == 0xBF;
+    }
+
+    /**
+     * Returns the encoding of a document from its first bytes, if it is UTF-8 or US-ASCII.
+     *
+     * @param prolog the first bytes of the document, after any UTF-8 byte order mark.
+     * @return {@link #UTF_8}, {@link #US_ASCII}, or {@code null} if the parser should work it out.
+     */
+    static String getEncoding(ByteBuffer prolog)
+    {
+        int start = prolog.position();
+        int length = prolog.remaining();
+        for (int i = 0; i < Math.min(length, 4); i++)
+        {
+            int b = prolog.get(start + i) & 0xFF;
+            if (b == 0 || b == 0xFE || b == 0xFF || b == 0x4C)
+            {
+                // UTF-16, UTF-32 or EBCDIC
+                return null;
+            }
+        }
+
+        String text = StandardCharsets.ISO_8859_1.decode(prolog.duplicate()).toString();
+        if (!text.startsWith("<?xml"))
+        {
+            // No declaration, so it must be UTF-8
+            return UTF_8;
+        }
+        int end = text.indexOf("?>");
+        if (end == -1)
+        {
+            return null;
+        }
+        String declaration = text.substring(0, end);
+        int i = declaration.indexOf("encoding");
+        if (i == -1)
+        {
+            return UTF_8;
+        }
+        int quote = i + "encoding".length();
+        while (quote < declaration.length() && declaration.charAt(quote) != '"' && declaration.charAt(quote) != '\'')
+        {
+            quote++;
+        }
+        if (quote >= declaration.length())
+        {
+            return null;
+        }
+        int close = declaration.indexOf(declaration.charAt(quote), quote + 1);
+        if (close == -1)
+        {
+            return null;
+        }
+        String name = declaration.substring(quote + 1, close).trim().toUpperCase(Locale.ROOT);
+        switch (name)
+        {
+            case "UTF-8":
+            case "UTF8":
+                return UTF_8;
+            case "US-ASCII":
+            case "ASCII":
+                return US_ASCII;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Builds the value of each key once, like {@link ConcurrentHashMap#computeIfAbsent}, but without holding a lock
+ * while the value is built. computeIfAbsent holds a monitor while its function runs, which pins a virtual thread to
+ * its carrier if the function reads a file, and blocks the carriers of other threads that want the same entry. Here
+ * the first thread builds the value and any others wait for it by parking.<p>
+ *
+ * A value whose builder throws is not remembered, so the next request tries again.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class OnceMap<K, V>
+{
+    private final ConcurrentHashMap<K, CompletableFuture<V>> map = new ConcurrentHashMap<>();
+
+    /**
+     * @return the value of the key, built by {@code builder} if this is the first request. Never {@code null}.
+     */
+    V get(K key, Supplier<V> builder)
+    {
+        CompletableFuture<V> future = map.get(key);
+        if (future == null)
+        {
+            CompletableFuture<V> created = new CompletableFuture<>();
+            future = map.putIfAbsent(key, created);
+            if (future == null)
+            {
+                try
+                {
+                    V value = builder.get();
+                    created.complete(value);
+                    return value;
+                }
+                catch (RuntimeException | Error e)
+                {
+                    map.remove(key, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    int size()
+    {
+        return map.size();
+    }
+}
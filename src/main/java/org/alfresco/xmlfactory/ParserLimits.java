@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xerces.util.SecurityManager;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Limits on the documents parsed by the parsers of the DocumentBuilderFactory or SAXParserFactory, so that an
+ * abusive document is rejected as soon as it goes over a limit, rather than after it has been read in full. Set with
+ * these properties of {@code javax.xml.parsers.DocumentBuilderFactory} or {@code javax.xml.parsers.SAXParserFactory}:
+ * <li>{@code limit.entity.expansion} the number of entity expansions. Enforced by the Xerces scanner through its
+ * SecurityManager, in place of the default of 100000 set by secure processing.</li>
+ * <li>{@code limit.document.size} the number of bytes (or characters if the document is supplied as a Reader) read
+ * from the document.</li>
+ * <li>{@code limit.element.depth} the depth of nested elements. SAXParsers only.</li>
+ * <li>{@code limit.element.attributes} the number of attributes on one element. SAXParsers only.</li>
+ * Each may be set for the factories created by particular classes with a {@code .callers} property, for example:
+ * <pre>
+ * javax.xml.parsers.SAXParserFactory.limit.element.depth=100
+ * javax.xml.parsers.SAXParserFactory.limit.element.depth.callers=org.example.ModelImporter=1000
+ * </pre>
+ * Callers are matched in the same way as the white list, so may be classes, package prefixes or methods. A value
+ * of 0 or less (the default) means no limit. Documents that go over a limit fail with a SAXException and are
+ * counted by {@link FactoryMetrics}.
+ */
+class ParserLimits
+{
+    private static final Log logger = LogFactory.getLog(ParserLimits.class);
+
+    static final String SECURITY_MANAGER_PROPERTY = "http://apache.org/xml/properties/security-manager";
+
+    static final String CALLERS_SUFFIX = ".callers";
+
+    enum Limit
+    {
+        ENTITY_EXPANSION("limit.entity.expansion"),
+        DOCUMENT_SIZE("limit.document.size"),
+        ELEMENT_DEPTH("limit.element.depth"),
+        ELEMENT_ATTRIBUTES("limit.element.attributes");
+
+        final String propertyName;
+
+        Limit(String propertyName)
+        {
+            this.propertyName = propertyName;
+        }
+
+        String getCallersPropertyName()
+        {
+            return propertyName + CALLERS_SUFFIX;
+        }
+
+        /**
+         * @return {@code true} if the limit is enforced on the parsers of the factory type.
+         */
+        boolean appliesTo(Class<?> factoryType)
+        {
+            return factoryType == SAXParserFactory.class || this == ENTITY_EXPANSION || this == DOCUMENT_SIZE;
+        }
+    }
+
+    static final List<String> PROPERTY_NAMES;
+    static
+    {
+        String[] names = new String[Limit.values().length * 2];
+        for (Limit limit : Limit.values())
+        {
+            names[limit.ordinal() * 2] = limit.propertyName;
+            names[limit.ordinal() * 2 + 1] = limit.getCallersPropertyName();
+        }
+        PROPERTY_NAMES = Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    static final ParserLimits NONE = new ParserLimits(new long[Limit.values().length]);
+
+    private final long[] values;
+    private final boolean enabled;
+
+    private ParserLimits(long[] values)
+    {
+        this.values = values;
+        boolean any = false;
+        for (long value : values)
+        {
+            any |= value > 0;
+        }
+        this.enabled = any;
+    }
+
+    /**
+     * Returns the limits of the current configuration for the class that asked for a factory.
+     *
+     * @param useCaller {@code false} if the factory is shared, so only the default limits apply.
+     */
+    static ParserLimits get(Class<?> factoryType, FactoryHelper factoryHelper, boolean useCaller)
+    {
+        Selection selection = ConfigurationSnapshot.getInstance().getDerived(Selection.class, Selection::new);
+        return selection.select(factoryType, factoryHelper, useCaller);
+    }
+
+    /**
+     * Returns the limits set with a prefix, such as those of a {@link FactoryProfile}. Limits that are not set with
+     * the prefix are taken from the factory type's default limits.
+     *
+     * @return the limits, or {@code null} if none are set with the prefix.
+     */
+    static ParserLimits get(ConfigurationSnapshot configuration, Class<?> factoryType, String prefix)
+    {
+        ParserLimits defaults = configuration.getDerived(Selection.class, Selection::new)
+                .select(factoryType, null, false);
+        long[] values = defaults.values.clone();
+        boolean any = false;
+        for (Limit limit : Limit.values())
+        {
+            List<String> value = configuration.getConfiguration(factoryType, prefix + limit.propertyName,
+                    Collections.emptyList());
+            if (!value.isEmpty() && limit.appliesTo(factoryType))
+            {
+                long parsed = Selection.parse(prefix + limit.propertyName, value.get(0));
+                if (parsed != 0)
+                {
+                    values[limit.ordinal()] = parsed;
+                    any = true;
+                }
+            }
+        }
+        return any ? new ParserLimits(values) : null;
+    }
+
+    /**
+     * @return the limit, or 0 if there is none.
+     */
+    long get(Limit limit)
+    {
+        return Math.max(values[limit.ordinal()], 0);
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return {@code true} if the document has to be counted as it is read.
+     */
+    boolean isSizeLimited()
+    {
+        return get(Limit.DOCUMENT_SIZE) > 0;
+    }
+
+    /**
+     * @return a Xerces SecurityManager holding the entity expansion limit, or {@code null} if there is no limit.
+     */
+    SecurityManager newSecurityManager()
+    {
+        long limit = get(Limit.ENTITY_EXPANSION);
+        if (limit <= 0)
+        {
+            return null;
+        }
+        SecurityManager securityManager = new SecurityManager();
+        securityManager.setEntityExpansionLimit((int) Math.min(limit, Integer.MAX_VALUE));
+        return securityManager;
+    }
+
+    /**
+     * Creates the exception thrown when a document goes over a limit, counting it in {@link FactoryMetrics}.
+     */
+    SAXParseException exceeded(Limit limit, String detail, Locator locator)
+    {
+        FactoryMetrics.getInstance().limitExceeded(limit.propertyName);
+        String message = "Document rejected, as its " + detail + " is over the " + limit.propertyName + " of "
+                + get(limit);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(message);
+        }
+        return new SAXParseException(message, locator);
+    }
+
+    /**
+     * Counts a parse failure if it was the Xerces scanner rejecting a document for its entity expansions.
+     */
+    void parseFailed(SAXException e)
+    {
+        String message = e.getMessage();
+        if (get(Limit.ENTITY_EXPANSION) > 0 && message != null
+                && message.toLowerCase(Locale.ROOT).contains("entity expansions"))
+        {
+            FactoryMetrics.getInstance().limitExceeded(Limit.ENTITY_EXPANSION.propertyName);
+        }
+    }
+
+    /**
+     * Returns a copy of the source that counts the bytes or characters read. If the source only has a system id, the
+     * document is opened here so that it can be counted, and must be closed by the caller.
+     */
+    InputSource countSize(InputSource source) throws IOException
+    {
+        InputSource counted = new InputSource();
+        counted.setSystemId(source.getSystemId());
+        counted.setPublicId(source.getPublicId());
+        counted.setEncoding(source.getEncoding());
+        if (source.getCharacterStream() != null)
+        {
+            counted.setCharacterStream(new SizeLimitedReader(source.getCharacterStream()));
+        }
+        else if (source.getByteStream() != null)
+        {
+            counted.setByteStream(new SizeLimitedInputStream(source.getByteStream()));
+        }
+        else if (source.getSystemId() != null)
+        {
+            counted.setByteStream(new SizeLimitedInputStream(toURL(source.getSystemId()).openStream()));
+        }
+        return counted;
+    }
+
+    static URL toURL(String systemId) throws IOException
+    {
+        try
+        {
+            return new URL(systemId);
+        }
+        catch (MalformedURLException e)
+        {
+            // A file name, as accepted by the parser.
+            return Paths.get(systemId).toUri().toURL();
+        }
+    }
+
+    /**
+     * Closes the stream opened by {@link #countSize(InputSource)}, if it opened one.
+     */
+    static void closeOpened(InputSource source, InputSource counted)
+    {
+        if (source.getByteStream() == null && source.getCharacterStream() == null && counted.getByteStream() != null)
+        {
+            try
+            {
+                counted.getByteStream().close();
+            }
+            catch (IOException e)
+            {
+                // Already read, or failed while reading
+            }
+        }
+    }
+
+    /**
+     * Turns the IOException thrown by a counted stream back into a SAXException once it has passed through the parser.
+     */
+    static SAXException getExceeded(IOException e)
+    {
+        return e instanceof SizeExceededException ? ((SizeExceededException) e).exception : null;
+    }
+
+    private void countBytes(long count, long limit) throws SizeExceededException
+    {
+        if (count > limit)
+        {
+            throw new SizeExceededException(exceeded(Limit.DOCUMENT_SIZE, "size", null));
+        }
+    }
+
+    private static class SizeExceededException extends IOException
+    {
+        private final SAXParseException exception;
+
+        SizeExceededException(SAXParseException exception)
+        {
+            super(exception.getMessage());
+            this.exception = exception;
+        }
+    }
+
+    private class SizeLimitedInputStream extends FilterInputStream
+    {
+        private final long limit = get(Limit.DOCUMENT_SIZE);
+        private long count;
+
+        SizeLimitedInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+            {
+                countBytes(++count, limit);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+            {
+                countBytes(count += n, limit);
+            }
+            return n;
+        }
+    }
+
+    private class SizeLimitedReader extends FilterReader
+    {
+        private final long limit = get(Limit.DOCUMENT_SIZE);
+        private long count;
+
+        SizeLimitedReader(Reader in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int c = super.read();
+            if (c != -1)
+            {
+                countBytes(++count, limit);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+            {
+                countBytes(count += n, limit);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The limits of one version of the configuration, for each factory type and caller.
+     */
+    static class Selection
+    {
+        private final Map<Class<?>, ParserLimits> defaultLimits = new HashMap<>();
+        private final Map<Class<?>, CallerMatcher<ParserLimits>> callerLimits = new HashMap<>();
+
+        Selection(ConfigurationSnapshot configuration)
+        {
+            for (Class<?> factoryType : Arrays.asList(DocumentBuilderFactory.class, SAXParserFactory.class))
+            {
+                long[] defaults = new long[Limit.values().length];
+                Map<String, long[]> callers = new HashMap<>();
+                for (Limit limit : Limit.values())
+                {
+                    List<String> value = configuration.getConfiguration(factoryType, limit.propertyName,
+                            Collections.emptyList());
+                    List<String> callerValues = configuration.getConfiguration(factoryType,
+                            limit.getCallersPropertyName(), Collections.emptyList());
+                    if (!limit.appliesTo(factoryType))
+                    {
+                        if ((!value.isEmpty() || !callerValues.isEmpty()) && logger.isWarnEnabled())
+                        {
+                            logger.warn("Ignoring " + factoryType.getName() + '.' + limit.propertyName
+                                    + ", as it only applies to SAXParsers");
+                        }
+                        continue;
+                    }
+                    if (!value.isEmpty())
+                    {
+                        defaults[limit.ordinal()] = parse(limit.propertyName, value.get(0));
+                    }
+                    for (String entry : callerValues)
+                    {
+                        int i = entry.indexOf('=');
+                        if (i <= 0)
+                        {
+                            if (logger.isWarnEnabled())
+                            {
+                                logger.warn("Ignoring " + limit.getCallersPropertyName()
+                                        + " entry, as it is not <className>=<limit>: " + entry);
+                            }
+                            continue;
+                        }
+                        long[] values = callers.computeIfAbsent(entry.substring(0, i).trim(),
+                                k -> new long[Limit.values().length]);
+                        values[limit.ordinal()] = parse(limit.getCallersPropertyName(), entry.substring(i+1));
+                    }
+                }
+
+                Map<String, ParserLimits> limitsByCaller = new HashMap<>();
+                for (Map.Entry<String, long[]> entry : callers.entrySet())
+                {
+                    // A caller's limits default to the factory type's limits.
+                    long[] values = entry.getValue();
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        if (values[i] == 0)
+                        {
+                            values[i] = defaults[i];
+                        }
+                    }
+                    limitsByCaller.put(entry.getKey(), new ParserLimits(values));
+                }
+                defaultLimits.put(factoryType, new ParserLimits(defaults));
+                callerLimits.put(factoryType, new CallerMatcher<>(limitsByCaller));
+            }
+        }
+
+        /**
+         * @return the limit, -1 if it is set to no limit, or 0 if it is not a number, so that a mistake in a
+         * caller's value leaves the default limit in place.
+         */
+        private static long parse(String propertyName, String value)
+        {
+            try
+            {
+                long limit = Long.parseLong(value.trim());
+                return limit <= 0 ? -1 : limit;
+            }
+            catch (NumberFormatException e)
+            {
+                if (logger.isWarnEnabled())
+                {
+                    logger.warn("Ignoring " + propertyName + " as it is not a number: " + value);
+                }
+                return 0;
+            }
+        }
+
+        ParserLimits select(Class<?> factoryType, FactoryHelper factoryHelper, boolean useCaller)
+        {
+            CallerMatcher<ParserLimits> callers = callerLimits.get(factoryType);
+            if (useCaller && callers != null && !callers.isEmpty())
+            {
+                ParserLimits limits = factoryHelper.getCallerValue(callers);
+                if (limits != null)
+                {
+                    return limits;
+                }
+            }
+            ParserLimits limits = defaultLimits.get(factoryType);
+            return limits == null ? NONE : limits;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * An opt-in, bounded pool of {@link DocumentBuilder} or {@link SAXParser} instances, so that callers that parse many
+ * small documents do not pay for a new Xerces configuration, symbol table and entity manager on each one.<p>
+ *
+ * Parsers are {@code reset()} when they are returned and their security related settings are compared with those
+ * of a freshly created parser. A parser that no longer matches is discarded rather than lent out again. The pool
+ * size is capped globally, so idle parsers do not build up as the number of threads grows.<p>
+ *
+ * A borrowed parser must only be used by one thread and must be returned with {@link #release(Object)}, typically
+ * in a finally block.
+ *
+ * @param <T> DocumentBuilder or SAXParser
+ */
+public abstract class ParserPool<T>
+{
+    private static final Log logger = LogFactory.getLog(ParserPool.class);
+
+    private final int maxSize;
+    private final Deque<T> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder returnCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder discardCount = new LongAdder();
+
+    private volatile Map<String, Boolean> expectedSettings;
+
+    ParserPool(int maxSize)
+    {
+        if (maxSize < 0)
+        {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates a pool of DocumentBuilders from a hardened factory. The factory is hardened even if the caller is in
+     * the white list.
+     *
+     * @param maxSize the maximum number of idle DocumentBuilders kept by the pool.
+     * @return the new pool.
+     */
+    public static ParserPool<DocumentBuilder> newDocumentBuilderPool(int maxSize)
+    {
+        return newDocumentBuilderPool(DocumentBuilderFactoryXercesImpl.newHardenedInstance(), maxSize);
+    }
+
+    /**
+     * Creates a pool of DocumentBuilders from the supplied factory. The factory should not be changed after this call.
+     *
+     * @param factory used to create new DocumentBuilders.
+     * @param maxSize the maximum number of idle DocumentBuilders kept by the pool.
+     * @return the new pool.
+     */
+    public static ParserPool<DocumentBuilder> newDocumentBuilderPool(DocumentBuilderFactory factory, int maxSize)
+    {
+        return new DocumentBuilderPool(factory, maxSize);
+    }
+
+    /**
+     * Creates a pool of SAXParsers from a hardened factory. The factory is hardened even if the caller is in the
+     * white list.
+     *
+     * @param maxSize the maximum number of idle SAXParsers kept by the pool.
+     * @return the new pool.
+     */
+    public static ParserPool<SAXParser> newSAXParserPool(int maxSize)
+    {
+        return newSAXParserPool(SAXParserFactoryXercesImpl.newHardenedInstance(), maxSize);
+    }
+
+    /**
+     * Creates a pool of SAXParsers from the supplied factory. The factory should not be changed after this call.
+     *
+     * @param factory used to create new SAXParsers.
+     * @param maxSize the maximum number of idle SAXParsers kept by the pool.
+     * @return the new pool.
+     */
+    public static ParserPool<SAXParser> newSAXParserPool(SAXParserFactory factory, int maxSize)
+    {
+        return new SAXParserPool(factory, maxSize);
+    }
+
+    /**
+     * Lends out an idle parser, or creates a new one if there are none.
+     *
+     * @return a parser that must be returned with {@link #release(Object)}.
+     * @throws ParserConfigurationException if a new parser cannot be created.
+     */
+    public T borrow() throws ParserConfigurationException
+    {
+        borrowCount.increment();
+        T parser = idle.pollFirst();
+        if (parser != null)
+        {
+            idleCount.decrementAndGet();
+            return parser;
+        }
+
+        missCount.increment();
+        parser = create();
+        if (expectedSettings == null)
+        {
+            expectedSettings = getSettings(parser);
+        }
+        return parser;
+    }
+
+    /**
+     * Returns a parser to the pool. It is reset and then discarded if its security settings have been changed or
+     * the pool is already full.
+     *
+     * @param parser previously obtained from {@link #borrow()}. Ignored if {@code null}.
+     */
+    public void release(T parser)
+    {
+        if (parser == null)
+        {
+            return;
+        }
+        returnCount.increment();
+
+        try
+        {
+            reset(parser);
+        }
+        catch (RuntimeException e)
+        {
+            discard(parser, "reset failed", e);
+            return;
+        }
+
+        Map<String, Boolean> settings = getSettings(parser);
+        if (!settings.equals(expectedSettings))
+        {
+            discard(parser, "security settings changed from "+expectedSettings+" to "+settings, null);
+            return;
+        }
+
+        if (idleCount.incrementAndGet() > maxSize)
+        {
+            idleCount.decrementAndGet();
+            discardCount.increment();
+            return;
+        }
+        idle.offerFirst(parser);
+    }
+
+    private void discard(T parser, String reason, Exception e)
+    {
+        discardCount.increment();
+        if (logger.isWarnEnabled())
+        {
+            logger.warn("Discarded pooled " + parser.getClass().getName() + ": " + reason, e);
+        }
+    }
+
+    /**
+     * @return the number of calls to {@link #borrow()}.
+     */
+    public long getBorrowCount()
+    {
+        return borrowCount.sum();
+    }
+
+    /**
+     * @return the number of calls to {@link #release(Object)} with a non null parser.
+     */
+    public long getReturnCount()
+    {
+        return returnCount.sum();
+    }
+
+    /**
+     * @return the number of times {@link #borrow()} had to create a new parser.
+     */
+    public long getMissCount()
+    {
+        return missCount.sum();
+    }
+
+    /**
+     * @return the number of returned parsers that were not kept, because the pool was full or they failed the
+     * security check.
+     */
+    public long getDiscardCount()
+    {
+        return discardCount.sum();
+    }
+
+    /**
+     * @return the number of parsers currently waiting to be borrowed.
+     */
+    public int getIdleCount()
+    {
+        return idleCount.get();
+    }
+
+    /**
+     * @return the maximum number of idle parsers kept by the pool.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    abstract T create() throws ParserConfigurationException;
+
+    abstract void reset(T parser);
+
+    /**
+     * Returns the current values of the security related settings of a parser, keyed on feature name. Features the
+     * parser does not recognise are left out.
+     */
+    abstract Map<String, Boolean> getSettings(T parser);
+
+    private static class DocumentBuilderPool extends ParserPool<DocumentBuilder>
+    {
+        private final DocumentBuilderFactory factory;
+
+        private DocumentBuilderPool(DocumentBuilderFactory factory, int maxSize)
+        {
+            super(maxSize);
+            this.factory = factory;
+        }
+
+        @Override
+        DocumentBuilder create() throws ParserConfigurationException
+        {
+            return factory.newDocumentBuilder();
+        }
+
+        @Override
+        void reset(DocumentBuilder parser)
+        {
+            parser.reset();
+        }
+
+        @Override
+        Map<String, Boolean> getSettings(DocumentBuilder parser)
+        {
+            // Features cannot be changed through the DocumentBuilder API, so those that can be seen are checked.
+            Map<String, Boolean> settings = new LinkedHashMap<>();
+            settings.put(FactoryHelper.ADDITIONAL_FEATURE_X_INCLUDE_AWARE, parser.isXIncludeAware());
+            settings.put("validating", parser.isValidating());
+            return settings;
+        }
+    }
+
+    private static class SAXParserPool extends ParserPool<SAXParser>
+    {
+        private final SAXParserFactory factory;
+
+        private SAXParserPool(SAXParserFactory factory, int maxSize)
+        {
+            super(maxSize);
+            this.factory = factory;
+        }
+
+        @Override
+        SAXParser create() throws ParserConfigurationException
+        {
+            try
+            {
+                return factory.newSAXParser();
+            }
+            catch (SAXException e)
+            {
+                throw new ParserConfigurationException(e.getMessage());
+            }
+        }
+
+        @Override
+        void reset(SAXParser parser)
+        {
+            parser.reset();
+            if (factory instanceof SAXParserFactoryXercesImpl)
+            {
+                ((SAXParserFactoryXercesImpl) factory).parserReset(parser);
+            }
+        }
+
+        @Override
+        Map<String, Boolean> getSettings(SAXParser parser)
+        {
+            Map<String, Boolean> settings = new LinkedHashMap<>();
+            settings.put(FactoryHelper.ADDITIONAL_FEATURE_X_INCLUDE_AWARE, parser.isXIncludeAware());
+            try
+            {
+                XMLReader reader = parser.getXMLReader();
+                for (String feature : FactoryHelper.SECURITY_FEATURES)
+                {
+                    try
+                    {
+                        settings.put(feature, reader.getFeature(feature));
+                    }
+                    catch (SAXException e)
+                    {
+                        // Not recognised or supported by this parser, so cannot have been changed.
+                    }
+                }
+            }
+            catch (SAXException e)
+            {
+                settings.put("xmlReader", false);
+            }
+            return settings;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xerces.parsers.XMLGrammarPreparser;
+import org.apache.xerces.util.SymbolTable;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * The opt-in SymbolTable and grammar pool shared by the parsers of the DocumentBuilderFactory or SAXParserFactory,
+ * so that each parser does not have to intern the same names or parse the same grammars again. Set with these
+ * properties of {@code javax.xml.parsers.DocumentBuilderFactory} or {@code javax.xml.parsers.SAXParserFactory}:
+ * <li>{@code symbol.table.size} the number of symbols after which a new shared table is started, so that the
+ * number held does not grow without limit. 0 (the default) leaves each parser with its own table.</li>
+ * <li>{@code grammar.pool.trusted} ';' separated URLs of trusted {@code .xsd} and {@code .dtd} files. They are
+ * parsed once and the pool is then locked, so grammars referred to by the documents being parsed are never added
+ * and cannot be reused by other parsers. Empty (the default) means no pool.</li>
+ */
+class ParserResources
+{
+    private static final Log logger = LogFactory.getLog(ParserResources.class);
+
+    static final String SYMBOL_TABLE_SIZE = "symbol.table.size";
+    static final String TRUSTED_GRAMMARS = "grammar.pool.trusted";
+
+    static final String SYMBOL_TABLE_PROPERTY = "http://apache.org/xml/properties/internal/symbol-table";
+    static final String GRAMMAR_POOL_PROPERTY = "http://apache.org/xml/properties/internal/grammar-pool";
+
+    private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+
+    private final Shared documentBuilderResources;
+    private final Shared saxParserResources;
+
+    ParserResources(ConfigurationSnapshot configuration)
+    {
+        documentBuilderResources = new Shared(configuration, DocumentBuilderFactory.class);
+        saxParserResources = new Shared(configuration, SAXParserFactory.class);
+    }
+
+    /**
+     * @return the resources of the current configuration for the factory type.
+     */
+    static Shared get(Class<?> factoryType)
+    {
+        return get(ConfigurationSnapshot.getInstance(), factoryType);
+    }
+
+    static Shared get(ConfigurationSnapshot configuration, Class<?> factoryType)
+    {
+        ParserResources resources = configuration.getDerived(ParserResources.class, ParserResources::new);
+        return factoryType == DocumentBuilderFactory.class
+                ? resources.documentBuilderResources
+                : resources.saxParserResources;
+    }
+
+    /**
+     * The shared resources of one factory type.
+     */
+    static class Shared
+    {
+        private final int maxSymbols;
+        private final AtomicReference<SharedSymbolTable> symbolTable = new AtomicReference<>();
+        private final XMLGrammarPoolImpl grammarPool;
+
+        Shared(ConfigurationSnapshot configuration, Class<?> factoryType)
+        {
+            this(configuration, factoryType, "");
+        }
+
+        /**
+         * @param prefix added to the property names, for resources that are not shared with the whole factory type,
+         * such as those of a {@link FactoryProfile}.
+         */
+        Shared(ConfigurationSnapshot configuration, Class<?> factoryType, String prefix)
+        {
+            maxSymbols = Math.max(0, configuration.getIntConfiguration(factoryType, prefix + SYMBOL_TABLE_SIZE, 0));
+            if (maxSymbols > 0)
+            {
+                symbolTable.set(new SharedSymbolTable());
+            }
+            grammarPool = newGrammarPool(factoryType, prefix + TRUSTED_GRAMMARS,
+                    configuration.getConfiguration(factoryType, prefix + TRUSTED_GRAMMARS, Collections.emptyList()));
+        }
+
+        private static XMLGrammarPoolImpl newGrammarPool(Class<?> factoryType, String propertyName,
+                List<String> trustedGrammars)
+        {
+            if (trustedGrammars.isEmpty())
+            {
+                return null;
+            }
+
+            XMLGrammarPoolImpl pool = new XMLGrammarPoolImpl();
+            XMLGrammarPreparser preparser = new XMLGrammarPreparser(new SymbolTable());
+            preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
+            preparser.registerPreparser(XMLGrammarDescription.XML_DTD, null);
+            preparser.setFeature(NAMESPACES_FEATURE, true);
+            preparser.setGrammarPool(pool);
+            for (String url : trustedGrammars)
+            {
+                String type = url.endsWith(".xsd") ? XMLGrammarDescription.XML_SCHEMA
+                        : url.endsWith(".dtd") ? XMLGrammarDescription.XML_DTD
+                        : null;
+                if (type == null)
+                {
+                    if (logger.isWarnEnabled())
+                    {
+                        logger.warn("Ignoring " + factoryType.getName() + '.' + propertyName
+                                + " entry, as it does not end in .xsd or .dtd: " + url);
+                    }
+                    continue;
+                }
+                try
+                {
+                    preparser.preparseGrammar(type, new XMLInputSource(null, url, null));
+                }
+                catch (Exception e)
+                {
+                    if (logger.isWarnEnabled())
+                    {
+                        logger.warn("Unable to load trusted grammar " + url, e);
+                    }
+                }
+            }
+            // No grammar from a parsed document may be added from now on.
+            pool.lockPool();
+            return pool;
+        }
+
+        boolean isEnabled()
+        {
+            return maxSymbols > 0 || grammarPool != null;
+        }
+
+        /**
+         * @return the current shared symbol table, or {@code null} if there is none. Once a table holds more than
+         * the maximum number of symbols, a new one is started. Parsers already using the old one carry on using it.
+         */
+        SymbolTable getSymbolTable()
+        {
+            SharedSymbolTable table = symbolTable.get();
+            if (table != null && table.size() > maxSymbols)
+            {
+                SharedSymbolTable replacement = new SharedSymbolTable();
+                if (symbolTable.compareAndSet(table, replacement))
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Started a new shared symbol table after " + maxSymbols + " symbols");
+                    }
+                    table = replacement;
+                }
+                else
+                {
+                    table = symbolTable.get();
+                }
+            }
+            return table;
+        }
+
+        XMLGrammarPoolImpl getGrammarPool()
+        {
+            return grammarPool;
+        }
+
+        void apply(DocumentBuilderFactory factory)
+        {
+            SymbolTable table = getSymbolTable();
+            if (table != null)
+            {
+                setAttribute(factory, SYMBOL_TABLE_PROPERTY, table);
+            }
+            if (grammarPool != null)
+            {
+                setAttribute(factory, GRAMMAR_POOL_PROPERTY, grammarPool);
+            }
+        }
+
+        void apply(SAXParser parser)
+        {
+            SymbolTable table = getSymbolTable();
+            if (table != null)
+            {
+                setProperty(parser, SYMBOL_TABLE_PROPERTY, table);
+            }
+            if (grammarPool != null)
+            {
+                setProperty(parser, GRAMMAR_POOL_PROPERTY, grammarPool);
+            }
+        }
+
+        private static void setAttribute(DocumentBuilderFactory factory, String name, Object value)
+        {
+            try
+            {
+                factory.setAttribute(name, value);
+            }
+            catch (IllegalArgumentException e)
+            {
+                if (logger.isWarnEnabled())
+                {
+                    logger.warn("Unable to share " + name + " with " + factory.getClass().getName(), e);
+                }
+            }
+        }
+
+        private static void setProperty(SAXParser parser, String name, Object value)
+        {
+            try
+            {
+                parser.setProperty(name, value);
+            }
+            catch (SAXException e)
+            {
+                if (logger.isWarnEnabled())
+                {
+                    logger.warn("Unable to share " + name + " with " + parser.getClass().getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Looks for a DOCTYPE in the first few KB of a document without parsing it, so that documents with one can be
+ * rejected, or sent elsewhere, before a DocumentBuilder or SAXParser is created. Only the prolog is read: the XML
+ * declaration, processing instructions, comments and white space are skipped until either a DOCTYPE or the root
+ * element is found.<p>
+ *
+ * Bytes are read as UTF-8 or another ASCII compatible encoding, or as UTF-16 if there is a byte order mark or the
+ * first character is {@code '<'}. Anything else is {@link Prolog#UNDECIDED}, rather than risk the parser reading a
+ * DOCTYPE the scan did not see: a 0x00 byte in the first four that is not UTF-16 (such as UTF-32 or UCS-4 in any
+ * byte order), a first character other than {@code '<'} (such as EBCDIC), an explicit encoding that is not ASCII
+ * compatible, and prologs longer than the bytes scanned.
+ */
+public final class PrologScanner
+{
+    /**
+     * What was found in the prolog.
+     */
+    public enum Prolog
+    {
+        /** The document has a DOCTYPE. */
+        DOCTYPE,
+
+        /** The root element was reached without a DOCTYPE. */
+        NO_DOCTYPE,
+
+        /** The end of the prolog was not reached, or the encoding is not supported by the scan. */
+        UNDECIDED
+    }
+
+    /** The number of bytes or characters scanned by default. */
+    public static final int DEFAULT_SCAN_SIZE = 4096;
+
+    private static final char[] DOCTYPE = "<!DOCTYPE".toCharArray();
+
+    // Every character the scan looks for, to check that an explicit encoding gives them their ASCII values.
+    private static final String SCANNED_CHARACTERS = "<?!->DOCTYPE \t\r\n";
+
+    private PrologScanner()
+    {
+    }
+
+    /**
+     * Scans the start of a stream, which is then reset so the whole document can still be parsed.
+     *
+     * @param in a stream that supports {@link InputStream#mark(int) mark}, such as a BufferedInputStream.
+     * @throws IllegalArgumentException if the stream does not support mark.
+     */
+    public static Prolog scan(InputStream in) throws IOException
+    {
+        return scan(in, null);
+    }
+
+    /**
+     * Scans the start of a stream, which is then reset so the whole document can still be parsed.
+     *
+     * @param in a stream that supports {@link InputStream#mark(int) mark}, such as a BufferedInputStream.
+     * @param encoding the encoding the parser has been told to use, as in
+     * {@link org.xml.sax.InputSource#getEncoding()}, or {@code null} if it is to detect it.
+     * @throws IllegalArgumentException if the stream does not support mark.
+     */
+    public static Prolog scan(InputStream in, String encoding) throws IOException
+    {
+        if (!in.markSupported())
+        {
+            throw new IllegalArgumentException("The stream must support mark: " + in.getClass().getName());
+        }
+        byte[] bytes = new byte[DEFAULT_SCAN_SIZE];
+        in.mark(bytes.length);
+        try
+        {
+            return scan(bytes, 0, readFully(in, bytes), encoding);
+        }
+        finally
+        {
+            in.reset();
+        }
+    }
+
+    /**
+     * Scans the start of a character stream, which is then reset so the whole document can still be parsed.
+     *
+     * @param reader a reader that supports {@link Reader#mark(int) mark}, such as a BufferedReader.
+     * @throws IllegalArgumentException if the reader does not support mark.
+     */
+    public static Prolog scan(Reader reader) throws IOException
+    {
+        if (!reader.markSupported())
+        {
+            throw new IllegalArgumentException("The reader must support mark: " + reader.getClass().getName());
+        }
+        char[] chars = new char[DEFAULT_SCAN_SIZE];
+        reader.mark(chars.length);
+        try
+        {
+            int length = 0;
+            for (int n; length < chars.length && (n = reader.read(chars, length, chars.length - length)) != -1; )
+            {
+                length += n;
+            }
+            return scan(chars, 0, length);
+        }
+        finally
+        {
+            reader.reset();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] bytes) throws IOException
+    {
+        int length = 0;
+        for (int n; length < bytes.length && (n = in.read(bytes, length, bytes.length - length)) != -1; )
+        {
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Scans the first bytes of a document.
+     */
+    public static Prolog scan(byte[] bytes, int offset, int length)
+    {
+        return scan(bytes, offset, length, null);
+    }
+
+    /**
+     * Scans the first bytes of a document that the parser has been told are in the given encoding.
+     *
+     * @param encoding the encoding name, or {@code null} if the parser is to detect it.
+     */
+    public static Prolog scan(byte[] bytes, int offset, int length, String encoding)
+    {
+        if (encoding != null && !isAsciiCompatible(encoding))
+        {
+            return Prolog.UNDECIDED;
+        }
+
+        int end = offset + length;
+        int b0 = length > 0 ? bytes[offset] & 0xFF : -1;
+        int b1 = length > 1 ? bytes[offset + 1] & 0xFF : -1;
+        int b2 = length > 2 ? bytes[offset + 2] & 0xFF : -1;
+        int b3 = length > 3 ? bytes[offset + 3] & 0xFF : -1;
+
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF)
+        {
+            return scan(new Bytes(bytes, offset + 3, end, 1, 0));
+        }
+        if ((b0 == 0xFE && b1 == 0xFF && (b2 != 0 || b3 != 0)) || (b0 == 0 && b1 == '<' && b2 == 0))
+        {
+            int start = b0 == 0xFE ? offset + 2 : offset;
+            return scan(new Bytes(bytes, start, end, 2, 1));
+        }
+        if ((b0 == 0xFF && b1 == 0xFE && (b2 != 0 || b3 != 0)) || (b0 == '<' && b1 == 0 && b2 != 0))
+        {
+            int start = b0 == 0xFF ? offset + 2 : offset;
+            return scan(new Bytes(bytes, start, end, 2, 0));
+        }
+        if (b0 == 0 || b1 == 0 || b2 == 0 || b3 == 0 || b0 == 0xFE || b0 == 0xFF || b0 == 0x4C)
+        {
+            // UTF-32, UCS-4, UTF-16 without a '<' to go on, or EBCDIC
+            return Prolog.UNDECIDED;
+        }
+        return scan(new Bytes(bytes, offset, end, 1, 0));
+    }
+
+    /**
+     * Scans the first characters of a document.
+     */
+    public static Prolog scan(char[] chars, int offset, int length)
+    {
+        int start = length > 0 && chars[offset] == '\uFEFF' ? offset + 1 : offset;
+        int end = offset + length;
+        return scan(new Text()
+        {
+            @Override
+            public int length()
+            {
+                return end - start;
+            }
+
+            @Override
+            public int charAt(int index)
+            {
+                return chars[start + index];
+            }
+        });
+    }
+
+    /**
+     * The characters being scanned, which may be bytes in one of several encodings.
+     */
+    private interface Text
+    {
+        int length();
+
+        int charAt(int index);
+    }
+
+    /**
+     * Characters in a single byte, UTF-8 or UTF-16 encoding. Only ASCII characters matter to the scan, so each
+     * character is taken from the low byte of its code unit, and any other byte makes it non-ASCII.
+     */
+    private static class Bytes implements Text
+    {
+        private final byte[] bytes;
+        private final int start;
+        private final int length;
+        private final int unit;
+        private final int low;
+
+        Bytes(byte[] bytes, int start, int end, int unit, int low)
+        {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = (end - start) / unit;
+            this.unit = unit;
+            this.low = low;
+        }
+
+        @Override
+        public int length()
+        {
+            return length;
+        }
+
+        @Override
+        public int charAt(int index)
+        {
+            int i = start + index * unit;
+            if (unit == 2 && bytes[i + 1 - low] != 0)
+            {
+                return 0x80;
+            }
+            return bytes[i + low] & 0xFF;
+        }
+    }
+
+    private static Prolog scan(Text text)
+    {
+        int length = text.length();
+        int i = 0;
+        while (true)
+        {
+            while (i < length && isWhiteSpace(text.charAt(i)))
+            {
+                i++;
+            }
+            if (i + 1 >= length)
+            {
+                return Prolog.UNDECIDED;
+            }
+            if (text.charAt(i) != '<')
+            {
+                // Not well formed as ASCII, but may be in an encoding the scan did not recognise
+                return Prolog.UNDECIDED;
+            }
+            int next = text.charAt(i + 1);
+            if (next == '?')
+            {
+                i = skipPast(text, i + 2, '?', '>', 0);
+            }
+            else if (next != '!')
+            {
+                return Prolog.NO_DOCTYPE;
+            }
+            else if (i + 3 < length && text.charAt(i + 2) == '-' && text.charAt(i + 3) == '-')
+            {
+                i = skipPast(text, i + 4, '-', '-', '>');
+            }
+            else
+            {
+                return matchDoctype(text, i);
+            }
+            if (i < 0)
+            {
+                return Prolog.UNDECIDED;
+            }
+        }
+    }
+
+    private static Prolog matchDoctype(Text text, int i)
+    {
+        for (int j = 0; j < DOCTYPE.length; j++)
+        {
+            if (i + j >= text.length())
+            {
+                return Prolog.UNDECIDED;
+            }
+            if (text.charAt(i + j) != DOCTYPE[j])
+            {
+                return Prolog.NO_DOCTYPE;
+            }
+        }
+        return Prolog.DOCTYPE;
+    }
+
+    /**
+     * @return the index after the terminator of two or three characters (the third is 0 if not used), or -1 if the
+     * text ends first.
+     */
+    private static int skipPast(Text text, int i, int c1, int c2, int c3)
+    {
+        int size = c3 == 0 ? 2 : 3;
+        for (int end = text.length() - size; i <= end; i++)
+        {
+            if (text.charAt(i) == c1 && text.charAt(i + 1) == c2 && (c3 == 0 || text.charAt(i + 2) == c3))
+            {
+                return i + size;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAsciiCompatible(String encoding)
+    {
+        try
+        {
+            Charset charset = Charset.forName(encoding);
+            return Arrays.equals(SCANNED_CHARACTERS.getBytes(StandardCharsets.US_ASCII),
+                    SCANNED_CHARACTERS.getBytes(charset));
+        }
+        catch (IllegalArgumentException | UnsupportedOperationException e)
+        {
+            // Unknown, or not supported by this JVM
+            return false;
+        }
+    }
+
+    private static boolean isWhiteSpace(int c)
+    {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
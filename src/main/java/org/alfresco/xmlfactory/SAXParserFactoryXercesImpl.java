@@ -18,34 +18,122 @@
  */
 package org.alfresco.xmlfactory;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.xerces.jaxp.SAXParserFactoryImpl;
+import org.apache.xerces.util.SecurityManager;
+import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import java.util.Collections;
 import java.util.List;
 
 public class SAXParserFactoryXercesImpl extends SAXParserFactoryImpl
 {
-    // Static so we only do this configuration lookup once
+    private static final Log logger = LogFactory.getLog(SAXParserFactoryXercesImpl.class);
+
     private static FactoryHelper factoryHelper = new FactoryHelper();
-    private static List<String> FEATURES_TO_ENABLE = factoryHelper.getConfiguration(SAXParserFactory.class,
-            FactoryHelper.FEATURES_TO_ENABLE,  FactoryHelper.DEFAULT_FEATURES_TO_ENABLE);
-    private static List<String> FEATURES_TO_DISABLE = factoryHelper.getConfiguration(SAXParserFactory.class,
-            FactoryHelper.FEATURES_TO_DISABLE, FactoryHelper.DEFAULT_FEATURES_TO_DISABLE);
-    private static List<String> WHITE_LIST_CALLERS = factoryHelper.getConfiguration(SAXParserFactory.class,
-            FactoryHelper.WHITE_LIST_CALLERS,  FactoryHelper.DEFAULT_WHITE_LIST_CALLERS);
+
+    private final ParserResources.Shared parserResources;
+
+    private final ParserLimits limits;
+    private final SecurityManager securityManager;
+    private final DoctypePolicy doctypePolicy;
+    private final CatalogEntityResolver entityResolver;
 
     public SAXParserFactoryXercesImpl()
     {
-        factoryHelper.configureFactory(this, FEATURES_TO_ENABLE, FEATURES_TO_DISABLE, WHITE_LIST_CALLERS);
+        this(false);
+    }
+
+    private SAXParserFactoryXercesImpl(boolean hardened)
+    {
+        FactorySettings<SAXParserFactory> settings = getSettings();
+        FactoryProfile factoryProfile = hardened ? null : FactoryProfile.get(SAXParserFactory.class, factoryHelper);
+        if (factoryProfile != null)
+        {
+            factoryHelper.configureFactory(this, factoryProfile.getFeaturePlan(settings,
+                    SAXParserFactoryXercesImpl::compileFeaturePlan), factoryProfile);
+        }
+        else
+        {
+            factoryHelper.configureFactory(this, settings.getFeaturePlan(),
+                    hardened ? Collections.emptyList() : settings.getWhiteListCallers());
+        }
+
+        parserResources = factoryProfile != null && factoryProfile.getResources() != null
+                ? factoryProfile.getResources()
+                : ParserResources.get(SAXParserFactory.class);
+        limits = factoryProfile != null && factoryProfile.getLimits() != null
+                ? factoryProfile.getLimits()
+                : ParserLimits.get(SAXParserFactory.class, factoryHelper, !hardened);
+        securityManager = limits.newSecurityManager();
+        doctypePolicy = DoctypePolicy.get(SAXParserFactory.class, factoryHelper, !hardened);
+        entityResolver = CatalogEntityResolver.get(SAXParserFactory.class);
+    }
+
+    /**
+     * Returns the settings of the current configuration. Features are tried once on a plain Xerces factory, so new
+     * factories just have them stamped on.
+     */
+    private static FactorySettings<SAXParserFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(SAXParserFactory.class,
+                FactoryHelper.DEFAULT_FEATURES_TO_ENABLE, FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                SAXParserFactoryXercesImpl::compileFeaturePlan);
+    }
+
+    private static FeaturePlan<SAXParserFactory> compileFeaturePlan(List<String> featuresToEnable,
+            List<String> featuresToDisable)
+    {
+        return factoryHelper.compileFeaturePlan(new SAXParserFactoryImpl(), featuresToEnable, featuresToDisable);
+    }
+
+    /**
+     * Creates a factory that is hardened even if the caller is in the white list. Used where the factory is shared,
+     * so the first caller must not decide the configuration for everyone else.
+     */
+    static SAXParserFactoryXercesImpl newHardenedInstance()
+    {
+        return new SAXParserFactoryXercesImpl(true);
     }
 
     @Override
     public SAXParser newSAXParser() throws ParserConfigurationException
     {
         SAXParser saxParser = super.newSAXParser();
-        factoryHelper.debugNewParser(saxParser);
-        return saxParser;
+        parserReset(saxParser);
+        factoryHelper.parserCreated(saxParser);
+        return limits.isEnabled() || doctypePolicy != DoctypePolicy.ALLOW || entityResolver != null
+                ? new FilteredSAXParser(saxParser, limits, doctypePolicy, entityResolver)
+                : saxParser;
+    }
+
+    /**
+     * Gives a new or reset parser the shared SymbolTable and grammar pool, if they are in use, and the entity
+     * expansion limit, if there is one. Reset removes them.
+     */
+    void parserReset(SAXParser saxParser)
+    {
+        if (parserResources.isEnabled())
+        {
+            parserResources.apply(saxParser);
+        }
+        if (securityManager != null)
+        {
+            try
+            {
+                saxParser.setProperty(ParserLimits.SECURITY_MANAGER_PROPERTY, securityManager);
+            }
+            catch (SAXException e)
+            {
+                if (logger.isWarnEnabled())
+                {
+                    logger.warn("Unable to set the entity expansion limit on " + saxParser.getClass().getName(), e);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+
+/**
+ * A W3C XML Schema SchemaFactory configured in the same way as {@link DocumentBuilderFactoryXercesImpl}: features are
+ * enabled and disabled unless the caller is in the white list. The Xerces XMLSchemaFactory is final, so this wraps
+ * it rather than extending it.<p>
+ *
+ * Compiled {@link Schema}s are shared between factories through a bounded cache, keyed on the schemas' system ids
+ * and a hash of their content, so a schema is not recompiled for each validation. Only schemas supplied as a
+ * {@link javax.xml.transform.stream.StreamSource} with an InputStream or Reader are cached, and only while the
+ * factory has not been changed from its bootstrap configuration. Schemas that use {@code xs:include},
+ * {@code xs:import} or {@code xs:redefine} are not cached, as the included files are not part of the key. Entries
+ * are compiled on a private factory, see {@link SharedCompiler}. The cache size is set with the
+ * {@code schema.cache.size} property (default 100, 0 turns caching off), which only takes effect on a restart, as
+ * the cache is created when the class is loaded.<p>
+ *
+ * Secure processing in Xerces only limits entity expansion, so a hardened factory also refuses external resources
+ * itself. Until the caller sets a resolver, schema documents named by {@code xs:import}, {@code xs:include} and
+ * {@code xs:redefine} and external DTDs are refused, and the Schemas returned are {@link HardenedSchema}s, whose
+ * validators refuse the external DTDs and entities of the documents they validate.
+ */
+public class SchemaFactoryXercesImpl extends SchemaFactory
+{
+    static final String SCHEMA_CACHE_SIZE = "schema.cache.size";
+
+    private static FactoryHelper factoryHelper = new FactoryHelper();
+
+    private static final BoundedCache<String, Schema> SCHEMA_CACHE = new BoundedCache<>(
+            ConfigurationSnapshot.getInstance().getIntConfiguration(SchemaFactory.class, SCHEMA_CACHE_SIZE, 100));
+
+    private static final BoundedCache<String, SharedCompiler<SchemaFactory>> COMPILERS = new BoundedCache<>(4);
+
+    private final SchemaFactory delegate = new XMLSchemaFactory();
+    private final String cacheKeyPrefix;
+    private final FeaturePlan<SchemaFactory> featurePlan;
+    private volatile boolean customised;
+
+    public SchemaFactoryXercesImpl()
+    {
+        FactorySettings<SchemaFactory> settings = getSettings();
+        boolean hardened = factoryHelper.configureFactory(delegate, settings.getFeaturePlan(),
+                settings.getWhiteListCallers());
+        // The version keeps entries compiled under an earlier configuration from being reused.
+        cacheKeyPrefix = (hardened ? "hardened" : "whitelisted")+settings.getVersion();
+        featurePlan = hardened ? settings.getFeaturePlan() : null;
+        if (hardened)
+        {
+            delegate.setResourceResolver(HardenedSchema.REFUSE_EXTERNAL_RESOURCES);
+        }
+    }
+
+    /**
+     * Returns the settings of the current configuration. Features are tried once on a plain factory, so new
+     * factories just have them stamped on.
+     */
+    private static FactorySettings<SchemaFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(SchemaFactory.class,
+                FactoryHelper.DEFAULT_SCHEMA_FEATURES_TO_ENABLE, FactoryHelper.DEFAULT_SCHEMA_FEATURES_TO_DISABLE,
+                (enable, disable) -> factoryHelper.compileFeaturePlan(new XMLSchemaFactory(), enable, disable));
+    }
+
+    static BoundedCache<String, Schema> getSchemaCache()
+    {
+        return SCHEMA_CACHE;
+    }
+
+    @Override
+    public boolean isSchemaLanguageSupported(String schemaLanguage)
+    {
+        return XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(schemaLanguage) &&
+                delegate.isSchemaLanguageSupported(schemaLanguage);
+    }
+
+    @Override
+    public Schema newSchema(Source[] schemas) throws SAXException
+    {
+        if (customised || SCHEMA_CACHE.getMaxSize() == 0)
+        {
+            return harden(delegate.newSchema(schemas));
+        }
+
+        CacheableSources cacheable;
+        try
+        {
+            cacheable = CacheableSources.read(cacheKeyPrefix, schemas);
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);
+        }
+        if (cacheable == null)
+        {
+            return harden(delegate.newSchema(schemas));
+        }
+        if (cacheable.getKey() == null)
+        {
+            return harden(delegate.newSchema(cacheable.getSources()));
+        }
+
+        Schema schema = SCHEMA_CACHE.get(cacheable.getKey());
+        if (schema == null)
+        {
+            Source[] replayable = cacheable.getSources();
+            ErrorHandler errorHandler = delegate.getErrorHandler();
+            schema = getCompiler().compile(compiler ->
+            {
+                compiler.setErrorHandler(errorHandler);
+                try
+                {
+                    return harden(compiler.newSchema(replayable));
+                }
+                finally
+                {
+                    compiler.setErrorHandler(null);
+                }
+            });
+            SCHEMA_CACHE.put(cacheable.getKey(), schema);
+        }
+        return schema;
+    }
+
+    private SharedCompiler<SchemaFactory> getCompiler()
+    {
+        return SharedCompiler.get(COMPILERS, cacheKeyPrefix, () ->
+        {
+            SchemaFactory factory = new XMLSchemaFactory();
+            if (featurePlan != null)
+            {
+                factoryHelper.applyFeaturePlan(factory, featurePlan);
+                factory.setResourceResolver(HardenedSchema.REFUSE_EXTERNAL_RESOURCES);
+            }
+            return factory;
+        });
+    }
+
+    private Schema harden(Schema schema)
+    {
+        return featurePlan == null ? schema : new HardenedSchema(schema);
+    }
+
+    @Override
+    public Schema newSchema() throws SAXException
+    {
+        return harden(delegate.newSchema());
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler)
+    {
+        delegate.setErrorHandler(errorHandler);
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler()
+    {
+        return delegate.getErrorHandler();
+    }
+
+    @Override
+    public void setResourceResolver(LSResourceResolver resourceResolver)
+    {
+        // A resolver may change what a schema imports, so the compiled result may not be shared.
+        customised = true;
+        delegate.setResourceResolver(resourceResolver == null && featurePlan != null
+                ? HardenedSchema.REFUSE_EXTERNAL_RESOURCES : resourceResolver);
+    }
+
+    @Override
+    public LSResourceResolver getResourceResolver()
+    {
+        LSResourceResolver resourceResolver = delegate.getResourceResolver();
+        return resourceResolver == HardenedSchema.REFUSE_EXTERNAL_RESOURCES ? null : resourceResolver;
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        customised = true;
+        delegate.setFeature(name, value);
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        return delegate.getFeature(name);
+    }
+
+    @Override
+    public void setProperty(String name, Object object) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        customised = true;
+        delegate.setProperty(name, object);
+    }
+
+    @Override
+    public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException
+    {
+        return delegate.getProperty(name);
+    }
+}
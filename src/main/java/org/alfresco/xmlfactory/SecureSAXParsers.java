@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Hands out hardened SAXParsers for the duration of a single call, for consumers that parse large numbers of small
+ * messages and should not pay for {@code SAXParserFactory.newInstance()} and {@code newSAXParser()} each time.<p>
+ *
+ * A parser is only used by one thread at a time: it is borrowed from a shared {@link ParserPool} for the call and
+ * reset when returned. Nothing is held in a ThreadLocal, so the number of idle parsers does not grow with the number
+ * of threads, which matters with virtual threads and with large executor pools. The pool size is set with the
+ * {@code pool.size} property of {@code javax.xml.parsers.SAXParserFactory} and defaults to twice the number of
+ * processors. Parsers are hardened even if the caller is in the white list.
+ */
+public final class SecureSAXParsers
+{
+    static final String POOL_SIZE = "pool.size";
+
+    /**
+     * Work done with a borrowed parser.
+     *
+     * @param <T> the result type
+     */
+    public interface SAXParserCallback<T>
+    {
+        /**
+         * @param parser for use during this call only. It must not be kept.
+         * @return the result of the callback.
+         * @throws SAXException if parsing fails.
+         * @throws IOException if the input cannot be read.
+         */
+        T execute(SAXParser parser) throws SAXException, IOException;
+    }
+
+    private static final SecureSAXParsers INSTANCE = new SecureSAXParsers(false);
+    private static final SecureSAXParsers NAMESPACE_AWARE_INSTANCE = new SecureSAXParsers(true);
+
+    private final ParserPool<SAXParser> pool;
+
+    private SecureSAXParsers(boolean namespaceAware)
+    {
+        SAXParserFactory factory = SAXParserFactoryXercesImpl.newHardenedInstance();
+        factory.setNamespaceAware(namespaceAware);
+        int poolSize = ConfigurationSnapshot.getInstance().getIntConfiguration(SAXParserFactory.class, POOL_SIZE,
+                2 * Runtime.getRuntime().availableProcessors());
+        pool = ParserPool.newSAXParserPool(factory, poolSize);
+    }
+
+    /**
+     * @return parsers with the SAXParserFactory default of not being namespace aware.
+     */
+    public static SecureSAXParsers getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return namespace aware parsers.
+     */
+    public static SecureSAXParsers getNamespaceAwareInstance()
+    {
+        return NAMESPACE_AWARE_INSTANCE;
+    }
+
+    /**
+     * Parses the input with a borrowed parser.
+     *
+     * @param source the input.
+     * @param handler receives the SAX events.
+     * @throws SAXException if parsing fails.
+     * @throws IOException if the input cannot be read.
+     */
+    public void parse(InputSource source, DefaultHandler handler) throws SAXException, IOException
+    {
+        execute(parser ->
+        {
+            parser.parse(source, handler);
+            return null;
+        });
+    }
+
+    /**
+     * Parses the input with a borrowed parser.
+     *
+     * @param in the input.
+     * @param handler receives the SAX events.
+     * @throws SAXException if parsing fails.
+     * @throws IOException if the input cannot be read.
+     */
+    public void parse(InputStream in, DefaultHandler handler) throws SAXException, IOException
+    {
+        parse(new InputSource(in), handler);
+    }
+
+    /**
+     * Borrows a parser for the duration of the callback.
+     *
+     * @param callback the work to do.
+     * @return the callback's result.
+     * @throws SAXException if the callback throws it or a parser cannot be created.
+     * @throws IOException if the callback throws it.
+     */
+    public <T> T execute(SAXParserCallback<T> callback) throws SAXException, IOException
+    {
+        SAXParser parser;
+        try
+        {
+            parser = pool.borrow();
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new SAXException(e);
+        }
+        try
+        {
+            return callback.execute(parser);
+        }
+        finally
+        {
+            pool.release(parser);
+        }
+    }
+
+    /**
+     * @return the pool of parsers, for its statistics.
+     */
+    public ParserPool<SAXParser> getPool()
+    {
+        return pool;
+    }
+}
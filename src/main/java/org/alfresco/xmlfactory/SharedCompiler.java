@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The factory that compiles the entries of one of the shared caches of compiled stylesheets, schemas or expressions.
+ * There is one for each cache key prefix, configured as a factory created under that configuration would be, and it
+ * is never handed to callers. JDK Templates and XPath expressions keep a reference to the factory that compiled them
+ * and read its security settings again when they are used, so compiling on the caller's own factory would let a
+ * caller that later weakens that factory weaken every factory that is given the same entry.<p>
+ *
+ * Factories are not thread safe, so compilations take turns.
+ *
+ * @param <F> the factory type
+ */
+class SharedCompiler<F>
+{
+    interface Compilation<F, R, E extends Exception>
+    {
+        R compile(F factory) throws E;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final F factory;
+
+    SharedCompiler(F factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the compiler of a cache key prefix, creating it if needed.
+     *
+     * @param compilers the compilers of one factory type, keyed on cache key prefix.
+     * @param cacheKeyPrefix identifies the configuration, and whether the factory is hardened.
+     * @param newFactory creates and configures a new private factory for the prefix.
+     */
+    static <F> SharedCompiler<F> get(BoundedCache<String, SharedCompiler<F>> compilers, String cacheKeyPrefix,
+            Supplier<F> newFactory)
+    {
+        SharedCompiler<F> compiler = compilers.get(cacheKeyPrefix);
+        if (compiler == null)
+        {
+            // Two threads may both create one. Either will do, as they are configured in the same way.
+            compiler = new SharedCompiler<>(newFactory.get());
+            compilers.put(cacheKeyPrefix, compiler);
+        }
+        return compiler;
+    }
+
+    <R, E extends Exception> R compile(Compilation<F, R, E> compilation) throws E
+    {
+        lock.lock();
+        try
+        {
+            return compilation.compile(factory);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
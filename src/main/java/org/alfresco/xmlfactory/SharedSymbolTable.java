@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.xerces.util.SymbolTable;
+
+/**
+ * A Xerces SymbolTable that may be used by many parsers at the same time. Symbols are spread over a number of
+ * stripes by their hash code, and only the stripe holding a symbol is locked while it is looked up or added, so
+ * parsers on different threads rarely wait for each other.
+ */
+class SharedSymbolTable extends SymbolTable
+{
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // Counted as symbols are added, so the size is read without locking the stripes.
+    private final AtomicInteger count = new AtomicInteger();
+
+    SharedSymbolTable()
+    {
+        // The buckets of this table are not used.
+        super(1);
+        for (int i = 0; i < STRIPES; i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public String addSymbol(String symbol)
+    {
+        Stripe stripe = stripes[symbol.hashCode() & (STRIPES - 1)];
+        stripe.lock.lock();
+        try
+        {
+            int size = stripe.size();
+            String added = stripe.addSymbol(symbol);
+            if (stripe.size() != size)
+            {
+                count.incrementAndGet();
+            }
+            return added;
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public String addSymbol(char[] buffer, int offset, int length)
+    {
+        Stripe stripe = stripes[hashCode(buffer, offset, length) & (STRIPES - 1)];
+        stripe.lock.lock();
+        try
+        {
+            int size = stripe.size();
+            String added = stripe.addSymbol(buffer, offset, length);
+            if (stripe.size() != size)
+            {
+                count.incrementAndGet();
+            }
+            return added;
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsSymbol(String symbol)
+    {
+        Stripe stripe = stripes[symbol.hashCode() & (STRIPES - 1)];
+        stripe.lock.lock();
+        try
+        {
+            return stripe.containsSymbol(symbol);
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsSymbol(char[] buffer, int offset, int length)
+    {
+        Stripe stripe = stripes[hashCode(buffer, offset, length) & (STRIPES - 1)];
+        stripe.lock.lock();
+        try
+        {
+            return stripe.containsSymbol(buffer, offset, length);
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of symbols held.
+     */
+    int size()
+    {
+        return count.get();
+    }
+
+    /**
+     * The same as String.hashCode(), so a symbol is in the same stripe whichever way it is passed in.
+     */
+    private static int hashCode(char[] buffer, int offset, int length)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+        {
+            hash = 31 * hash + buffer[offset + i];
+        }
+        return hash;
+    }
+
+    private static class Stripe extends SymbolTable
+    {
+        // Virtual threads park on a contended ReentrantLock, where a monitor would block their carrier.
+        final ReentrantLock lock = new ReentrantLock();
+
+        int size()
+        {
+            return fCount;
+        }
+    }
+}
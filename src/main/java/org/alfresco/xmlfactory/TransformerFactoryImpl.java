@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.IOException;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TemplatesHandler;
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.xml.sax.XMLFilter;
+
+/**
+ * A TransformerFactory configured in the same way as {@link DocumentBuilderFactoryXercesImpl}: features are enabled
+ * and disabled unless the caller is in the white list. Xerces has no XSLT processor, so this wraps the JDK's
+ * built-in factory.<p>
+ *
+ * Compiled {@link Templates} are shared between factories through a bounded cache, keyed on the stylesheet's system
+ * id and a hash of its content, so a stylesheet is not recompiled for each request. Only stylesheets supplied as a
+ * {@link javax.xml.transform.stream.StreamSource} with an InputStream or Reader are cached, and only while the
+ * factory has not been changed from its bootstrap configuration. Stylesheets that use {@code xsl:include} or
+ * {@code xsl:import} are not cached, as the included files are not part of the key. Entries are compiled on a
+ * private factory, see {@link SharedCompiler}. The cache size is set with the {@code templates.cache.size} property
+ * (default 100, 0 turns caching off). It is read when the class is loaded, so a configuration reload does not
+ * resize the cache.
+ */
+public class TransformerFactoryImpl extends SAXTransformerFactory
+{
+    static final String TEMPLATES_CACHE_SIZE = "templates.cache.size";
+
+    private static FactoryHelper factoryHelper = new FactoryHelper();
+
+    private static final BoundedCache<String, Templates> TEMPLATES_CACHE = new BoundedCache<>(ConfigurationSnapshot
+            .getInstance().getIntConfiguration(TransformerFactory.class, TEMPLATES_CACHE_SIZE, 100));
+
+    private static final BoundedCache<String, SharedCompiler<TransformerFactory>> COMPILERS = new BoundedCache<>(4);
+
+    private final SAXTransformerFactory delegate = (SAXTransformerFactory) TransformerFactory.newDefaultInstance();
+    private final String cacheKeyPrefix;
+    private final FeaturePlan<TransformerFactory> featurePlan;
+    private volatile boolean customised;
+
+    public TransformerFactoryImpl()
+    {
+        FactorySettings<TransformerFactory> settings = getSettings();
+        boolean hardened = factoryHelper.configureFactory(delegate, settings.getFeaturePlan(),
+                settings.getWhiteListCallers());
+        // The version keeps entries compiled under an earlier configuration from being reused.
+        cacheKeyPrefix = (hardened ? "hardened" : "whitelisted")+settings.getVersion();
+        featurePlan = hardened ? settings.getFeaturePlan() : null;
+    }
+
+    /**
+     * Returns the settings of the current configuration. Features are tried once on a plain factory, so new
+     * factories just have them stamped on.
+     */
+    private static FactorySettings<TransformerFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(TransformerFactory.class,
+                FactoryHelper.DEFAULT_TRANSFORMER_FEATURES_TO_ENABLE,
+                FactoryHelper.DEFAULT_TRANSFORMER_FEATURES_TO_DISABLE,
+                (enable, disable) -> factoryHelper.compileFeaturePlan(TransformerFactory.newDefaultInstance(),
+                        enable, disable));
+    }
+
+    static BoundedCache<String, Templates> getTemplatesCache()
+    {
+        return TEMPLATES_CACHE;
+    }
+
+    @Override
+    public Templates newTemplates(Source source) throws TransformerConfigurationException
+    {
+        if (customised || TEMPLATES_CACHE.getMaxSize() == 0)
+        {
+            return delegate.newTemplates(source);
+        }
+
+        CacheableSources cacheable;
+        try
+        {
+            cacheable = CacheableSources.read(cacheKeyPrefix, source);
+        }
+        catch (IOException e)
+        {
+            throw new TransformerConfigurationException(e);
+        }
+        if (cacheable == null)
+        {
+            return delegate.newTemplates(source);
+        }
+        if (cacheable.getKey() == null)
+        {
+            return delegate.newTemplates(cacheable.getSources()[0]);
+        }
+
+        Templates templates = TEMPLATES_CACHE.get(cacheable.getKey());
+        if (templates == null)
+        {
+            Source replayable = cacheable.getSources()[0];
+            ErrorListener listener = delegate.getErrorListener();
+            templates = getCompiler().compile(compiler ->
+            {
+                ErrorListener original = compiler.getErrorListener();
+                compiler.setErrorListener(listener);
+                try
+                {
+                    return compiler.newTemplates(replayable);
+                }
+                finally
+                {
+                    compiler.setErrorListener(original);
+                }
+            });
+            TEMPLATES_CACHE.put(cacheable.getKey(), templates);
+        }
+        return templates;
+    }
+
+    private SharedCompiler<TransformerFactory> getCompiler()
+    {
+        return SharedCompiler.get(COMPILERS, cacheKeyPrefix, () ->
+        {
+            TransformerFactory factory = TransformerFactory.newDefaultInstance();
+            if (featurePlan != null)
+            {
+                factoryHelper.applyFeaturePlan(factory, featurePlan);
+            }
+            return factory;
+        });
+    }
+
+    @Override
+    public Transformer newTransformer(Source source) throws TransformerConfigurationException
+    {
+        return customised ? delegate.newTransformer(source) : newTemplates(source).newTransformer();
+    }
+
+    @Override
+    public Transformer newTransformer() throws TransformerConfigurationException
+    {
+        return delegate.newTransformer();
+    }
+
+    @Override
+    public Source getAssociatedStylesheet(Source source, String media, String title, String charset)
+            throws TransformerConfigurationException
+    {
+        return delegate.getAssociatedStylesheet(source, media, title, charset);
+    }
+
+    @Override
+    public void setURIResolver(URIResolver resolver)
+    {
+        // A resolver may change what a stylesheet includes, so the compiled result may not be shared.
+        customised = true;
+        delegate.setURIResolver(resolver);
+    }
+
+    @Override
+    public URIResolver getURIResolver()
+    {
+        return delegate.getURIResolver();
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws TransformerConfigurationException
+    {
+        customised = true;
+        delegate.setFeature(name, value);
+    }
+
+    @Override
+    public boolean getFeature(String name)
+    {
+        return delegate.getFeature(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+        customised = true;
+        delegate.setAttribute(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+        return delegate.getAttribute(name);
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener listener)
+    {
+        delegate.setErrorListener(listener);
+    }
+
+    @Override
+    public ErrorListener getErrorListener()
+    {
+        return delegate.getErrorListener();
+    }
+
+    @Override
+    public TransformerHandler newTransformerHandler(Source source) throws TransformerConfigurationException
+    {
+        return customised ? delegate.newTransformerHandler(source)
+                : delegate.newTransformerHandler(newTemplates(source));
+    }
+
+    @Override
+    public TransformerHandler newTransformerHandler(Templates templates) throws TransformerConfigurationException
+    {
+        return delegate.newTransformerHandler(templates);
+    }
+
+    @Override
+    public TransformerHandler newTransformerHandler() throws TransformerConfigurationException
+    {
+        return delegate.newTransformerHandler();
+    }
+
+    @Override
+    public TemplatesHandler newTemplatesHandler() throws TransformerConfigurationException
+    {
+        return delegate.newTemplatesHandler();
+    }
+
+    @Override
+    public XMLFilter newXMLFilter(Source source) throws TransformerConfigurationException
+    {
+        return customised ? delegate.newXMLFilter(source) : delegate.newXMLFilter(newTemplates(source));
+    }
+
+    @Override
+    public XMLFilter newXMLFilter(Templates templates) throws TransformerConfigurationException
+    {
+        return delegate.newXMLFilter(templates);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Changes the features and white lists used by new factories without a restart. Each change loads a new version of
+ * the configuration, which factories created after that point pick up. Factories, pools and caches that already
+ * exist keep the configuration they were created with.<p>
+ *
+ * The configuration can be changed by calling {@link #setConfiguration} or {@link #reload}, or by editing the
+ * {@code <factoryName>.properties} files in {@code $JAVA_HOME/lib} or in a {@code META-INF/services} directory on
+ * the file system while {@link #startWatching() watching} is on. Watching is also started when the configuration
+ * is first loaded if the system property {@code org.alfresco.xmlfactory.configuration.watch} is {@code true}.
+ */
+public final class XMLFactoryConfiguration
+{
+    private static final Log logger = LogFactory.getLog(XMLFactoryConfiguration.class);
+
+    static final String WATCH_PROPERTY = "org.alfresco.xmlfactory.configuration.watch";
+
+    private static final long SETTLE_MILLIS = 200;
+
+    /** Property name of the ';' separated features to enable. */
+    public static final String FEATURES_TO_ENABLE = FactoryHelper.FEATURES_TO_ENABLE;
+
+    /** Property name of the ';' separated features to disable. */
+    public static final String FEATURES_TO_DISABLE = FactoryHelper.FEATURES_TO_DISABLE;
+
+    /** Property name of the ';' separated white list of caller classes and packages. */
+    public static final String WHITE_LIST_CALLERS = FactoryHelper.WHITE_LIST_CALLERS;
+
+    /** Property name of the DocumentBuilderFactory DOM profile: {@code deferred} or {@code eager}. */
+    public static final String DOM_PROFILE = DOMProfile.DOM_PROFILE;
+
+    /** Property name of the ';' separated DOM profiles of caller classes: {@code <className>=<profile>}. */
+    public static final String DOM_PROFILES = DOMProfile.DOM_PROFILES;
+
+    /** Property name of the number of symbols a shared SymbolTable may hold. 0 turns sharing off. */
+    public static final String SYMBOL_TABLE_SIZE = ParserResources.SYMBOL_TABLE_SIZE;
+
+    /** Property name of the ';' separated URLs of trusted grammars to share between parsers. */
+    public static final String TRUSTED_GRAMMARS = ParserResources.TRUSTED_GRAMMARS;
+
+    /** Property name of the limit on entity expansions in a document. */
+    public static final String LIMIT_ENTITY_EXPANSION = ParserLimits.Limit.ENTITY_EXPANSION.propertyName;
+
+    /** Property name of the limit on the size of a document, in bytes. */
+    public static final String LIMIT_DOCUMENT_SIZE = ParserLimits.Limit.DOCUMENT_SIZE.propertyName;
+
+    /** Property name of the limit on the depth of nested elements, for SAXParsers. */
+    public static final String LIMIT_ELEMENT_DEPTH = ParserLimits.Limit.ELEMENT_DEPTH.propertyName;
+
+    /** Property name of the limit on the number of attributes of an element, for SAXParsers. */
+    public static final String LIMIT_ELEMENT_ATTRIBUTES = ParserLimits.Limit.ELEMENT_ATTRIBUTES.propertyName;
+
+    /** Suffix of the property names of the ';' separated limits of caller classes: {@code <className>=<limit>}. */
+    public static final String LIMIT_CALLERS_SUFFIX = ParserLimits.CALLERS_SUFFIX;
+
+    /** Property name of the ';' separated catalog of local entities: {@code <publicId or systemId>=<location>}. */
+    public static final String ENTITY_CATALOG = CatalogEntityResolver.ENTITY_CATALOG;
+
+    /** Property name of the number of catalog entities held in memory. */
+    public static final String ENTITY_CACHE_SIZE = CatalogEntityResolver.ENTITY_CACHE_SIZE;
+
+    /** Property name of the policy for documents with a DOCTYPE: {@code allow} or {@code reject}. */
+    public static final String DOCTYPE_POLICY = DoctypePolicy.DOCTYPE_POLICY;
+
+    /** Property name of the ';' separated DOCTYPE policies of caller classes: {@code <className>=<policy>}. */
+    public static final String DOCTYPE_POLICIES = DoctypePolicy.DOCTYPE_POLICIES;
+
+    /** Property name of the ';' separated profiles of caller classes: {@code <className>=<profileName>}. */
+    public static final String FACTORY_PROFILES = FactoryProfile.FACTORY_PROFILES;
+
+    /** Prefix of the property names of a profile's settings: {@code profile.<profileName>.<propertyName>}. */
+    public static final String PROFILE_PREFIX = FactoryProfile.PROFILE_PREFIX;
+
+    private static WatchService watchService;
+
+    private XMLFactoryConfiguration()
+    {
+    }
+
+    /**
+     * @return the version of the current configuration. It starts at 1 and increases by one on each change, so it
+     * may be logged to show which configuration a factory was created with.
+     */
+    public static long getVersion()
+    {
+        return ConfigurationSnapshot.getInstance().getVersion();
+    }
+
+    /**
+     * Re-reads system properties and properties files. Values set with {@link #setConfiguration} are kept.
+     *
+     * @return the new version.
+     */
+    public static long reload()
+    {
+        return ConfigurationSnapshot.reload(null, null, null).getVersion();
+    }
+
+    /**
+     * Sets a property of a factory type, overriding system properties and properties files.
+     *
+     * @param factoryType such as {@code javax.xml.parsers.DocumentBuilderFactory.class}.
+     * @param propertyName such as {@link #WHITE_LIST_CALLERS}.
+     * @param values the new values, or {@code null} to go back to the value from system properties and files.
+     * @return the new version.
+     */
+    public static long setConfiguration(Class<?> factoryType, String propertyName, List<String> values)
+    {
+        if (factoryType == null || propertyName == null)
+        {
+            throw new IllegalArgumentException("factoryType and propertyName must be supplied");
+        }
+        return ConfigurationSnapshot.reload(factoryType, propertyName, values).getVersion();
+    }
+
+    /**
+     * Starts a daemon thread that reloads the configuration when a {@code <factoryName>.properties} file changes in
+     * {@code $JAVA_HOME/lib} or in a {@code META-INF/services} directory that is on the file system. Does nothing if
+     * already watching.
+     *
+     * @throws IOException if the directories cannot be watched.
+     */
+    public static synchronized void startWatching() throws IOException
+    {
+        if (watchService != null)
+        {
+            return;
+        }
+
+        FactoryHelper factoryHelper = new FactoryHelper();
+        Set<Path> directories = new HashSet<>();
+        Set<Path> fileNames = new HashSet<>();
+        String javaHome = factoryHelper.getJavaHome();
+        for (Class<?> factoryType : ConfigurationSnapshot.FACTORY_TYPES)
+        {
+            String fileName = factoryType.getName()+".properties";
+            fileNames.add(new File(fileName).toPath());
+            if (javaHome != null)
+            {
+                directories.add(new File(javaHome, "lib").toPath());
+            }
+            URL url = factoryHelper.getResource(null, "META-INF/services/"+fileName);
+            if (url != null && "file".equals(url.getProtocol()))
+            {
+                try
+                {
+                    // Through the URI, so escaped characters such as spaces in the path are decoded
+                    directories.add(Paths.get(url.toURI()).getParent());
+                }
+                catch (URISyntaxException | IllegalArgumentException e)
+                {
+                    if (logger.isWarnEnabled())
+                    {
+                        logger.warn("Not watching the directory of " + url + ", as it is not a valid file URI", e);
+                    }
+                }
+            }
+        }
+
+        WatchService service = FileSystems.getDefault().newWatchService();
+        try
+        {
+            for (Path directory : directories)
+            {
+                if (directory.toFile().isDirectory())
+                {
+                    directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            service.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(() -> watch(service, fileNames), "xmlfactory-configuration-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        watchService = service;
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Watching "+directories+" for changes to the XML factory configuration");
+        }
+    }
+
+    /**
+     * Stops watching the properties files.
+     */
+    public static synchronized void stopWatching()
+    {
+        if (watchService != null)
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Error closing the configuration watcher", e);
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * @return {@code true} if the properties files are being watched.
+     */
+    public static synchronized boolean isWatching()
+    {
+        return watchService != null;
+    }
+
+    static void watchIfConfigured()
+    {
+        if (Boolean.getBoolean(WATCH_PROPERTY))
+        {
+            try
+            {
+                startWatching();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.warn("Unable to watch the XML factory configuration files", e);
+            }
+        }
+    }
+
+    private static void watch(WatchService service, Set<Path> fileNames)
+    {
+        try
+        {
+            while (true)
+            {
+                boolean changed = isChanged(service.take(), fileNames);
+
+                // Wait for an editor to finish writing, so that one save results in a single reload.
+                WatchKey key;
+                while ((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+                {
+                    changed |= isChanged(key, fileNames);
+                }
+                if (changed)
+                {
+                    reload();
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException e)
+        {
+            // Stopped
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("XML factory configuration watcher stopped", e);
+        }
+    }
+
+    private static boolean isChanged(WatchKey key, Set<Path> fileNames)
+    {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileNames.contains(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Loads and runs the hardened factories once, so that the first real document does not pay for loading the
+ * configuration, the Xerces classes and the factories' static initialisers. Short lived processes may call
+ * {@link #warmUp()} while they start, or run this class with {@code -XX:ArchiveClassesAtExit} to create a class data
+ * sharing archive of everything it loads:
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=xmlfactory.jsa -cp &lt;classpath&gt; org.alfresco.xmlfactory.XMLFactoryWarmUp
+ * java -XX:SharedArchiveFile=xmlfactory.jsa -cp &lt;same classpath&gt; ...
+ * </pre>
+ * The {@code cds} Maven profile creates {@code target/alfresco-xmlfactory.jsa} in this way.
+ */
+public final class XMLFactoryWarmUp
+{
+    private static final Log logger = LogFactory.getLog(XMLFactoryWarmUp.class);
+
+    private static final String SAMPLE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<cm:content xmlns:cm=\"http://www.alfresco.org/model/content/1.0\" id=\"1\">"
+            + "<cm:name>Warm up &amp; sample</cm:name><!-- comment --><?pi data?><![CDATA[text]]></cm:content>";
+
+    private static final String SAMPLE_SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\""
+            + " targetNamespace=\"http://www.alfresco.org/model/content/1.0\" elementFormDefault=\"qualified\">"
+            + "<xs:element name=\"content\"><xs:complexType mixed=\"true\"><xs:sequence>"
+            + "<xs:element name=\"name\" type=\"xs:string\"/></xs:sequence>"
+            + "<xs:attribute name=\"id\" type=\"xs:int\"/></xs:complexType></xs:element></xs:schema>";
+
+    private XMLFactoryWarmUp()
+    {
+    }
+
+    /**
+     * Creates one factory and parser of each kind and parses a built in sample document with each of them.
+     *
+     * @return the time taken, in nanoseconds.
+     * @throws Exception if any of them fail, which would also fail the first real document.
+     */
+    public static long warmUp() throws Exception
+    {
+        long start = System.nanoTime();
+        ConfigurationSnapshot.getInstance();
+
+        Document document = new DocumentBuilderFactoryXercesImpl().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(SAMPLE)));
+
+        new SAXParserFactoryXercesImpl().newSAXParser()
+                .parse(new InputSource(new StringReader(SAMPLE)), new DefaultHandler());
+
+        XMLStreamReader reader = new XMLInputFactoryImpl().createXMLStreamReader(new StringReader(SAMPLE));
+        try
+        {
+            while (reader.hasNext())
+            {
+                reader.next();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        new TransformerFactoryImpl().newTransformer()
+                .transform(new DOMSource(document), new StreamResult(new StringWriter()));
+
+        new XPathFactoryImpl().newXPath().evaluate("/*/@id", document);
+
+        SchemaFactoryXercesImpl schemaFactory = new SchemaFactoryXercesImpl();
+        Schema schema = schemaFactory.newSchema(new StreamSource(new StringReader(SAMPLE_SCHEMA)));
+        schema.newValidator().validate(new StreamSource(new StringReader(SAMPLE)));
+
+        long nanos = System.nanoTime() - start;
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("XML factories warmed up in " + nanos / 1000000 + "ms");
+        }
+        return nanos;
+    }
+
+    /**
+     * Warms up and exits, for creating class data sharing archives.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        long nanos = warmUp();
+        System.out.println("XML factories warmed up in " + nanos / 1000000 + "ms");
+    }
+}
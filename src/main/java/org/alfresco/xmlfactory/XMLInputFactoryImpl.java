@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.stream.EventFilter;
+import javax.xml.stream.StreamFilter;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLReporter;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.XMLEventAllocator;
+import javax.xml.transform.Source;
+
+/**
+ * A StAX XMLInputFactory configured in the same way as {@link DocumentBuilderFactoryXercesImpl}: features (boolean
+ * properties for StAX) are enabled and disabled unless the caller is in the white list. Xerces has no StAX
+ * implementation, so this wraps the JDK's built-in factory.
+ */
+public class XMLInputFactoryImpl extends XMLInputFactory
+{
+    private static FactoryHelper factoryHelper = new FactoryHelper();
+
+    private final XMLInputFactory delegate = XMLInputFactory.newDefaultFactory();
+
+    public XMLInputFactoryImpl()
+    {
+        FactorySettings<XMLInputFactory> settings = getSettings();
+        factoryHelper.configureFactory(delegate, settings.getFeaturePlan(), settings.getWhiteListCallers());
+    }
+
+    /**
+     * Returns the settings of the current configuration. Features are tried once on a plain factory, so new
+     * factories just have them stamped on.
+     */
+    private static FactorySettings<XMLInputFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(XMLInputFactory.class,
+                FactoryHelper.DEFAULT_STAX_FEATURES_TO_ENABLE, FactoryHelper.DEFAULT_STAX_FEATURES_TO_DISABLE,
+                (enable, disable) -> factoryHelper.compileFeaturePlan(XMLInputFactory.newDefaultFactory(),
+                        enable, disable));
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(Reader reader) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(reader);
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(Source source) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(source);
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(InputStream stream) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(stream);
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(InputStream stream, String encoding) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(stream, encoding);
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(String systemId, InputStream stream) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(systemId, stream);
+    }
+
+    @Override
+    public XMLStreamReader createXMLStreamReader(String systemId, Reader reader) throws XMLStreamException
+    {
+        return delegate.createXMLStreamReader(systemId, reader);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(Reader reader) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(reader);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(String systemId, Reader reader) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(systemId, reader);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(XMLStreamReader reader) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(reader);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(Source source) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(source);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(InputStream stream) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(stream);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(InputStream stream, String encoding) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(stream, encoding);
+    }
+
+    @Override
+    public XMLEventReader createXMLEventReader(String systemId, InputStream stream) throws XMLStreamException
+    {
+        return delegate.createXMLEventReader(systemId, stream);
+    }
+
+    @Override
+    public XMLStreamReader createFilteredReader(XMLStreamReader reader, StreamFilter filter) throws XMLStreamException
+    {
+        return delegate.createFilteredReader(reader, filter);
+    }
+
+    @Override
+    public XMLEventReader createFilteredReader(XMLEventReader reader, EventFilter filter) throws XMLStreamException
+    {
+        return delegate.createFilteredReader(reader, filter);
+    }
+
+    @Override
+    public XMLResolver getXMLResolver()
+    {
+        return delegate.getXMLResolver();
+    }
+
+    @Override
+    public void setXMLResolver(XMLResolver resolver)
+    {
+        delegate.setXMLResolver(resolver);
+    }
+
+    @Override
+    public XMLReporter getXMLReporter()
+    {
+        return delegate.getXMLReporter();
+    }
+
+    @Override
+    public void setXMLReporter(XMLReporter reporter)
+    {
+        delegate.setXMLReporter(reporter);
+    }
+
+    @Override
+    public void setProperty(String name, Object value)
+    {
+        delegate.setProperty(name, value);
+    }
+
+    @Override
+    public Object getProperty(String name)
+    {
+        return delegate.getProperty(name);
+    }
+
+    @Override
+    public boolean isPropertySupported(String name)
+    {
+        return delegate.isPropertySupported(name);
+    }
+
+    @Override
+    public void setEventAllocator(XMLEventAllocator allocator)
+    {
+        delegate.setEventAllocator(allocator);
+    }
+
+    @Override
+    public XMLEventAllocator getEventAllocator()
+    {
+        return delegate.getEventAllocator();
+    }
+}
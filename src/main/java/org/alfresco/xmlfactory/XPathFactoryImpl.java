@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFactoryConfigurationException;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+/**
+ * An XPathFactory configured in the same way as {@link TransformerFactoryImpl}, wrapping the JDK's built-in factory.
+ * Secure processing is enabled unless the caller is in the white list, which stops extension functions supplied by
+ * an {@link XPathFunctionResolver} from being called.<p>
+ *
+ * Compiled expressions are shared between factories through a bounded cache, keyed on the expression, the namespace
+ * context and the variable and function resolvers of the XPath that compiled it. Contexts and resolvers are compared
+ * with {@code equals}, so callers that create a new NamespaceContext for each expression only benefit if it
+ * implements {@code equals}. The expressions returned may be used by many threads at once. They are compiled on a
+ * private factory, see {@link SharedCompiler}, so changes to a caller's factory do not reach them. Nothing is cached
+ * once a feature of the factory has been changed. The cache size is set with the {@code xpath.cache.size} property
+ * (default 100, 0 turns caching off). The size is fixed when the class is loaded; reloading the configuration
+ * changes which expressions are reused, but not how many are kept.
+ */
+public class XPathFactoryImpl extends XPathFactory
+{
+    static final String XPATH_CACHE_SIZE = "xpath.cache.size";
+
+    private static FactoryHelper factoryHelper = new FactoryHelper();
+
+    private static final BoundedCache<CachingXPath.Key, CachingXPath.SharedExpression> EXPRESSION_CACHE =
+            new BoundedCache<>(ConfigurationSnapshot.getInstance().getIntConfiguration(XPathFactory.class,
+                    XPATH_CACHE_SIZE, 100));
+
+    private static final BoundedCache<String, SharedCompiler<XPathFactory>> COMPILERS = new BoundedCache<>(4);
+
+    private final XPathFactory delegate = XPathFactory.newDefaultInstance();
+    private final String cacheKeyPrefix;
+    private final FeaturePlan<XPathFactory> featurePlan;
+    private volatile boolean customised;
+
+    public XPathFactoryImpl()
+    {
+        FactorySettings<XPathFactory> settings = getSettings();
+        boolean hardened = factoryHelper.configureFactory(delegate, settings.getFeaturePlan(),
+                settings.getWhiteListCallers());
+        cacheKeyPrefix = (hardened ? "hardened" : "whitelisted")+settings.getVersion();
+        featurePlan = hardened ? settings.getFeaturePlan() : null;
+    }
+
+    private static FactorySettings<XPathFactory> getSettings()
+    {
+        return ConfigurationSnapshot.getInstance().getFactorySettings(XPathFactory.class,
+                FactoryHelper.DEFAULT_XPATH_FEATURES_TO_ENABLE, FactoryHelper.DEFAULT_XPATH_FEATURES_TO_DISABLE,
+                (enable, disable) -> factoryHelper.compileFeaturePlan(XPathFactory.newDefaultInstance(),
+                        enable, disable));
+    }
+
+    static BoundedCache<CachingXPath.Key, CachingXPath.SharedExpression> getExpressionCache()
+    {
+        return EXPRESSION_CACHE;
+    }
+
+    @Override
+    public boolean isObjectModelSupported(String objectModel)
+    {
+        return delegate.isObjectModelSupported(objectModel);
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws XPathFactoryConfigurationException
+    {
+        // Expressions compiled with secure processing off must not be handed to other factories.
+        customised = true;
+        delegate.setFeature(name, value);
+    }
+
+    @Override
+    public boolean getFeature(String name) throws XPathFactoryConfigurationException
+    {
+        return delegate.getFeature(name);
+    }
+
+    @Override
+    public void setXPathVariableResolver(XPathVariableResolver resolver)
+    {
+        delegate.setXPathVariableResolver(resolver);
+    }
+
+    @Override
+    public void setXPathFunctionResolver(XPathFunctionResolver resolver)
+    {
+        delegate.setXPathFunctionResolver(resolver);
+    }
+
+    @Override
+    public XPath newXPath()
+    {
+        XPath xpath = delegate.newXPath();
+        if (customised || EXPRESSION_CACHE.getMaxSize() == 0)
+        {
+            return xpath;
+        }
+        return new CachingXPath(xpath, this, cacheKeyPrefix, EXPRESSION_CACHE);
+    }
+
+    /**
+     * @return the private factory that compiles shared expressions, or {@code null} if this factory has been changed
+     * since the XPath asking for it was created.
+     */
+    SharedCompiler<XPathFactory> getCompiler()
+    {
+        if (customised)
+        {
+            return null;
+        }
+        return SharedCompiler.get(COMPILERS, cacheKeyPrefix, () ->
+        {
+            XPathFactory factory = XPathFactory.newDefaultInstance();
+            if (featurePlan != null)
+            {
+                factoryHelper.applyFeaturePlan(factory, featurePlan);
+            }
+            return factory;
+        });
+    }
+}
@@ -24,10 +24,15 @@ import junit.framework.TestSuite;
 import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
 import org.apache.xerces.jaxp.SAXParserFactoryImpl;
 
+import javax.management.ObjectName;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
 import java.io.File;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
@@ -102,6 +107,22 @@ public class AppTest
         assertFalse(spf.isXIncludeAware());
     }
 
+    /**
+     * Test we have set StAX properties the way we expect as defaults.
+     */
+    public void testXMLInputFactory() throws Throwable
+    {
+        XMLInputFactory xif = XMLInputFactory.newInstance();
+
+        assertEquals(XMLInputFactoryImpl.class, xif.getClass());
+        assertEquals(Boolean.FALSE, xif.getProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES));
+        assertEquals(Boolean.TRUE, xif.getProperty(FactoryHelper.STAX_PROPERTY_IGNORE_EXTERNAL_DTD));
+
+        XMLStreamReader reader = xif.createXMLStreamReader(new StringReader("<root><child/></root>"));
+        assertEquals(XMLStreamReader.START_ELEMENT, reader.nextTag());
+        assertEquals("root", reader.getLocalName());
+    }
+
     /**
      * Test we have set features the way we expect as defaults.
      */
@@ -151,6 +172,230 @@ public class AppTest
         assertFalse(spf.isXIncludeAware()); // false is the default so is same as the non whitelist test
     }
 
+    /**
+     * Test a white listed class further up the stack than the immediate caller is found, and that a different
+     * white list passed to the same helper is honoured.
+     */
+    public void testWhiteListFurtherUpTheStack() throws Throwable
+    {
+        FactoryHelper factoryHelper = new FactoryHelper();
+
+        DocumentBuilderFactory dbf = new DocumentBuilderFactoryImpl();
+        new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                factoryHelper.configureFactory(dbf, FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                        FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                        Collections.singletonList(AppTest.class.getName()));
+            }
+        }.run();
+        assertFalse(dbf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        DocumentBuilderFactory dbf2 = new DocumentBuilderFactoryImpl();
+        factoryHelper.configureFactory(dbf2, FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                Collections.singletonList("org.example.NotOnTheStack"));
+        assertTrue(dbf2.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(dbf2.getFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+    }
+
+    /**
+     * Test a programmatic change to the white list is picked up by new factories, but not by existing ones.
+     */
+    public void testConfigurationReload() throws Throwable
+    {
+        long version = XMLFactoryConfiguration.getVersion();
+        DocumentBuilderFactory before = new DocumentBuilderFactoryXercesImpl();
+        assertTrue(before.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        try
+        {
+            assertEquals(version+1, XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                    XMLFactoryConfiguration.WHITE_LIST_CALLERS, Collections.singletonList(getClass().getName())));
+            assertEquals(version+1, XMLFactoryConfiguration.getVersion());
+
+            DocumentBuilderFactory after = new DocumentBuilderFactoryXercesImpl();
+            assertFalse(after.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+            assertTrue(before.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+            DocumentBuilderFactory hardened = DocumentBuilderFactoryXercesImpl.newHardenedInstance();
+            assertTrue(hardened.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+            // Overrides survive a reload of the files
+            assertEquals(version+2, XMLFactoryConfiguration.reload());
+            assertFalse(new DocumentBuilderFactoryXercesImpl().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        }
+        finally
+        {
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                    XMLFactoryConfiguration.WHITE_LIST_CALLERS, null);
+        }
+        assertTrue(new DocumentBuilderFactoryXercesImpl().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+
+    /**
+     * Test a DOM profile is chosen by the class that creates the factory, falling back to the default profile.
+     */
+    public void testDOMProfiles() throws Throwable
+    {
+        try
+        {
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOM_PROFILE,
+                    Collections.singletonList("deferred"));
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOM_PROFILES,
+                    Arrays.asList("org.example.Other=deferred", getClass().getName()+"=EAGER", "bad", "a.B=unknown"));
+
+            assertFalse(new DocumentBuilderFactoryXercesImpl().getFeature(DOMProfile.FEATURE_DEFER_NODE_EXPANSION));
+            // Shared factories only get the default profile
+            assertTrue(DocumentBuilderFactoryXercesImpl.newHardenedInstance()
+                    .getFeature(DOMProfile.FEATURE_DEFER_NODE_EXPANSION));
+
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOM_PROFILES,
+                    Collections.singletonList("org.example.Other=eager"));
+            assertTrue(new DocumentBuilderFactoryXercesImpl().getFeature(DOMProfile.FEATURE_DEFER_NODE_EXPANSION));
+        }
+        finally
+        {
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                    XMLFactoryConfiguration.DOM_PROFILE, null);
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                    XMLFactoryConfiguration.DOM_PROFILES, null);
+        }
+    }
+
+    /**
+     * Test a compiled feature plan drops unsupported features and stamps the rest onto new factories.
+     */
+    public void testFeaturePlan() throws Throwable
+    {
+        FactoryHelper factoryHelper = new FactoryHelper();
+        List<String> featuresToDisable = new ArrayList<>(FactoryHelper.DEFAULT_FEATURES_TO_DISABLE);
+        featuresToDisable.add("http://example.org/unsupported-feature");
+
+        FeaturePlan<DocumentBuilderFactory> dbfPlan = factoryHelper.compileFeaturePlan(new DocumentBuilderFactoryImpl(),
+                FactoryHelper.DEFAULT_FEATURES_TO_ENABLE, featuresToDisable);
+        assertEquals(Collections.singletonList("http://example.org/unsupported-feature"),
+                dbfPlan.getUnsupportedFeatures());
+
+        DocumentBuilderFactory dbf = new DocumentBuilderFactoryImpl();
+        factoryHelper.configureFactory(dbf, dbfPlan, Collections.<String>emptyList());
+        assertTrue(dbf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(dbf.getFeature(FactoryHelper.FEATURE_LOAD_EXTERNAL_DTD));
+        assertFalse(dbf.isExpandEntityReferences());
+
+        FeaturePlan<SAXParserFactory> spfPlan = factoryHelper.compileFeaturePlan(new SAXParserFactoryImpl(),
+                FactoryHelper.DEFAULT_FEATURES_TO_ENABLE, featuresToDisable);
+        SAXParserFactory spf = new SAXParserFactoryImpl();
+        factoryHelper.configureFactory(spf, spfPlan, Collections.<String>emptyList());
+        assertTrue(spf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(spf.getFeature(FactoryHelper.FEATURE_EXTERNAL_PARAMETER_ENTITIES));
+    }
+
+    /**
+     * Test DEBUG stack traces are sampled, rate limited and limited in depth.
+     */
+    public void testDebugStackSampler()
+    {
+        DebugStackSampler everySecondCall = new DebugStackSampler(5, 2, 0);
+        assertFalse(everySecondCall.shouldCapture());
+        assertTrue(everySecondCall.shouldCapture());
+        assertFalse(everySecondCall.shouldCapture());
+        assertTrue(everySecondCall.shouldCapture());
+
+        DebugStackSampler twoPerSecond = new DebugStackSampler(5, 1, 2);
+        assertTrue(twoPerSecond.shouldCapture());
+        assertTrue(twoPerSecond.shouldCapture());
+        assertFalse(twoPerSecond.shouldCapture());
+
+        List<String> frames = new DebugStackSampler(1, 1, 0).capture(1);
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0), frames.get(0).contains("testDebugStackSampler"));
+
+        assertFalse(new DebugStackSampler(0, 1, 0).shouldCapture());
+    }
+
+    /**
+     * Test factory and parser creation is counted and exposed through JMX.
+     */
+    public void testFactoryMetrics() throws Throwable
+    {
+        FactoryMetrics metrics = FactoryMetrics.getInstance();
+        long created = metrics.getFactoriesCreated("DocumentBuilderFactory");
+        long parsers = metrics.getParsersCreated("DocumentBuilder");
+        Long misses = metrics.getWhiteListMisses().get(getClass().getName());
+
+        DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        assertEquals(created + 1, metrics.getFactoriesCreated("DocumentBuilderFactory"));
+        assertEquals(parsers + 1, metrics.getParsersCreated("DocumentBuilder"));
+        assertEquals((misses == null ? 0 : misses) + 1, (long)metrics.getWhiteListMisses().get(getClass().getName()));
+        assertTrue(metrics.getConfigurationCount() > 0);
+
+        long whiteListed = metrics.getFactoriesWhiteListed("SAXParserFactory");
+        FactoryHelper factoryHelper = new FactoryHelper();
+        factoryHelper.configureFactory(new SAXParserFactoryImpl(),
+                factoryHelper.compileFeaturePlan(new SAXParserFactoryImpl(), FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                        FactoryHelper.DEFAULT_FEATURES_TO_DISABLE),
+                Collections.singletonList(getClass().getName()));
+        assertEquals(whiteListed + 1, metrics.getFactoriesWhiteListed("SAXParserFactory"));
+        assertTrue(metrics.getWhiteListHits().containsKey(getClass().getName()));
+
+        assertEquals(0, FactoryMetrics.latencyBucket(999));
+        assertEquals(1, FactoryMetrics.latencyBucket(1000));
+        assertEquals(11, FactoryMetrics.latencyBucket(1024000));
+
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(FactoryMetrics.OBJECT_NAME)));
+    }
+
+    /**
+     * Test creations are counted against the calling method and only the top callers are kept.
+     */
+    public void testCreationProfiler()
+    {
+        CreationProfiler profiler = new CreationProfiler(1, 2, 0);
+        for (int i = 0; i < 3; i++)
+        {
+            profiler.created("DocumentBuilderFactory");
+        }
+        profiler.created("SAXParser");
+
+        Map<String, Long> topCreators = profiler.getTopCreators();
+        String caller = getClass().getName() + "#testCreationProfiler";
+        assertEquals(Arrays.asList("DocumentBuilderFactory " + caller, "SAXParser " + caller),
+                new ArrayList<>(topCreators.keySet()));
+        assertEquals(3L, (long) topCreators.get("DocumentBuilderFactory " + caller));
+        assertTrue(profiler.getSummary(), profiler.getSummary().contains("3 DocumentBuilderFactory " + caller));
+
+        // Many callers that create once do not push out the one that creates the most.
+        for (int i = 0; i < 20; i++)
+        {
+            profiler.record("caller" + i);
+            profiler.record("DocumentBuilderFactory " + caller);
+        }
+        topCreators = profiler.getTopCreators();
+        assertEquals(2, topCreators.size());
+        assertEquals("DocumentBuilderFactory " + caller, topCreators.keySet().iterator().next());
+        assertEquals(23L, (long) topCreators.get("DocumentBuilderFactory " + caller));
+
+        CreationProfiler off = new CreationProfiler(0, 2, 0);
+        off.created("DocumentBuilderFactory");
+        assertTrue(off.getTopCreators().isEmpty());
+    }
+
+    /**
+     * Test the warm up creates and uses a factory of each kind, counting them as any other caller would.
+     */
+    public void testWarmUp() throws Throwable
+    {
+        FactoryMetrics metrics = FactoryMetrics.getInstance();
+        long documentBuilders = metrics.getFactoriesCreated("DocumentBuilderFactory");
+        long saxParsers = metrics.getParsersCreated("SAXParser");
+
+        assertTrue(XMLFactoryWarmUp.warmUp() > 0);
+        assertEquals(documentBuilders + 1, metrics.getFactoriesCreated("DocumentBuilderFactory"));
+        assertEquals(saxParsers + 1, metrics.getParsersCreated("SAXParser"));
+    }
+
     private class TestFactoryHelper extends FactoryHelper
     {
         final Map<String, Properties> testValues = new HashMap<>();
@@ -270,6 +515,48 @@ public class AppTest
         assertGetConfiguration(factoryHelper, emptyList, String.class, "name2", "sysProp3a", "sysProp3b", "sysProp3c");
     }
 
+    public void testConfigurationSnapshotReadsEachSourceOnce() throws Throwable
+    {
+        Map<String, Integer> reads = new HashMap<>();
+        Map<String, Integer> lookups = new HashMap<>();
+        FactoryHelper factoryHelper = new FactoryHelper()
+        {
+            @Override
+            URL getResource(ClassLoader loader, String resourceName)
+            {
+                lookups.merge(resourceName, 1, Integer::sum);
+                return super.getResource(loader, resourceName);
+            }
+
+            @Override
+            Properties loadProperties(URL url)
+            {
+                reads.merge(url.toExternalForm(), 1, Integer::sum);
+                Properties properties = new Properties();
+                properties.setProperty(FactoryHelper.WHITE_LIST_CALLERS, "a.b.C; d.e.F");
+                return properties;
+            }
+        };
+
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot(factoryHelper);
+        int sources = reads.size();
+        assertTrue(sources > 0);
+        for (int count : reads.values())
+        {
+            assertEquals(1, count);
+        }
+        assertEquals(ConfigurationSnapshot.FACTORY_TYPES.size(), lookups.size());
+        for (int count : lookups.values())
+        {
+            assertEquals(1, count);
+        }
+
+        assertEquals(Arrays.asList("a.b.C", "d.e.F"), snapshot.getConfiguration(DocumentBuilderFactory.class,
+                FactoryHelper.WHITE_LIST_CALLERS, Collections.emptyList()));
+        assertEquals(12, snapshot.getIntConfiguration(SAXParserFactory.class, "unknown.size", 12));
+        assertEquals(sources, reads.size());
+    }
+
     private void assertGetConfiguration(FactoryHelper fh, List<String> defaultValues, Class clazz, String propertyName, String... expected)
     {
         List<String> list = fh.getConfiguration(clazz, propertyName, defaultValues);
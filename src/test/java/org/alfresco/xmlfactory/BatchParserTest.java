@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests {@link BatchParser}.
+ */
+public class BatchParserTest extends TestCase
+{
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp()
+    {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static InputSource open(Integer i)
+    {
+        String xml = i % 10 == 7 ? "<doc>" : "<doc id='" + i + "'/>";
+        return new InputSource(new StringReader(xml));
+    }
+
+    private static Stream<Integer> inputs(int count)
+    {
+        return IntStream.range(0, count).boxed();
+    }
+
+    public void testOrderedResultsWithFailuresIsolated()
+    {
+        BatchParser parser = new BatchParser(executor, 8, true);
+        List<BatchParser.Result<Integer, String>> results = parser.parse(inputs(100), BatchParserTest::open,
+                document -> document.getDocumentElement().getAttribute("id")).collect(Collectors.toList());
+
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++)
+        {
+            BatchParser.Result<Integer, String> result = results.get(i);
+            assertEquals(Integer.valueOf(i), result.getInput());
+            if (i % 10 == 7)
+            {
+                assertFalse(result.isSuccess());
+                assertNotNull(result.getError());
+                assertNull(result.getValue());
+            }
+            else
+            {
+                assertTrue(result.getError() == null ? "" : result.getError().toString(), result.isSuccess());
+                assertEquals(String.valueOf(i), result.getValue());
+            }
+        }
+        assertTrue(parser.getPool().getIdleCount() <= 8);
+    }
+
+    public void testUnorderedResults()
+    {
+        BatchParser parser = new BatchParser(executor, 3, false);
+        Set<Integer> parsed = new HashSet<>();
+        parser.parse(inputs(50), BatchParserTest::open, document -> document).forEach(result ->
+        {
+            assertTrue(parsed.add(result.getInput()));
+            assertEquals(result.getInput() % 10 != 7, result.isSuccess());
+        });
+        assertEquals(50, parsed.size());
+    }
+
+    public void testInputsAreTakenAsResultsAreConsumed()
+    {
+        AtomicInteger taken = new AtomicInteger();
+        BatchParser parser = new BatchParser(executor, 4, true);
+        Iterator<BatchParser.Result<Integer, String>> results = parser.parse(
+                inputs(1000).peek(i -> taken.incrementAndGet()), BatchParserTest::open, document -> "").iterator();
+
+        assertTrue(results.hasNext());
+        results.next();
+        assertTrue("taken " + taken.get(), taken.get() <= 5);
+    }
+
+    public void testRejectedDocumentIsAFailedResult()
+    {
+        BatchParser parser = new BatchParser(command ->
+        {
+            throw new RejectedExecutionException();
+        }, 2, true);
+        List<BatchParser.Result<Integer, Document>> results = parser.parse(inputs(3), BatchParserTest::open,
+                document -> document).collect(Collectors.toList());
+        assertEquals(3, results.size());
+        assertFalse(results.get(0).isSuccess());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the class data sharing archive created by the {@code cds} Maven profile can be used, and that the factories
+ * are loaded from it. Run by the failsafe plugin after the archive has been created, which passes its location and
+ * the classpath it was created with. Does nothing if they are not set.
+ */
+public class CDSArchiveIT extends TestCase
+{
+    static final String ARCHIVE_PROPERTY = "org.alfresco.xmlfactory.cds.archive";
+    static final String CLASSPATH_PROPERTY = "org.alfresco.xmlfactory.cds.classpath";
+
+    public void testFactoriesAreLoadedFromArchive() throws Throwable
+    {
+        String archive = System.getProperty(ARCHIVE_PROPERTY);
+        String classpath = System.getProperty(CLASSPATH_PROPERTY);
+        if (archive == null || classpath == null)
+        {
+            return;
+        }
+        assertTrue("No archive at " + archive, new File(archive).isFile());
+
+        // -Xshare:on fails to start rather than quietly running without the archive
+        String output = run(Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator
+                        + "java", "-XX:SharedArchiveFile=" + archive, "-Xshare:on", "-Xlog:class+load=info",
+                "-cp", classpath, XMLFactoryWarmUp.class.getName()));
+
+        assertTrue(output, output.contains("XML factories warmed up"));
+        for (Class<?> factoryClass : Arrays.asList(DocumentBuilderFactoryXercesImpl.class,
+                SAXParserFactoryXercesImpl.class, XMLFactoryWarmUp.class))
+        {
+            assertTrue(factoryClass.getName() + " was not loaded from the archive",
+                    output.contains(factoryClass.getName() + " source: shared objects file"));
+        }
+    }
+
+    private static String run(List<String> command) throws IOException, InterruptedException
+    {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream())
+        {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue("Timed out: " + command, process.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(output, 0, process.exitValue());
+        return output;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
+
+/**
+ * Tests {@link CallerMatcher}.
+ */
+public class CallerMatcherTest extends TestCase
+{
+    public void testPatterns()
+    {
+        Map<String, String> patterns = new HashMap<>();
+        patterns.put("org.example.Importer", "class");
+        patterns.put("org.example.*", "package");
+        patterns.put("org.example.model.*", "sub package");
+        patterns.put("org.example.Exporter#export", "method");
+        patterns.put("  ", "blank");
+        CallerMatcher<String> matcher = new CallerMatcher<>(patterns);
+
+        assertEquals("class", matcher.match("org.example.Importer", "run"));
+        assertEquals("package", matcher.match("org.example.Other", "run"));
+        assertEquals("package", matcher.match("org.example.tools.Other", "run"));
+        assertEquals("sub package", matcher.match("org.example.model.Reader", "run"));
+        assertEquals("method", matcher.match("org.example.Exporter", "export"));
+        assertEquals("package", matcher.match("org.example.Exporter", "run"));
+        assertNull(matcher.match("org.examples.Other", "run"));
+        assertNull(matcher.match("Other", "run"));
+        assertFalse(matcher.isEmpty());
+        assertTrue(CallerMatcher.empty().isEmpty());
+    }
+
+    public void testPackagesDoNotMatchInternalClasses()
+    {
+        CallerMatcher<String> matcher = CallerMatcher.of(Arrays.asList("org.alfresco.*", "java.*"));
+
+        assertEquals("org.alfresco.*", matcher.match(getClass().getName(), "run"));
+        assertNull(matcher.match(FactoryHelper.class.getName(), "configureFactory"));
+        assertNull(matcher.match(String.class.getName(), "valueOf"));
+    }
+
+    public void testWhiteListPackageAndMethod() throws Throwable
+    {
+        FactoryHelper factoryHelper = new FactoryHelper();
+
+        DocumentBuilderFactory dbf = new DocumentBuilderFactoryImpl();
+        factoryHelper.configureFactory(dbf, FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                FactoryHelper.DEFAULT_FEATURES_TO_DISABLE, Collections.singletonList("org.alfresco.xmlfactory.*"));
+        assertFalse(dbf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        dbf = new DocumentBuilderFactoryImpl();
+        factoryHelper.configureFactory(dbf, FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                Collections.singletonList(getClass().getName() + "#testWhiteListPackageAndMethod"));
+        assertFalse(dbf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        dbf = new DocumentBuilderFactoryImpl();
+        factoryHelper.configureFactory(dbf, FactoryHelper.DEFAULT_FEATURES_TO_ENABLE,
+                FactoryHelper.DEFAULT_FEATURES_TO_DISABLE,
+                Collections.singletonList(getClass().getName() + "#someOtherMethod"));
+        assertTrue(dbf.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link CatalogEntityResolver}.
+ */
+public class CatalogEntityResolverTest extends TestCase
+{
+    private static final String DTD = "<!ENTITY greeting \"hello\">";
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("catalog");
+        Files.write(directory.resolve("note.dtd"), DTD.getBytes(StandardCharsets.UTF_8));
+
+        // DTDs are not loaded by default, so only turn off external general entities
+        for (Class<?> factoryType : Arrays.asList(SAXParserFactory.class, DocumentBuilderFactory.class))
+        {
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.FEATURES_TO_DISABLE,
+                    Arrays.asList(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (Class<?> factoryType : Arrays.asList(SAXParserFactory.class, DocumentBuilderFactory.class))
+        {
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.FEATURES_TO_DISABLE, null);
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.ENTITY_CATALOG, null);
+        }
+        Files.deleteIfExists(directory.resolve("note.dtd"));
+        Files.deleteIfExists(directory);
+    }
+
+    private static String document(String doctype)
+    {
+        return "<?xml version=\"1.0\"?>" + doctype + "<note>&greeting;</note>";
+    }
+
+    public void testNoResolverByDefault()
+    {
+        assertNull(CatalogEntityResolver.get(SAXParserFactory.class));
+        assertNull(CatalogEntityResolver.get(DocumentBuilderFactory.class));
+    }
+
+    public void testSAXParserResolvesSystemIdFromDirectory() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, XMLFactoryConfiguration.ENTITY_CATALOG,
+                Arrays.asList(directory.toString()));
+        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+
+        StringBuilder text = new StringBuilder();
+        parser.parse(new InputSource(new StringReader(document(
+                "<!DOCTYPE note SYSTEM \"http://example.invalid/dtds/note.dtd\">"))), new DefaultHandler()
+        {
+            @Override
+            public void characters(char[] ch, int start, int length)
+            {
+                text.append(ch, start, length);
+            }
+        });
+        assertEquals("hello", text.toString());
+
+        // Not in the catalog, so nothing is read, rather than failing to connect to example.invalid
+        parser.parse(new InputSource(new StringReader(
+                "<!DOCTYPE note SYSTEM \"http://example.invalid/other.dtd\"><note/>")), new DefaultHandler());
+    }
+
+    public void testDocumentBuilderResolvesPublicIdFromCache() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.ENTITY_CATALOG,
+                Arrays.asList("-//Example//DTD Note//EN=" + directory.resolve("note.dtd")));
+        DocumentBuilder builder = new DocumentBuilderFactoryXercesImpl().newDocumentBuilder();
+        String xml = document("<!DOCTYPE note PUBLIC \"-//Example//DTD Note//EN\" \"note.dtd\">");
+
+        Document document = builder.parse(new InputSource(new StringReader(xml)));
+        assertEquals("hello", document.getDocumentElement().getTextContent());
+
+        // Read from memory once cached, and still there after a reset
+        Files.delete(directory.resolve("note.dtd"));
+        builder.reset();
+        document = builder.parse(new InputSource(new StringReader(xml)));
+        assertEquals("hello", document.getDocumentElement().getTextContent());
+    }
+
+    public void testDocumentBuilderAsksCallerResolverFirst() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.ENTITY_CATALOG,
+                Arrays.asList(directory.toString()));
+        DocumentBuilder builder = new DocumentBuilderFactoryXercesImpl().newDocumentBuilder();
+        List<String> asked = new ArrayList<>();
+        builder.setEntityResolver((publicId, systemId) ->
+        {
+            asked.add(systemId);
+            return systemId.endsWith("mine.dtd")
+                    ? new InputSource(new StringReader("<!ENTITY greeting \"mine\">"))
+                    : null;
+        });
+
+        // The caller's resolver gives up, so the catalog is used rather than going to example.invalid
+        Document document = builder.parse(new InputSource(new StringReader(document(
+                "<!DOCTYPE note SYSTEM \"http://example.invalid/dtds/note.dtd\">"))));
+        assertEquals("hello", document.getDocumentElement().getTextContent());
+
+        document = builder.parse(new InputSource(new StringReader(document(
+                "<!DOCTYPE note SYSTEM \"http://example.invalid/dtds/mine.dtd\">"))));
+        assertEquals("mine", document.getDocumentElement().getTextContent());
+        assertEquals(2, asked.size());
+    }
+}
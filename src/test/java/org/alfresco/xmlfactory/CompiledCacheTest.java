@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Tests the hardened {@link TransformerFactoryImpl} and {@link SchemaFactoryXercesImpl} and their caches of compiled
+ * Templates and Schemas.
+ */
+public class CompiledCacheTest extends TestCase
+{
+    private static final String XSLT =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+            "<xsl:output method=\"text\"/>" +
+            "<xsl:template match=\"/\"><xsl:value-of select=\"/root/@name\"/></xsl:template>" +
+            "</xsl:stylesheet>";
+
+    private static final String XSD =
+            "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">" +
+            "<xs:element name=\"root\"><xs:complexType>" +
+            "<xs:attribute name=\"name\" type=\"xs:string\"/>" +
+            "</xs:complexType></xs:element>" +
+            "</xs:schema>";
+
+    private static final String XML = "<root name=\"value\"/>";
+
+    public void testTransformerFactoryIsHardened() throws Throwable
+    {
+        TransformerFactory factory = TransformerFactory.newInstance();
+
+        assertEquals(TransformerFactoryImpl.class, factory.getClass());
+        assertTrue(factory.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+
+    public void testTemplatesAreCached() throws Throwable
+    {
+        TransformerFactory factory = new TransformerFactoryImpl();
+
+        Templates templates1 = factory.newTemplates(new StreamSource(new StringReader(XSLT), "test.xsl"));
+        Templates templates2 = new TransformerFactoryImpl().newTemplates(
+                new StreamSource(new StringReader(XSLT), "test.xsl"));
+        assertSame(templates1, templates2);
+
+        String changedXslt = XSLT.replace("/root/@name", "name(/root)");
+        Templates changed = factory.newTemplates(new StreamSource(new StringReader(changedXslt), "test.xsl"));
+        assertNotSame(templates1, changed);
+
+        StringWriter result = new StringWriter();
+        factory.newTransformer(new StreamSource(new StringReader(XSLT), "test.xsl"))
+                .transform(new StreamSource(new StringReader(XML)), new StreamResult(result));
+        assertEquals("value", result.toString());
+    }
+
+    public void testCustomisedTransformerFactoryIsNotCached() throws Throwable
+    {
+        TransformerFactory factory = new TransformerFactoryImpl();
+        factory.setURIResolver((href, base) -> null);
+
+        Templates templates1 = factory.newTemplates(new StreamSource(new StringReader(XSLT), "test.xsl"));
+        Templates templates2 = factory.newTemplates(new StreamSource(new StringReader(XSLT), "test.xsl"));
+        assertNotSame(templates1, templates2);
+    }
+
+    public void testWeakenedFactoryDoesNotChangeCachedTemplates() throws Throwable
+    {
+        Path dtd = Files.createTempFile("cached", ".dtd");
+        try
+        {
+            Files.write(dtd, "<!ENTITY name 'external'>".getBytes(StandardCharsets.UTF_8));
+            String xml = "<!DOCTYPE root SYSTEM \"" + dtd.toUri() + "\"><root name=\"&name;\"/>";
+
+            TransformerFactory factoryA = new TransformerFactoryImpl();
+            factoryA.newTemplates(new StreamSource(new StringReader(XSLT), "weakened.xsl"));
+            factoryA.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+            factoryA.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "all");
+
+            TransformerFactory factoryB = new TransformerFactoryImpl();
+            assertTrue(factoryB.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+            Templates templates = factoryB.newTemplates(new StreamSource(new StringReader(XSLT), "weakened.xsl"));
+            try
+            {
+                templates.newTransformer().transform(new StreamSource(new StringReader(xml)),
+                        new StreamResult(new StringWriter()));
+                fail("The external DTD should not have been read");
+            }
+            catch (TransformerException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            Files.delete(dtd);
+        }
+    }
+
+    public void testSourcesWithIncludesAreNotCached() throws Throwable
+    {
+        String xslt = XSLT.replace("<xsl:output", "<xsl:include href=\"other.xsl\"/><xsl:output");
+        CacheableSources cacheable = CacheableSources.read("prefix",
+                new StreamSource(new StringReader(xslt), "include.xsl"));
+        assertNull(cacheable.getKey());
+
+        assertNull(CacheableSources.read("prefix", new StreamSource("relative.xsl")));
+    }
+
+    public void testSchemasAreCached() throws Throwable
+    {
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        assertEquals(SchemaFactoryXercesImpl.class, factory.getClass());
+        assertTrue(factory.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        Schema schema1 = factory.newSchema(new StreamSource(new StringReader(XSD), "test.xsd"));
+        Schema schema2 = new SchemaFactoryXercesImpl().newSchema(new StreamSource(new StringReader(XSD), "test.xsd"));
+        assertSame(schema1, schema2);
+
+        schema1.newValidator().validate(new StreamSource(new StringReader(XML)));
+    }
+
+    public void testSchemaImportOfFileIsRefused() throws Throwable
+    {
+        Path imported = Files.createTempFile("imported", ".xsd");
+        try
+        {
+            Files.write(imported, ("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" " +
+                    "targetNamespace=\"urn:imported\"><xs:element name=\"secret\" type=\"xs:string\"/></xs:schema>")
+                    .getBytes(StandardCharsets.UTF_8));
+            String xsd = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">" +
+                    "<xs:import namespace=\"urn:imported\" schemaLocation=\"" + imported.toUri() + "\"/>" +
+                    "</xs:schema>";
+
+            SchemaFactory factory = new SchemaFactoryXercesImpl();
+            assertNull(factory.getResourceResolver());
+            // An unreadable import is only a warning, so the schema compiles without the imported declarations
+            Schema schema = factory.newSchema(new StreamSource(new StringReader(xsd), "import.xsd"));
+            try
+            {
+                schema.newValidator().validate(new StreamSource(new StringReader(
+                        "<i:secret xmlns:i=\"urn:imported\">value</i:secret>")));
+                fail("The imported schema should not have been read");
+            }
+            catch (SAXException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            Files.delete(imported);
+        }
+    }
+
+    public void testExternalDtdOfValidatedDocumentIsRefused() throws Throwable
+    {
+        Path dtd = Files.createTempFile("validated", ".dtd");
+        try
+        {
+            Files.write(dtd, "<!ENTITY name 'external'>".getBytes(StandardCharsets.UTF_8));
+            String xml = "<!DOCTYPE root SYSTEM \"" + dtd.toUri() + "\"><root name=\"&name;\"/>";
+
+            Schema schema = new SchemaFactoryXercesImpl().newSchema(new StreamSource(new StringReader(XSD),
+                    "validated.xsd"));
+            assertNotNull(schema.newValidator().getResourceResolver());
+            try
+            {
+                schema.newValidator().validate(new StreamSource(new StringReader(xml)));
+                fail("The external DTD should not have been read");
+            }
+            catch (IOException | SAXException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            Files.delete(dtd);
+        }
+    }
+
+    public void testBoundedCacheEvictsLeastRecentlyUsed()
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}
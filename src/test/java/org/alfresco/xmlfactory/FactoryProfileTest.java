@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.xerces.util.SymbolTable;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link FactoryProfile}.
+ */
+public class FactoryProfileTest extends TestCase
+{
+    private static final String DEEP = "<a><b><c/></b></a>";
+    private static final String DOCTYPE = "<!DOCTYPE a><a/>";
+
+    private static final List<String> PROPERTY_NAMES = Arrays.asList(FactoryProfile.FACTORY_PROFILES,
+            "profile.strict." + ParserLimits.Limit.ELEMENT_DEPTH.propertyName,
+            "profile.strict." + FactoryHelper.FEATURES_TO_ENABLE,
+            "profile.trusted." + ParserResources.SYMBOL_TABLE_SIZE);
+
+    @Override
+    protected void tearDown()
+    {
+        for (String propertyName : PROPERTY_NAMES)
+        {
+            XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, propertyName, null);
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, propertyName, null);
+        }
+    }
+
+    private static void set(Class<?> factoryType, String propertyName, String... values)
+    {
+        XMLFactoryConfiguration.setConfiguration(factoryType, propertyName, Arrays.asList(values));
+    }
+
+    private static void parse(SAXParser parser, String xml) throws Exception
+    {
+        parser.parse(new InputSource(new StringReader(xml)), new DefaultHandler());
+    }
+
+    private static SAXParser newParserElsewhere() throws Exception
+    {
+        return new SAXParserFactoryXercesImpl().newSAXParser();
+    }
+
+    public void testProfileOfCallSite() throws Throwable
+    {
+        set(SAXParserFactory.class, "profile.strict." + ParserLimits.Limit.ELEMENT_DEPTH.propertyName, "2");
+        set(SAXParserFactory.class, "profile.strict." + FactoryHelper.FEATURES_TO_ENABLE,
+                "http://apache.org/xml/features/disallow-doctype-decl");
+        set(SAXParserFactory.class, FactoryProfile.FACTORY_PROFILES,
+                FactoryProfileTest.class.getName() + "#testProfileOfCallSite=strict");
+        long selected = getProfilesSelected("strict");
+
+        SAXParser strict = new SAXParserFactoryXercesImpl().newSAXParser();
+        // The profile's features are added to the type's, so it is still hardened
+        assertTrue(strict.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(strict.getXMLReader().getFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+        for (String xml : Arrays.asList(DEEP, DOCTYPE))
+        {
+            try
+            {
+                parse(strict, xml);
+                fail(xml + " should have been rejected");
+            }
+            catch (SAXParseException e)
+            {
+                // expected
+            }
+        }
+        assertEquals(selected + 1, getProfilesSelected("strict"));
+
+        // Other call sites are hardened as usual
+        SAXParser other = newParserElsewhere();
+        parse(other, DEEP);
+        parse(other, DOCTYPE);
+        assertTrue(other.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+
+        // Both call sites are in this class, which is only matched once
+        FactoryProfile.Selection selection = ConfigurationSnapshot.getInstance()
+                .getDerived(FactoryProfile.Selection.class, FactoryProfile.Selection::new);
+        assertEquals(1, selection.getMatchedClassCount(SAXParserFactory.class));
+        new SAXParserFactoryXercesImpl();
+        newParserElsewhere();
+        assertEquals(1, selection.getMatchedClassCount(SAXParserFactory.class));
+        assertEquals(selected + 2, getProfilesSelected("strict"));
+    }
+
+    public void testProfileWithOwnResources() throws Throwable
+    {
+        set(DocumentBuilderFactory.class, "profile.trusted." + ParserResources.SYMBOL_TABLE_SIZE, "1000");
+        set(DocumentBuilderFactory.class, FactoryProfile.FACTORY_PROFILES,
+                FactoryProfileTest.class.getName() + "=trusted");
+
+        DocumentBuilderFactory factory = new DocumentBuilderFactoryXercesImpl();
+        assertTrue(factory.getAttribute(ParserResources.SYMBOL_TABLE_PROPERTY) instanceof SymbolTable);
+        // Features the profile does not set are the same as for other callers
+        assertTrue(factory.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(factory.getFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+        assertEquals("root", factory.newDocumentBuilder().parse(new InputSource(new StringReader("<root/>")))
+                .getDocumentElement().getNodeName());
+
+        // Shared factories do not use profiles
+        assertFalse(DocumentBuilderFactoryXercesImpl.newHardenedInstance()
+                .getAttribute(ParserResources.SYMBOL_TABLE_PROPERTY) instanceof SymbolTable);
+    }
+
+    private static long getProfilesSelected(String profile)
+    {
+        Long count = FactoryMetrics.getInstance().getProfilesSelected().get(profile);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests {@link FragmentParser}.
+ */
+public class FragmentParserTest extends TestCase
+{
+    private static final String XML =
+            "<export xmlns:x='urn:x'>" +
+            "<meta><count>2</count></meta>" +
+            "<records>" +
+            "<record id='1'><name>one</name><x:extra>a</x:extra></record>" +
+            "<record id='2'><name>two</name><record id='nested'/></record>" +
+            "</records>" +
+            "<summary><record id='3'/></summary>" +
+            "</export>";
+
+    private List<String> parse(String... selectors) throws Exception
+    {
+        List<String> found = new ArrayList<>();
+        new FragmentParser(selectors).parse(new InputSource(new StringReader(XML)), (selector, fragment) ->
+                found.add(selector+" "+fragment.getAttribute("id")+" "+fragment.getTextContent()));
+        return found;
+    }
+
+    public void testAbsoluteSelector() throws Exception
+    {
+        List<String> found = parse("/export/records/record");
+        assertEquals(2, found.size());
+        assertEquals("/export/records/record 1 onea", found.get(0));
+        assertEquals("/export/records/record 2 two", found.get(1));
+    }
+
+    public void testDescendantAndWildcardSelectors() throws Exception
+    {
+        List<String> found = parse("//record", "/*/meta");
+        assertEquals(4, found.size());
+        assertEquals("/*/meta  2", found.get(0));
+        assertEquals("//record 3 ", found.get(3));
+    }
+
+    public void testFragmentIsAStandaloneDocument() throws Exception
+    {
+        List<Element> fragments = new ArrayList<>();
+        new FragmentParser("//record").parse(new InputSource(new StringReader(XML)), (selector, fragment) ->
+                fragments.add(fragment));
+
+        Element first = fragments.get(0);
+        assertSame(first, first.getOwnerDocument().getDocumentElement());
+        assertEquals("urn:x", first.getElementsByTagNameNS("urn:x", "extra").item(0).getNamespaceURI());
+        assertNotSame(first.getOwnerDocument(), fragments.get(1).getOwnerDocument());
+    }
+
+    public void testUnsupportedSelector()
+    {
+        for (String selector : new String[] {"record", "/a[1]", "/a/@id", "/a//b", "/"})
+        {
+            try
+            {
+                new FragmentParser(selector);
+                fail("Expected "+selector+" to be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    public void testExternalEntityIsNotExpanded() throws Exception
+    {
+        String xml = "<!DOCTYPE export [<!ENTITY e SYSTEM 'file:///etc/hostname'>]>" +
+                "<export><record>&e;</record></export>";
+        List<String> found = new ArrayList<>();
+        new FragmentParser("//record").parse(new InputSource(new StringReader(xml)), (selector, fragment) ->
+                found.add(fragment.getTextContent()));
+        assertEquals(1, found.size());
+        assertEquals("", found.get(0));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.parsers.DocumentBuilder;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests {@link MappedInputSources}.
+ */
+public class MappedInputSourcesTest extends TestCase
+{
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = Files.createTempFile("MappedInputSourcesTest", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        Files.deleteIfExists(file);
+    }
+
+    public void testEncodingIsDetected()
+    {
+        assertEquals("UTF-8", encoding("<root/>"));
+        assertEquals("UTF-8", encoding("<?xml version=\"1.0\"?><root/>"));
+        assertEquals("UTF-8", encoding("<?xml version='1.0' encoding='utf8'?><root/>"));
+        assertEquals("US-ASCII", encoding("<?xml version=\"1.0\" encoding=\"ASCII\"?><root/>"));
+        assertNull(encoding("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root/>"));
+        assertNull(MappedInputSources.getEncoding(ByteBuffer.wrap("<root/>".getBytes(StandardCharsets.UTF_16))));
+    }
+
+    private static String encoding(String prolog)
+    {
+        return MappedInputSources.getEncoding(ByteBuffer.wrap(prolog.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    public void testDocumentsAreParsed() throws Exception
+    {
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        byte[] utf8 = "<root>caf\u00e9</root>".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream withBom = new ByteArrayOutputStream();
+        withBom.write(bom);
+        withBom.write(utf8);
+
+        assertEquals("caf\u00e9", parse(utf8, "UTF-8"));
+        assertEquals("caf\u00e9", parse(withBom.toByteArray(), "UTF-8"));
+        assertEquals("caf\u00e9", parse("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root>caf\u00e9</root>"
+                .getBytes(StandardCharsets.ISO_8859_1), null));
+    }
+
+    private String parse(byte[] content, String expectedEncoding) throws Exception
+    {
+        Files.write(file, content);
+        InputSource source = MappedInputSources.open(file);
+        try
+        {
+            assertEquals(expectedEncoding, source.getEncoding());
+            assertEquals(file.toUri().toString(), source.getSystemId());
+            DocumentBuilder builder = DocumentBuilderFactoryXercesImpl.newHardenedInstance().newDocumentBuilder();
+            Document document = builder.parse(source);
+            return document.getDocumentElement().getTextContent();
+        }
+        finally
+        {
+            source.getByteStream().close();
+        }
+    }
+
+    public void testWindowsAreCrossed() throws Exception
+    {
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) i;
+        }
+        Files.write(file, content);
+
+        try (InputStream in = new MappedFileInputStream(file, 3, 7))
+        {
+            assertEquals(997, in.available());
+            assertEquals(3, in.read());
+            assertEquals(10, in.skip(10));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, count);
+            }
+            byte[] read = out.toByteArray();
+            assertEquals(986, read.length);
+            assertEquals((byte) 14, read[0]);
+            assertEquals((byte) 999, read[read.length - 1]);
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link OnceMap}.
+ */
+public class OnceMapTest extends TestCase
+{
+    public void testOnceMapBuildsEachValueOnce() throws Throwable
+    {
+        OnceMap<String, String> map = new OnceMap<>();
+        AtomicInteger builds = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(executor.submit(() ->
+                {
+                    start.await();
+                    return map.get("key", () ->
+                    {
+                        builds.incrementAndGet();
+                        sleep(50);
+                        return "value";
+                    });
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results)
+            {
+                assertEquals("value", result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertEquals(1, builds.get());
+
+        try
+        {
+            map.get("failed", () ->
+            {
+                throw new IllegalStateException("Expected");
+            });
+            fail("Expected the builder's exception");
+        }
+        catch (IllegalStateException e)
+        {
+            // A failure is not remembered.
+            assertEquals("retried", map.get("failed", () -> "retried"));
+        }
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link ParserLimits}.
+ */
+public class ParserLimitsTest extends TestCase
+{
+    @Override
+    protected void tearDown()
+    {
+        for (String propertyName : ParserLimits.PROPERTY_NAMES)
+        {
+            XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, propertyName, null);
+            XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, propertyName, null);
+        }
+    }
+
+    private static void set(Class<?> factoryType, String propertyName, String... values)
+    {
+        XMLFactoryConfiguration.setConfiguration(factoryType, propertyName, Arrays.asList(values));
+    }
+
+    /**
+     * Repeats the same bytes for ever, so the test only ends if the parser stops reading.
+     */
+    private static InputStream endless(String start, String repeated)
+    {
+        byte[] prefix = start.getBytes(StandardCharsets.UTF_8);
+        byte[] body = repeated.getBytes(StandardCharsets.UTF_8);
+        return new InputStream()
+        {
+            private long position;
+
+            @Override
+            public int read()
+            {
+                long i = position++;
+                return i < prefix.length ? prefix[(int) i] : body[(int) ((i - prefix.length) % body.length)];
+            }
+        };
+    }
+
+    public void testNoLimitsByDefault() throws Throwable
+    {
+        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+        assertFalse(parser instanceof FilteredSAXParser);
+        assertFalse(new DocumentBuilderFactoryXercesImpl().newDocumentBuilder() instanceof LimitedDocumentBuilder);
+    }
+
+    public void testElementDepthAndAttributesAreLimited() throws Throwable
+    {
+        set(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH, "3");
+        set(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ELEMENT_ATTRIBUTES, "2");
+        FactoryMetrics metrics = FactoryMetrics.getInstance();
+        long rejected = metrics.getLimitExceededCount(XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH);
+
+        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+        parser.parse(new InputSource(new StringReader("<a x='1' y='2'><b><c/></b><b><c/></b></a>")),
+                new DefaultHandler());
+        try
+        {
+            parser.parse(endless("<a>", "<a>"), new DefaultHandler());
+            fail("Expected the element depth limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH));
+            assertEquals(1, e.getLineNumber());
+        }
+        assertEquals(rejected + 1, metrics.getLimitExceededCount(XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH));
+
+        try
+        {
+            parser.parse(new InputSource(new StringReader("<a x='1' y='2' z='3'/>")), new DefaultHandler());
+            fail("Expected the attribute limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_ELEMENT_ATTRIBUTES));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testSAX1ParserIsLimited() throws Throwable
+    {
+        set(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ELEMENT_ATTRIBUTES, "2");
+        SAXParserFactory factory = new SAXParserFactoryXercesImpl();
+        factory.setNamespaceAware(true);
+        SAXParser parser = factory.newSAXParser();
+
+        try
+        {
+            parser.parse(new InputSource(new StringReader("<a x='1' y='2' z='3'/>")), new org.xml.sax.HandlerBase());
+            fail("Expected the attribute limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_ELEMENT_ATTRIBUTES));
+        }
+
+        // SAX1 turns namespace processing off while it parses, which must not last.
+        assertTrue(parser.getXMLReader().getFeature("http://xml.org/sax/features/namespaces"));
+    }
+
+    /**
+     * @return a billion laughs document with {@code levels} levels of ten entity references each.
+     */
+    private static String laughs(int levels)
+    {
+        StringBuilder xml = new StringBuilder("<!DOCTYPE lolz [<!ENTITY lol0 \"lol\">");
+        for (int level = 1; level <= levels; level++)
+        {
+            xml.append("<!ENTITY lol").append(level).append(" \"");
+            for (int i = 0; i < 10; i++)
+            {
+                xml.append("&lol").append(level - 1).append(';');
+            }
+            xml.append("\">");
+        }
+        return xml.append("]><lolz>&lol").append(levels).append(";</lolz>").toString();
+    }
+
+    public void testEntityExpansionIsLimited() throws Throwable
+    {
+        String xml = laughs(3);
+        FactoryMetrics metrics = FactoryMetrics.getInstance();
+        new DocumentBuilderFactoryXercesImpl().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        new SAXParserFactoryXercesImpl().newSAXParser().parse(new InputSource(new StringReader(xml)),
+                new DefaultHandler());
+
+        set(DocumentBuilderFactory.class, XMLFactoryConfiguration.LIMIT_ENTITY_EXPANSION, "100");
+        set(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ENTITY_EXPANSION, "100");
+        long rejected = metrics.getLimitExceededCount(XMLFactoryConfiguration.LIMIT_ENTITY_EXPANSION);
+        DocumentBuilderFactory factory = new DocumentBuilderFactoryXercesImpl();
+        // Hardened factories keep entity reference nodes, so expand them for every expansion to be counted
+        factory.setExpandEntityReferences(true);
+        try
+        {
+            factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+            fail("Expected the entity expansion limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            // expected
+        }
+        // Counted from the message of the Xerces scanner, so this fails if the message changes
+        assertEquals(rejected + 1, metrics.getLimitExceededCount(XMLFactoryConfiguration.LIMIT_ENTITY_EXPANSION));
+
+        try
+        {
+            new SAXParserFactoryXercesImpl().newSAXParser().parse(new InputSource(new StringReader(xml)),
+                    new DefaultHandler());
+            fail("Expected the entity expansion limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            // expected
+        }
+        assertEquals(rejected + 2, metrics.getLimitExceededCount(XMLFactoryConfiguration.LIMIT_ENTITY_EXPANSION));
+    }
+
+    public void testDocumentSizeIsLimited() throws Throwable
+    {
+        set(DocumentBuilderFactory.class, XMLFactoryConfiguration.LIMIT_DOCUMENT_SIZE, "1000");
+        DocumentBuilder builder = new DocumentBuilderFactoryXercesImpl().newDocumentBuilder();
+
+        assertEquals("a", builder.parse(new InputSource(new StringReader("<a><b/></a>"))).getDocumentElement()
+                .getNodeName());
+        try
+        {
+            builder.parse(endless("<a>", "<b/>"));
+            fail("Expected the document size limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_DOCUMENT_SIZE));
+        }
+
+        // Documents only given by system id are opened so they can be counted.
+        Path file = Files.createTempFile("ParserLimitsTest", ".xml");
+        try
+        {
+            Files.write(file, ("<a>" + String.join("", Collections.nCopies(300, "<b/>")) + "</a>")
+                    .getBytes(StandardCharsets.UTF_8));
+            builder.parse(file.toFile());
+            fail("Expected the document size limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_DOCUMENT_SIZE));
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    public void testCallerLimitsOverrideDefault() throws Throwable
+    {
+        String deep = "<a><a><a><a><a><a/></a></a></a></a></a>";
+        set(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH, "3");
+        set(SAXParserFactory.class,
+                XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH + XMLFactoryConfiguration.LIMIT_CALLERS_SUFFIX,
+                getClass().getName() + "=10");
+
+        new SAXParserFactoryXercesImpl().newSAXParser()
+                .parse(new InputSource(new StringReader(deep)), new DefaultHandler());
+        try
+        {
+            // Shared factories only have the default limits.
+            SAXParserFactoryXercesImpl.newHardenedInstance().newSAXParser()
+                    .parse(new InputSource(new StringReader(deep)), new DefaultHandler());
+            fail("Expected the element depth limit to be exceeded");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH));
+        }
+    }
+}
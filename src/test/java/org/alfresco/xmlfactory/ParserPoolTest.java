@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link ParserPool} and {@link SecureSAXParsers}.
+ */
+public class ParserPoolTest extends TestCase
+{
+    private static final String XML = "<root><child/></root>";
+
+    public void testDocumentBuilderIsReused() throws Throwable
+    {
+        ParserPool<DocumentBuilder> pool = ParserPool.newDocumentBuilderPool(2);
+
+        DocumentBuilder builder = pool.borrow();
+        Document document = builder.parse(new InputSource(new StringReader(XML)));
+        assertEquals("root", document.getDocumentElement().getNodeName());
+        pool.release(builder);
+
+        assertSame(builder, pool.borrow());
+        assertEquals(2, pool.getBorrowCount());
+        assertEquals(1, pool.getReturnCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    public void testSAXParserIsHardenedAndReused() throws Throwable
+    {
+        ParserPool<SAXParser> pool = ParserPool.newSAXParserPool(2);
+
+        SAXParser parser = pool.borrow();
+        assertTrue(parser.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+        assertFalse(parser.getXMLReader().getFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+        parser.parse(new InputSource(new StringReader(XML)), new DefaultHandler());
+        pool.release(parser);
+
+        assertSame(parser, pool.borrow());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    public void testChangedSecurityFeatureIsNotLentOut() throws Throwable
+    {
+        ParserPool<SAXParser> pool = ParserPool.newSAXParserPool(2);
+
+        SAXParser parser = pool.borrow();
+        parser.getXMLReader().setFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES, true);
+        pool.release(parser);
+
+        // Either reset() restored the feature or the parser was discarded.
+        SAXParser next = pool.borrow();
+        assertFalse(next.getXMLReader().getFeature(FactoryHelper.FEATURE_EXTERNAL_GENERAL_ENTITIES));
+        assertTrue(next.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+
+    public void testFilteredSAXParserForgetsPreviousHandlers() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH,
+                Collections.singletonList("100"));
+        try
+        {
+            ParserPool<SAXParser> pool = ParserPool.newSAXParserPool(2);
+
+            SAXParser parser = pool.borrow();
+            assertTrue(parser instanceof FilteredSAXParser);
+            EntityResolver resolver = (publicId, systemId) -> null;
+            DefaultHandler handler = new DefaultHandler();
+            parser.getXMLReader().setEntityResolver(resolver);
+            parser.parse(new InputSource(new StringReader(XML)), handler);
+            pool.release(parser);
+
+            SAXParser next = pool.borrow();
+            assertSame(parser, next);
+            XMLReader reader = next.getXMLReader();
+            assertNotSame(resolver, reader.getEntityResolver());
+            assertNotSame(handler, reader.getContentHandler());
+            assertNotSame(handler, reader.getErrorHandler());
+        }
+        finally
+        {
+            XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class,
+                    XMLFactoryConfiguration.LIMIT_ELEMENT_DEPTH, null);
+        }
+    }
+
+    public void testPoolSizeIsCapped() throws Throwable
+    {
+        ParserPool<DocumentBuilder> pool = ParserPool.newDocumentBuilderPool(1);
+
+        DocumentBuilder builder1 = pool.borrow();
+        DocumentBuilder builder2 = pool.borrow();
+        pool.release(builder1);
+        pool.release(builder2);
+
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getDiscardCount());
+    }
+
+    public void testSecureSAXParsersFromManyThreads() throws Throwable
+    {
+        SecureSAXParsers parsers = SecureSAXParsers.getNamespaceAwareInstance();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++)
+            {
+                results.add(executor.submit(() ->
+                {
+                    StringBuilder names = new StringBuilder();
+                    parsers.parse(new InputSource(new StringReader(XML)), new DefaultHandler()
+                    {
+                        @Override
+                        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                        {
+                            names.append(localName);
+                        }
+                    });
+                    return names.toString();
+                }));
+            }
+            for (Future<String> result : results)
+            {
+                assertEquals("rootchild", result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        ParserPool<SAXParser> pool = parsers.getPool();
+        assertTrue(pool.getIdleCount() <= pool.getMaxSize());
+        assertEquals(pool.getBorrowCount(), pool.getReturnCount());
+        assertTrue(parsers.execute(parser -> parser.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING)));
+    }
+}
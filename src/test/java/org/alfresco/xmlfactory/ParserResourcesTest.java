@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link SharedSymbolTable} and {@link ParserResources}.
+ */
+public class ParserResourcesTest extends TestCase
+{
+    @Override
+    protected void tearDown()
+    {
+        for (Class<?> factoryType : new Class<?>[] {DocumentBuilderFactory.class, SAXParserFactory.class})
+        {
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.SYMBOL_TABLE_SIZE, null);
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.TRUSTED_GRAMMARS, null);
+        }
+    }
+
+    public void testSymbolsAreSharedBetweenThreads() throws Throwable
+    {
+        SharedSymbolTable table = new SharedSymbolTable();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                results.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < 1000; i++)
+                    {
+                        String name = "name" + i;
+                        char[] chars = (" " + name + " ").toCharArray();
+                        assertSame(name.intern(), table.addSymbol(chars, 1, name.length()));
+                        assertSame(name.intern(), table.addSymbol(new String(name)));
+                        assertTrue(table.containsSymbol(name));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertEquals(1000, table.size());
+        assertFalse(table.containsSymbol("missing"));
+    }
+
+    public void testDocumentBuildersShareASymbolTable() throws Throwable
+    {
+        DocumentBuilderFactory unshared = new DocumentBuilderFactoryXercesImpl();
+        assertFalse(ParserResources.get(DocumentBuilderFactory.class).isEnabled());
+
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class,
+                XMLFactoryConfiguration.SYMBOL_TABLE_SIZE, Collections.singletonList("1000"));
+        DocumentBuilderFactory dbf1 = new DocumentBuilderFactoryXercesImpl();
+        DocumentBuilderFactory dbf2 = new DocumentBuilderFactoryXercesImpl();
+        Object table = dbf1.getAttribute(ParserResources.SYMBOL_TABLE_PROPERTY);
+        assertTrue(table instanceof SharedSymbolTable);
+        assertSame(table, dbf2.getAttribute(ParserResources.SYMBOL_TABLE_PROPERTY));
+
+        Document document = dbf1.newDocumentBuilder()
+                .parse(new InputSource(new StringReader("<root><child a='1'/></root>")));
+        assertEquals("child", document.getDocumentElement().getFirstChild().getNodeName());
+        assertTrue(((SharedSymbolTable) table).containsSymbol("child"));
+    }
+
+    public void testSymbolTableIsReplacedWhenFull() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, XMLFactoryConfiguration.SYMBOL_TABLE_SIZE,
+                Collections.singletonList("2"));
+        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+        Object table = parser.getProperty(ParserResources.SYMBOL_TABLE_PROPERTY);
+        assertTrue(table instanceof SharedSymbolTable);
+        parser.parse(new InputSource(new StringReader("<a><b/><c/><d/></a>")), new DefaultHandler());
+
+        Object next = new SAXParserFactoryXercesImpl().newSAXParser()
+                .getProperty(ParserResources.SYMBOL_TABLE_PROPERTY);
+        assertNotSame(table, next);
+        assertEquals(0, ((SharedSymbolTable) next).size());
+
+        // A pooled parser gets a shared table back after it has been reset
+        ParserPool<SAXParser> pool = ParserPool.newSAXParserPool(new SAXParserFactoryXercesImpl(), 1);
+        SAXParser pooled = pool.borrow();
+        pool.release(pooled);
+        assertSame(pooled, pool.borrow());
+        assertTrue(pooled.getProperty(ParserResources.SYMBOL_TABLE_PROPERTY) instanceof SharedSymbolTable);
+    }
+
+    public void testOnlyTrustedGrammarsArePooled() throws Throwable
+    {
+        File xsd = File.createTempFile("trusted", ".xsd");
+        xsd.deleteOnExit();
+        Files.write(xsd.toPath(), ("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' " +
+                "targetNamespace='urn:trusted'><xs:element name='root' type='xs:string'/></xs:schema>")
+                .getBytes(StandardCharsets.UTF_8));
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.TRUSTED_GRAMMARS,
+                Collections.singletonList(xsd.toURI().toString()));
+
+        ParserResources.Shared resources = ParserResources.get(DocumentBuilderFactory.class);
+        assertTrue(resources.isEnabled());
+        assertEquals(1, resources.getGrammarPool().retrieveInitialGrammarSet(XMLGrammarDescription.XML_SCHEMA).length);
+
+        DocumentBuilderFactory dbf = new DocumentBuilderFactoryXercesImpl();
+        assertSame(resources.getGrammarPool(), dbf.getAttribute(ParserResources.GRAMMAR_POOL_PROPERTY));
+        dbf.newDocumentBuilder().parse(new InputSource(new StringReader(
+                "<!DOCTYPE root [<!ELEMENT root (#PCDATA)>]><root>text</root>")));
+
+        // The pool is locked, so the document's DTD was not added
+        assertEquals(0, resources.getGrammarPool().retrieveInitialGrammarSet(XMLGrammarDescription.XML_DTD).length);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.alfresco.xmlfactory.PrologScanner.Prolog;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests {@link PrologScanner} and {@link DoctypePolicy}.
+ */
+public class PrologScannerTest extends TestCase
+{
+    private static final String HOSTILE = "<?xml version=\"1.0\"?>\n<!-- a <!DOCTYPE in a comment -->"
+            + "<!DOCTYPE root [<!ENTITY a \"aaaa\">]><root>&a;</root>";
+    private static final String BENIGN = "<?xml version=\"1.0\"?>\n<?style sheet?><!-- <!DOCTYPE --><root/>";
+
+    @Override
+    protected void tearDown()
+    {
+        for (Class<?> factoryType : Arrays.asList(SAXParserFactory.class, DocumentBuilderFactory.class))
+        {
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.DOCTYPE_POLICY, null);
+            XMLFactoryConfiguration.setConfiguration(factoryType, XMLFactoryConfiguration.DOCTYPE_POLICIES, null);
+        }
+    }
+
+    private static Prolog scan(String xml, String encoding)
+    {
+        byte[] bytes = xml.getBytes(Charset.forName(encoding));
+        return PrologScanner.scan(bytes, 0, bytes.length);
+    }
+
+    public void testScan() throws Throwable
+    {
+        for (String encoding : Arrays.asList("UTF-8", "ISO-8859-1", "UTF-16", "UTF-16LE", "UTF-16BE"))
+        {
+            assertEquals(encoding, Prolog.DOCTYPE, scan(HOSTILE, encoding));
+            assertEquals(encoding, Prolog.NO_DOCTYPE, scan(BENIGN, encoding));
+        }
+        assertEquals(Prolog.DOCTYPE, scan("\uFEFF<!DOCTYPE root><root/>", "UTF-8"));
+        assertEquals(Prolog.UNDECIDED, scan(HOSTILE, "UTF-32"));
+        assertEquals(Prolog.UNDECIDED, scan(HOSTILE, "UTF-32LE"));
+        assertEquals(Prolog.UNDECIDED, scan(HOSTILE.substring(HOSTILE.indexOf("<!DOCTYPE")), "UTF-32LE"));
+        assertEquals(Prolog.UNDECIDED, scan(" " + HOSTILE, "UTF-16LE"));
+        assertEquals(Prolog.UNDECIDED, scan(" " + HOSTILE, "IBM037"));
+        assertEquals(Prolog.UNDECIDED, scan("text<!DOCTYPE root><root/>", "UTF-8"));
+        assertEquals(Prolog.UNDECIDED, scan("<?xml version=\"1.0\"?><!-- not closed", "UTF-8"));
+        assertEquals(Prolog.UNDECIDED, scan("<!DOC", "UTF-8"));
+
+        // An explicit encoding is trusted only if the scan can read it
+        byte[] utf16 = HOSTILE.getBytes(StandardCharsets.UTF_16LE);
+        assertEquals(Prolog.UNDECIDED, PrologScanner.scan(utf16, 0, utf16.length, "UTF-16LE"));
+        byte[] latin1 = BENIGN.getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(Prolog.NO_DOCTYPE, PrologScanner.scan(latin1, 0, latin1.length, "ISO-8859-1"));
+        assertEquals(Prolog.UNDECIDED, PrologScanner.scan(latin1, 0, latin1.length, "no-such-encoding"));
+
+        char[] chars = HOSTILE.toCharArray();
+        assertEquals(Prolog.DOCTYPE, PrologScanner.scan(chars, 0, chars.length));
+
+        // Streams are put back where they were
+        ByteArrayInputStream in = new ByteArrayInputStream(BENIGN.getBytes(StandardCharsets.UTF_8));
+        assertEquals(Prolog.NO_DOCTYPE, PrologScanner.scan(in));
+        assertEquals(BENIGN.length(), in.available());
+    }
+
+    public void testPaddedPrologIsUndecided()
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>");
+        while (xml.length() < PrologScanner.DEFAULT_SCAN_SIZE)
+        {
+            xml.append("<!-- padding -->");
+        }
+        xml.append("<!DOCTYPE root><root/>");
+        byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+        assertEquals(Prolog.UNDECIDED, PrologScanner.scan(bytes, 0, PrologScanner.DEFAULT_SCAN_SIZE));
+    }
+
+    public void testCallerPolicyRejectsDoctype() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(SAXParserFactory.class, XMLFactoryConfiguration.DOCTYPE_POLICIES,
+                Arrays.asList(PrologScannerTest.class.getName() + "=reject"));
+        FactoryMetrics metrics = FactoryMetrics.getInstance();
+        long rejected = metrics.getDoctypesRejected();
+
+        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+        parser.parse(new InputSource(new StringReader(BENIGN)), new DefaultHandler());
+        try
+        {
+            parser.parse(new InputSource(new StringReader(HOSTILE)), new DefaultHandler());
+            fail("DOCTYPE should have been rejected");
+        }
+        catch (SAXParseException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(XMLFactoryConfiguration.DOCTYPE_POLICY));
+        }
+        assertEquals(rejected + 1, metrics.getDoctypesRejected());
+
+        // Shared factories only use the default policy
+        SAXParser shared = SAXParserFactoryXercesImpl.newHardenedInstance().newSAXParser();
+        shared.parse(new InputSource(new StringReader(HOSTILE)), new DefaultHandler());
+    }
+
+    public void testDocumentBuilderRejectsDoctype() throws Throwable
+    {
+        XMLFactoryConfiguration.setConfiguration(DocumentBuilderFactory.class, XMLFactoryConfiguration.DOCTYPE_POLICY,
+                Arrays.asList("reject"));
+        DocumentBuilder builder = new DocumentBuilderFactoryXercesImpl().newDocumentBuilder();
+
+        byte[] benign = BENIGN.getBytes(StandardCharsets.UTF_16);
+        assertEquals("root", builder.parse(new ByteArrayInputStream(benign)).getDocumentElement().getNodeName());
+        try
+        {
+            builder.parse(new ByteArrayInputStream(HOSTILE.getBytes(StandardCharsets.UTF_8)));
+            fail("DOCTYPE should have been rejected");
+        }
+        catch (SAXParseException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests factory configuration and parser creation from many virtual threads. Virtual threads need Java 21, so this
+ * test is only run by the {@code virtual-threads} profile, which is active on Java 21 or later.
+ */
+public class VirtualThreadTest extends TestCase
+{
+    private static final Log logger = LogFactory.getLog(VirtualThreadTest.class);
+
+    private static final int PARSES = 100000;
+
+    // Parsing is CPU bound, so virtual threads should keep up with a pool of one platform thread per processor
+    private static final double MIN_THROUGHPUT_RATIO = 0.5;
+
+    /**
+     * Creates a hardened factory and parser, and parses a document, in each of 100000 virtual threads. Checks they
+     * all succeed, that their throughput is close to that of a pool of platform threads doing the same, and that no
+     * virtual thread was pinned to its carrier by a monitor in this library.
+     */
+    public void testSecureParsersFromManyVirtualThreads() throws Throwable
+    {
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        assertNotNull("Virtual threads need Java 21", virtualThreads);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        parsesPerSecond(Executors.newFixedThreadPool(processors), PARSES / 10);
+        double platformRate = parsesPerSecond(Executors.newFixedThreadPool(processors), PARSES);
+
+        double virtualRate;
+        List<String> pinnedFrames = new ArrayList<>();
+        try (Recording recording = new Recording())
+        {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+            virtualRate = parsesPerSecond(virtualThreads, PARSES);
+            recording.stop();
+
+            Path file = Files.createTempFile("pinned", ".jfr");
+            try
+            {
+                recording.dump(file);
+                for (RecordedEvent event : RecordingFile.readAllEvents(file))
+                {
+                    addLibraryFrames(event, pinnedFrames);
+                }
+            }
+            finally
+            {
+                Files.delete(file);
+            }
+        }
+
+        double ratio = virtualRate / platformRate;
+        if (logger.isInfoEnabled())
+        {
+            logger.info(String.format("%.0f parses/s on %d platform threads, %.0f parses/s on virtual threads (%.2f)",
+                    platformRate, processors, virtualRate, ratio));
+        }
+        assertTrue("Virtual threads pinned at " + pinnedFrames, pinnedFrames.isEmpty());
+        assertTrue("Virtual thread throughput was only " + ratio + " of platform threads",
+                ratio >= MIN_THROUGHPUT_RATIO);
+    }
+
+    /**
+     * Adds the frames of this library, other than this test, to a pinned event's list.
+     */
+    private static void addLibraryFrames(RecordedEvent event, List<String> pinnedFrames)
+    {
+        if (event.getStackTrace() == null)
+        {
+            return;
+        }
+        for (RecordedFrame frame : event.getStackTrace().getFrames())
+        {
+            String className = frame.getMethod().getType().getName();
+            if (className.startsWith("org.alfresco.xmlfactory.") &&
+                    !className.startsWith(VirtualThreadTest.class.getName()))
+            {
+                pinnedFrames.add(className + '.' + frame.getMethod().getName() + ':' + frame.getLineNumber());
+            }
+        }
+    }
+
+    /**
+     * Runs the parses on the executor, and shuts it down.
+     *
+     * @return the number of parses a second.
+     */
+    private static double parsesPerSecond(ExecutorService executor, int parses) throws Throwable
+    {
+        AtomicInteger parsed = new AtomicInteger();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        long start = System.nanoTime();
+        try
+        {
+            for (int i = 0; i < parses; i++)
+            {
+                executor.execute(() ->
+                {
+                    try
+                    {
+                        SAXParser parser = new SAXParserFactoryXercesImpl().newSAXParser();
+                        if (!parser.getXMLReader().getFeature(XMLConstants.FEATURE_SECURE_PROCESSING))
+                        {
+                            throw new IllegalStateException("Secure processing is off");
+                        }
+                        parser.parse(new InputSource(new StringReader("<root><child/></root>")), new DefaultHandler());
+                        parsed.incrementAndGet();
+                    }
+                    catch (Exception e)
+                    {
+                        firstFailure.compareAndSet(null, e);
+                    }
+                });
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertTrue("Timed out", executor.awaitTermination(10, TimeUnit.MINUTES));
+        long nanos = System.nanoTime() - start;
+
+        if (firstFailure.get() != null)
+        {
+            throw new AssertionError(parses - parsed.get() + " parses failed, the first with: " +
+                    firstFailure.get(), firstFailure.get());
+        }
+        assertEquals(parses, parsed.get());
+        return parses * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() throws Exception
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
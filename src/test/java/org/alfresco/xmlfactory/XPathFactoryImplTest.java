@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.xmlfactory;
+
+import junit.framework.TestCase;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFunctionResolver;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests the hardened {@link XPathFactoryImpl} and its cache of compiled expressions.
+ */
+public class XPathFactoryImplTest extends TestCase
+{
+    private static final String NAMESPACE = "http://www.alfresco.org/test";
+
+    public void testXPathFactoryIsHardened() throws Throwable
+    {
+        XPathFactory factory = XPathFactory.newInstance();
+
+        assertEquals(XPathFactoryImpl.class, factory.getClass());
+        assertTrue(factory.getFeature(XMLConstants.FEATURE_SECURE_PROCESSING));
+    }
+
+    public void testExtensionFunctionsAreRefused() throws Throwable
+    {
+        XPathFactory factory = new XPathFactoryImpl();
+        factory.setXPathFunctionResolver((name, arity) -> args -> "called");
+        XPath xpath = factory.newXPath();
+        xpath.setNamespaceContext(new TestNamespaceContext("ext", NAMESPACE));
+
+        try
+        {
+            xpath.evaluate("ext:run()", parse("<root/>"));
+            fail("Extension function should not have been called");
+        }
+        catch (XPathExpressionException e)
+        {
+            // expected
+        }
+    }
+
+    public void testChangedFactoryDoesNotChangeSharedExpressions() throws Throwable
+    {
+        XPathFunctionResolver resolver = (name, arity) -> args -> "called";
+        NamespaceContext namespaceContext = new TestNamespaceContext("ext", NAMESPACE);
+        XPathFactory first = new XPathFactoryImpl();
+        first.setXPathFunctionResolver(resolver);
+        XPath firstXPath = first.newXPath();
+        firstXPath.setNamespaceContext(namespaceContext);
+        XPathExpression expression = firstXPath.compile("ext:run()");
+
+        first.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+        first.setFeature("http://www.oracle.com/xml/jaxp/properties/enableExtensionFunctions", true);
+
+        XPathFactory second = new XPathFactoryImpl();
+        second.setXPathFunctionResolver(resolver);
+        XPath secondXPath = second.newXPath();
+        secondXPath.setNamespaceContext(namespaceContext);
+        assertSame(expression, secondXPath.compile("ext:run()"));
+
+        // Several copies at once, so that some are compiled after the first factory was changed.
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+            {
+                Document document = parse("<root/>");
+                results.add(executor.submit(() ->
+                {
+                    try
+                    {
+                        expression.evaluate(document);
+                        return true;
+                    }
+                    catch (XPathExpressionException e)
+                    {
+                        return false;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+            {
+                assertFalse("Extension function should not have been called", result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testExpressionsAreCachedByNamespaceContext() throws Throwable
+    {
+        XPath xpath1 = new XPathFactoryImpl().newXPath();
+        xpath1.setNamespaceContext(new TestNamespaceContext("t", NAMESPACE));
+        XPath xpath2 = new XPathFactoryImpl().newXPath();
+        xpath2.setNamespaceContext(new TestNamespaceContext("t", NAMESPACE));
+
+        XPathExpression expression = xpath1.compile("/t:root/@name");
+        assertSame(expression, xpath2.compile("/t:root/@name"));
+
+        xpath2.setNamespaceContext(new TestNamespaceContext("t", NAMESPACE+"/other"));
+        assertNotSame(expression, xpath2.compile("/t:root/@name"));
+
+        Document document = parse("<root xmlns=\"" + NAMESPACE + "\" name=\"value\"/>");
+        assertEquals("value", expression.evaluate(document));
+        assertEquals("", xpath2.evaluate("/t:root/@name", document));
+    }
+
+    public void testSharedExpressionFromManyThreads() throws Throwable
+    {
+        XPathExpression expression = new XPathFactoryImpl().newXPath().compile("count(/root/child)");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++)
+            {
+                int children = i % 5;
+                Document document = parse("<root>" + String.join("", Collections.nCopies(children, "<child/>")) +
+                        "</root>");
+                results.add(executor.submit(() -> children + "=" + expression.evaluate(document)));
+            }
+            for (int i = 0; i < results.size(); i++)
+            {
+                assertEquals(i % 5 + "=" + i % 5, results.get(i).get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        int idle = ((CachingXPath.SharedExpression) expression).getIdleCount();
+        assertTrue(idle >= 1 && idle <= CachingXPath.SharedExpression.MAX_IDLE);
+    }
+
+    private static Document parse(String xml) throws Exception
+    {
+        DocumentBuilderFactory factory = new DocumentBuilderFactoryXercesImpl();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * Binds one prefix, and is equal to any other context that binds the same one.
+     */
+    private static class TestNamespaceContext implements NamespaceContext
+    {
+        private final String prefix;
+        private final String namespaceURI;
+
+        TestNamespaceContext(String prefix, String namespaceURI)
+        {
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix)
+        {
+            return this.prefix.equals(prefix) ? namespaceURI : XMLConstants.NULL_NS_URI;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI)
+        {
+            return this.namespaceURI.equals(namespaceURI) ? prefix : null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI)
+        {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.emptyIterator() : Collections.singletonList(prefix).iterator();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof TestNamespaceContext && prefix.equals(((TestNamespaceContext) obj).prefix)
+                    && namespaceURI.equals(((TestNamespaceContext) obj).namespaceURI);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return prefix.hashCode() * 31 + namespaceURI.hashCode();
+        }
+    }
+}